@@ -13,6 +13,7 @@ import it.simonedegiacomi.storage.StorageException;
 import it.simonedegiacomi.sync.Sync;
 import it.simonedegiacomi.sync.Work;
 import it.simonedegiacomi.sync.fs.MyFileSystemWatcher;
+import it.simonedegiacomi.utils.Bandwidth;
 import it.simonedegiacomi.utils.EasyProxy;
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.Logger;
@@ -58,8 +59,9 @@ public class GoBoxFacade {
         // Set the default log config
         BasicConfigurator.configure();
 
-        // When the configuration changes reload the proxy
+        // When the configuration changes reload the proxy and the bandwidth limits
         config.addOnconfigChangeListener(() -> EasyProxy.handleProxy(config));
+        config.addOnconfigChangeListener(() -> Bandwidth.getInstance().configure(config));
     }
 
     /**
@@ -8,12 +8,14 @@ import it.simonedegiacomi.goboxapi.client.GBClient;
 import it.simonedegiacomi.goboxapi.utils.MyGsonBuilder;
 import it.simonedegiacomi.goboxclient.GoBoxEnvironment;
 import it.simonedegiacomi.sync.Work;
+import it.simonedegiacomi.utils.Bandwidth;
 import it.simonedegiacomi.utils.EasyProxy;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.net.Socket;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -104,6 +106,12 @@ public class CLIView implements View {
             case "proxy":
                 res.addProperty("out", setProxy(args));
                 break;
+            case "failed":
+                res.addProperty("out", failedWorks(args));
+                break;
+            case "bandwidth":
+                res.addProperty("out", setBandwidth(args));
+                break;
             default:
                 res.addProperty("out", getHelp());
                 break;
@@ -118,7 +126,60 @@ public class CLIView implements View {
                 "stop) Stop the main GoBox instance;\n" +
                 "reset) Reset the GoBox environment;\n" +
                 "proxy) Set the http proxy" +
-                "status) Get the current status;\n";
+                "status) Get the current status;\n" +
+                "failed) List, retry or clear the works that failed;\n" +
+                "bandwidth) Show or change the bandwidth limits;\n";
+    }
+
+    private String failedWorks (String[] args) {
+        if (args.length > 1 && args[1].equalsIgnoreCase("retry")) {
+            return presenter.retryFailedWorks() + " works queued again";
+        }
+
+        if (args.length > 1 && args[1].equalsIgnoreCase("clear")) {
+            return presenter.clearFailedWorks() + " works removed";
+        }
+
+        List<Work> works = presenter.getFailedWorks();
+        StringBuilder out = new StringBuilder();
+        out.append(works.size()).append(" failed works ('gobox failed retry' or 'gobox failed clear')\n");
+        for (Work work : works) {
+            out.append(" - ").append(work).append(" (").append(work.getAttempts()).append(" attempts");
+            if (work.getError() != null)
+                out.append(", ").append(work.getError());
+            out.append(")\n");
+        }
+        return out.toString();
+    }
+
+    private String setBandwidth (String[] args) {
+        Bandwidth bandwidth = Bandwidth.getInstance();
+        if (args.length == 3) {
+            Bandwidth.Limit limit;
+            long kbPerSecond;
+            try {
+                limit = Bandwidth.Limit.valueOf(args[1].toUpperCase());
+                kbPerSecond = Long.parseLong(args[2]);
+            } catch (IllegalArgumentException ex) {
+                return "Type 'gobox bandwidth' to get the bandwidth settings help";
+            }
+
+            // Apply the limit now and remember it
+            bandwidth.setLimit(limit, kbPerSecond * 1024);
+            Config.getInstance().setProperty(limit.getKey(), String.valueOf(kbPerSecond));
+            try {
+                Config.getInstance().save();
+            } catch (IOException ex) {
+                return "Limit set, but the config can't be saved: " + ex.getMessage();
+            }
+        }
+
+        StringBuilder out = new StringBuilder("Bandwidth limits (KB/s, 0 = unlimited):\n");
+        for (Bandwidth.Limit limit : Bandwidth.Limit.values()) {
+            out.append(" - ").append(limit.name().toLowerCase()).append(": ").append(bandwidth.getLimit(limit) / 1024).append('\n');
+        }
+        out.append("Usage: gobox bandwidth [total|upload|download|transfer] [KB/s]");
+        return out.toString();
     }
 
     private String setProxy (String[] args) {
@@ -1,8 +1,11 @@
 package it.simonedegiacomi.goboxclient.ui;
 
 import it.simonedegiacomi.goboxclient.GoBoxEnvironment;
+import it.simonedegiacomi.sync.Work;
 
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -48,6 +51,27 @@ public class GoBoxPresenter implements Presenter {
         System.exit(0);
     }
 
+    @Override
+    public List<Work> getFailedWorks() {
+        if (env.getSync() == null)
+            return Collections.emptyList();
+        return env.getSync().getWorkManager().getDeadWorks();
+    }
+
+    @Override
+    public int retryFailedWorks() {
+        if (env.getSync() == null)
+            return 0;
+        return env.getSync().getWorkManager().retryDeadWorks();
+    }
+
+    @Override
+    public int clearFailedWorks() {
+        if (env.getSync() == null)
+            return 0;
+        return env.getSync().getWorkManager().clearDeadWorks();
+    }
+
     /**
      * Call this method to refresh the view with the data from the model
      */
@@ -1,5 +1,8 @@
 package it.simonedegiacomi.goboxclient.ui;
 
+import it.simonedegiacomi.sync.Work;
+
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -41,6 +44,24 @@ public interface Presenter {
      */
     void exitProgram ();
 
+    /**
+     * Return the works that failed too many times
+     * @return Failed works
+     */
+    List<Work> getFailedWorks ();
+
+    /**
+     * Add again the failed works to the queue
+     * @return Number of works added to the queue
+     */
+    int retryFailedWorks ();
+
+    /**
+     * Forget the failed works
+     * @return Number of forgotten works
+     */
+    int clearFailedWorks ();
+
     /**
      * Force the presenter to update the view using the model information.
      * Call this method when the model is updated
@@ -6,7 +6,11 @@ import com.j256.ormlite.dao.DaoManager;
 import it.simonedegiacomi.goboxapi.GBFile;
 import it.simonedegiacomi.goboxapi.client.*;
 import it.simonedegiacomi.storage.components.core.utils.DBCommonUtils;
+import it.simonedegiacomi.storage.components.core.utils.FileHash;
+import it.simonedegiacomi.storage.components.core.utils.SubtreeCursor;
+import it.simonedegiacomi.storage.utils.ContentHash;
 import it.simonedegiacomi.storage.utils.MyFileUtils;
+import it.simonedegiacomi.sync.TreeSnapshotSource;
 import org.apache.log4j.Logger;
 import org.bytedeco.javacv.DC1394FrameGrabber;
 
@@ -25,7 +29,7 @@ import java.util.List;
  * @author Degiacomi Simone
  * Created on 02/01/2016.
  */
-public class InternalClient extends GBClient {
+public class InternalClient extends GBClient implements TreeSnapshotSource {
 
     /**
      * Logger of the class
@@ -41,6 +45,8 @@ public class InternalClient extends GBClient {
 
     private Dao<SyncEvent, Long> eventTable;
 
+    private Dao<FileHash, Long> hashTable;
+
     /**
      * Create a new internal client using the environment
      * @param env Environment to use
@@ -51,6 +57,7 @@ public class InternalClient extends GBClient {
 
         fileTable = DaoManager.createDao(env.getDbConnection(), GBFile.class);
         eventTable = DaoManager.createDao(env.getDbConnection(), SyncEvent.class);
+        hashTable = DaoManager.createDao(env.getDbConnection(), FileHash.class);
         this.emitter = env.getEmitter();
     }
 
@@ -83,6 +90,30 @@ public class InternalClient extends GBClient {
         }
     }
 
+    /**
+     * Read the subtree of the file directly from the database
+     * @param root Root of the subtree
+     * @param pageSize Maximum number of files in a page
+     * @param listener Listener that receives the pages
+     * @throws ClientException
+     */
+    @Override
+    public void getTreeSnapshot(GBFile root, int pageSize, PageListener listener) throws ClientException {
+        try {
+            if (DBCommonUtils.getFile(fileTable, root) == null)
+                return;
+
+            SubtreeCursor cursor = new SubtreeCursor(fileTable, root);
+            while (cursor.hasNext()) {
+                List<GBFile> page = cursor.next(pageSize);
+                listener.onPage(page, DBCommonUtils.getHashes(hashTable, page));
+            }
+        } catch (SQLException ex) {
+            log.warn(ex.toString(), ex);
+            throw new ClientException(ex.toString());
+        }
+    }
+
     @Override
     public URL getUrl(TransferProfile.Action action, GBFile file, boolean preview) {
         // Meaningless with the internal client
@@ -157,6 +188,15 @@ public class InternalClient extends GBClient {
             SyncEvent event;
 
             if (old != null) {
+
+                // If the content didn't change there is nothing to tell to the other clients
+                String oldHash = DBCommonUtils.getHash(hashTable, old);
+                if (oldHash != null && !file.isDirectory() && oldHash.equals(ContentHash.getInstance().hash(file.toFile()))) {
+                    file.setID(old.getID());
+                    log.info("Content of " + file + " not changed");
+                    return;
+                }
+
                 file.setID(old.getID());
                 MyFileUtils.loadFileAttributes(file);
                 fileTable.update(file);
@@ -169,6 +209,9 @@ public class InternalClient extends GBClient {
                 event = new SyncEvent(SyncEvent.EventKind.FILE_CREATED, file);
             }
 
+            if (!file.isDirectory())
+                DBCommonUtils.storeHash(hashTable, file);
+
             eventTable.create(event);
             emitter.emitEvent(event);
         } catch (SQLException ex) {
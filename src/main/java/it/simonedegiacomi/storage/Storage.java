@@ -21,6 +21,7 @@ import it.simonedegiacomi.storage.components.AttachFailException;
 import it.simonedegiacomi.storage.components.ComponentConfig;
 import it.simonedegiacomi.storage.components.GBModule;
 import it.simonedegiacomi.storage.components.HttpRequest;
+import it.simonedegiacomi.storage.components.core.utils.FileHash;
 import it.simonedegiacomi.storage.direct.HttpsStorageServer;
 import org.apache.log4j.Logger;
 
@@ -162,6 +163,9 @@ public class Storage {
         // Create the sharing table
         TableUtils.createTableIfNotExists(connectionSource, Sharing.class);
 
+        // Create the table of the content hashes
+        TableUtils.createTableIfNotExists(connectionSource, FileHash.class);
+
         Dao<GBFile, Long> fileTable = DaoManager.createDao(connectionSource, GBFile.class);
 
         // Check if the root file is already in the database
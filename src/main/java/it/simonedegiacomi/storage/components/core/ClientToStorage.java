@@ -4,6 +4,7 @@ import com.google.common.io.ByteStreams;
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.j256.ormlite.dao.Dao;
 import com.j256.ormlite.dao.DaoManager;
 import com.sun.net.httpserver.HttpExchange;
@@ -20,21 +21,27 @@ import it.simonedegiacomi.storage.components.ComponentConfig;
 import it.simonedegiacomi.storage.components.GBModule;
 import it.simonedegiacomi.storage.components.HttpRequest;
 import it.simonedegiacomi.storage.components.core.utils.DBCommonUtils;
+import it.simonedegiacomi.storage.components.core.utils.FileHash;
+import it.simonedegiacomi.storage.components.core.utils.UploadSession;
+import it.simonedegiacomi.storage.components.core.utils.UploadSessions;
+import it.simonedegiacomi.storage.utils.ContentHash;
+import it.simonedegiacomi.storage.utils.Ingest;
 import it.simonedegiacomi.storage.utils.MyFileUtils;
 import it.simonedegiacomi.sync.fs.MyFileSystemWatcher;
+import it.simonedegiacomi.utils.Bandwidth;
 import it.simonedegiacomi.utils.MyHttpExchangeUtils;
 import org.apache.log4j.Logger;
 
 import javax.net.ssl.HttpsURLConnection;
-import java.io.DataOutputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.OutputStream;
+import java.io.*;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidParameterException;
 import java.sql.SQLException;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.zip.GZIPInputStream;
 
 /**
  * This component receive incoming upload from the clients
@@ -75,6 +82,11 @@ public class ClientToStorage implements GBModule {
      */
     private Dao<SyncEvent, Long> eventTable;
 
+    /**
+     * Database table of the content hashes
+     */
+    private Dao<FileHash, Long> hashTable;
+
     /**
      * File system watcher used in the environment
      */
@@ -91,15 +103,34 @@ public class ClientToStorage implements GBModule {
      */
     private final Set<String> incomingFilesPath = new HashSet();
 
+    /**
+     * Folder of the files that are being received
+     */
+    private File uploads;
+
+    /**
+     * Sessions of the chunked uploads
+     */
+    private UploadSessions uploadSessions;
+
     @Override
     public void onAttach(StorageEnvironment env, ComponentConfig componentConfig) throws AttachFailException {
         fileSystemWatcher = env.getFileSystemWatcher();
         eventEmitter = env.getEmitter();
         auth = env.getGlobalConfig().getAuth();
         PATH = env.getGlobalConfig().getProperty("path", "files/");
+        uploads = env.getGlobalConfig().getFolder("uploads", "uploads/");
+        uploadSessions = new UploadSessions(uploads, Long.parseLong(env.getGlobalConfig().getProperty("uploadSessionExpiration", String.valueOf(UploadSessions.DEFAULT_EXPIRATION))));
+        try {
+            uploadSessions.load();
+        } catch (IOException ex) {
+            log.warn("Unable to load the upload sessions", ex);
+            throw new AttachFailException("Unable to load the upload sessions");
+        }
         try {
             fileTable = DaoManager.createDao(env.getDbConnection(), GBFile.class);
             eventTable = DaoManager.createDao(env.getDbConnection(), SyncEvent.class);
+            hashTable = DaoManager.createDao(env.getDbConnection(), FileHash.class);
         } catch (SQLException ex) {
             log.warn("Unable to create dao", ex);
             throw new AttachFailException("Unable to create dao");
@@ -122,57 +153,24 @@ public class ClientToStorage implements GBModule {
         // Wrap the incoming file
         GBFile incomingFile = gson.fromJson(data, GBFile.class);
 
+        File temp = null;
+        String filePathString = null;
         try {
 
-            // Check if the file already exists
-            GBFile old = DBCommonUtils.getFile(fileTable, incomingFile);
-            boolean replace = old != null;
-
-            if (replace) {
-                log.info("Upload request is to replace a file");
-
-                // Find the path of the old file
-                DBCommonUtils.findPath(fileTable, old);
-                old.setPrefix(PATH);
-                incomingFile = old;
-            } else {
-
-                // Find the father
-                GBFile father = DBCommonUtils.getFile(fileTable, incomingFile.getFather());
-
-                if (father == null) {
-                    log.warn("Father of the incoming file isn't known");
-                    response.addProperty("success", false);
-                    response.addProperty("error", "Father not found");
-                    response.addProperty("httpCode", 400);
-                    return response;
-                }
-
-                // Find the father path
-                DBCommonUtils.findPath(fileTable, father);
-                father.setPrefix(PATH);
-
-                // Generate the child
-                incomingFile = father.generateChild(incomingFile.getName(), false);
-            }
-
-            // Get the file path string
-            String filePathString = incomingFile.getPathAsString();
-
-            // Check if the file is locked
-            boolean locked;
-            synchronized (incomingFilesPath) {
-
-                // Check if is locked
-                locked = incomingFilesPath.contains(filePathString);
-
-                // If it's not locked, locked it now
-                if (!locked) {
-                    incomingFilesPath.add(filePathString);
-                }
+            // Find where the file goes
+            incomingFile = resolve(incomingFile);
+            if (incomingFile == null) {
+                log.warn("Father of the incoming file isn't known");
+                response.addProperty("success", false);
+                response.addProperty("error", "Father not found");
+                response.addProperty("httpCode", 400);
+                return response;
             }
 
-            if (locked) {
+            // Check if the file is locked, and lock it
+            filePathString = incomingFile.getPathAsString();
+            if (!lock(filePathString)) {
+                filePathString = null;
                 log.warn("Upload failed because the file is locked by another upload");
                 response.addProperty("success", false);
                 response.addProperty("message", "File already in use");
@@ -189,6 +187,9 @@ public class ClientToStorage implements GBModule {
             conn.setDoOutput(true);
             conn.setDoInput(true);
 
+            // The client may compress the compressible files
+            conn.setRequestProperty("Accept-Encoding", "gzip");
+
             // Authorize it
             auth.authorize(conn);
 
@@ -209,47 +210,20 @@ public class ClientToStorage implements GBModule {
                 return response;
             }
 
-            // Tell the internal client to ignore the creation of the file
-            fileSystemWatcher.startIgnoring(incomingFile.toFile());
-
-            // Create the stream to the disk
-            DataOutputStream toDisk = new DataOutputStream(new FileOutputStream(incomingFile.toFile()));
-
-            // Copy the stream
-            ByteStreams.copy(conn.getInputStream(), toDisk);
-
-            // Close file and http
-            toDisk.close();
-            conn.disconnect();
-
-            // Read the info of the file
-            MyFileUtils.loadFileAttributes(incomingFile);
-
-            // Update the database
-            SyncEvent event;
-            if (replace) {
-
-                // Update the old file
-                fileTable.update(incomingFile);
-                event = new SyncEvent(SyncEvent.EventKind.FILE_MODIFIED, incomingFile);
-            } else {
-
-                // Insert the new file
-                fileTable.create(incomingFile);
-                event = new SyncEvent(SyncEvent.EventKind.FILE_CREATED, incomingFile);
-            }
-
-            // The notification will contain the new file information
-            eventEmitter.emitEvent(event);
-            eventTable.create(event);
-
-            // Unlock the file
-            synchronized (incomingFilesPath) {
-                incomingFilesPath.remove(filePathString);
+            // Receive the file in a temporary file, so a broken upload doesn't touch the old version
+            temp = File.createTempFile("upload", ".part", uploads);
+            Ingest ingest = new Ingest();
+            try (OutputStream toDisk = ingest.wrap(new FileOutputStream(temp))) {
+                InputStream body = Bandwidth.getInstance().limit(conn.getInputStream(), Bandwidth.Direction.DOWNLOAD);
+                if ("gzip".equalsIgnoreCase(conn.getContentEncoding())) {
+                    body = new GZIPInputStream(body);
+                }
+                ByteStreams.copy(body, toDisk);
             }
+            conn.disconnect();
 
-            // Stop ignoring the new file
-            fileSystemWatcher.stopIgnoring(incomingFile.toFile());
+            // Replace the old version and update the database
+            install(incomingFile, temp, ingest);
 
             // Successful request!
             response.addProperty("success", true);
@@ -261,6 +235,11 @@ public class ClientToStorage implements GBModule {
             response.addProperty("success", false);
             response.addProperty("error", ex.toString());
             response.addProperty("httpCode", 500);
+        } finally {
+            if (temp != null) {
+                temp.delete();
+            }
+            unlock(filePathString);
         }
 
         return response;
@@ -287,77 +266,356 @@ public class ClientToStorage implements GBModule {
         // Parse the string
         GBFile incomingFile = gson.fromJson(jsonString, GBFile.class);
 
+        File temp = null;
+        String filePathString = null;
         try {
 
-            // Get an old version of the file
-            GBFile old = DBCommonUtils.getFile(fileTable, incomingFile);
+            // Find where the file goes
+            incomingFile = resolve(incomingFile);
+            if (incomingFile == null) {
+                log.warn("Father not found");
+                req.sendResponseHeaders(404, 0);
+                req.getResponseBody().write("Father not found".getBytes());
+                req.close();
+                return;
+            }
 
-            boolean replace = old != null;
+            // Lock the file
+            filePathString = incomingFile.getPathAsString();
+            if (!lock(filePathString)) {
+                filePathString = null;
+                log.warn("Upload failed because the file is locked by another upload");
+                req.sendResponseHeaders(409, 0);
+                req.getResponseBody().write("File already in use".getBytes());
+                req.close();
+                return;
+            }
 
-            if (replace) {
+            // Receive the file in a temporary file, so a broken upload doesn't touch the old version
+            temp = File.createTempFile("upload", ".part", uploads);
+            Ingest ingest = new Ingest();
+            try (OutputStream toFile = ingest.wrap(new FileOutputStream(temp))) {
+                ByteStreams.copy(Bandwidth.getInstance().limit(req.getRequestBody(), Bandwidth.Direction.DOWNLOAD), toFile);
+            }
 
-                // Find path of the old file
-                DBCommonUtils.findPath(fileTable, old);
-                incomingFile = old;
-            } else {
+            // Replace the old version and update the database
+            install(incomingFile, temp, ingest);
 
-                // Get the father
-                GBFile father = DBCommonUtils.getFile(fileTable, incomingFile.getFather());
+            log.info("New file received");
 
-                // Check if the file exists
-                if (father == null) {
-                    log.warn("Father not found");
-                    req.sendResponseHeaders(404, 0);
-                    req.getResponseBody().write("Father not found".getBytes());
-                    req.close();
-                }
+            req.sendResponseHeaders(200, 0);
+            req.close();
+        } catch (SQLException ex) {
+            log.warn(ex.toString(), ex);
+            req.sendResponseHeaders(500, 0);
+            req.close();
+        } finally {
+            if (temp != null) {
+                temp.delete();
+            }
+            unlock(filePathString);
+        }
+    }
 
-                // Find the path
-                DBCommonUtils.findPath(fileTable, father);
-                father.setPrefix(PATH);
+    /**
+     * Start a chunked upload. The body of the request is the json of the file, as in the direct upload;
+     * the optional 'size' parameter is the size of the whole file. The response contains the id of the session
+     * @param req Request
+     * @throws IOException
+     */
+    @HttpRequest(name = "/uploadSession", method = "POST")
+    public void onUploadSessionRequest (HttpExchange req) throws IOException {
+
+        log.info("New upload session request");
 
-                incomingFile = father.generateChild(incomingFile.getName(), false);
+        try {
+            GBFile incomingFile = gson.fromJson(new InputStreamReader(req.getRequestBody(), StandardCharsets.UTF_8), GBFile.class);
+            long size = -1;
+            if (req.getRequestURI().getQuery() != null) {
+                Map<String, String> params = MyHttpExchangeUtils.getQueryParams(req.getRequestURI());
+                if (params.containsKey("size")) {
+                    size = Long.parseLong(params.get("size"));
+                }
             }
 
-            // Ignore the file
-            fileSystemWatcher.startIgnoring(incomingFile.toFile());
+            // Check now that the father exists, so the client doesn't upload the whole file for nothing
+            if (incomingFile == null || resolve(incomingFile) == null) {
+                log.warn("Father not found");
+                respond(req, 404, error("Father not found"));
+                return;
+            }
 
-            OutputStream toFile = new FileOutputStream(incomingFile.toFile());
+            UploadSession session = uploadSessions.create(incomingFile, size);
+            respond(req, 200, status(session));
+        } catch (JsonParseException | NumberFormatException ex) {
+            respond(req, 400, error("invalid parameters"));
+        } catch (SQLException ex) {
+            log.warn(ex.toString(), ex);
+            respond(req, 500, error(ex.toString()));
+        }
+    }
 
-            ByteStreams.copy(req.getRequestBody(), toFile);
+    /**
+     * Return the offset of an upload session, so the client knows from where to continue the upload
+     * @param req Request with the 'session' parameter
+     * @throws IOException
+     */
+    @HttpRequest(name = "/uploadStatus")
+    public void onUploadStatusRequest (HttpExchange req) throws IOException {
+        UploadSession session = findSession(req);
+        if (session != null) {
+            respond(req, 200, status(session));
+        }
+    }
 
-            toFile.close();
+    /**
+     * Receive a chunk of an upload session. The 'offset' parameter must be the current offset of the session;
+     * if it's not, the response is a 409 with the expected offset
+     * @param req Request with the 'session' and 'offset' parameters and the chunk as body
+     * @throws IOException
+     */
+    @HttpRequest(name = "/uploadChunk", method = "PUT")
+    public void onUploadChunkRequest (HttpExchange req) throws IOException {
+        UploadSession session = findSession(req);
+        if (session == null)
+            return;
 
-            // Update the database
-            MyFileUtils.loadFileAttributes(incomingFile);
-            fileTable.create(incomingFile);
+        long offset;
+        try {
+            offset = Long.parseLong(MyHttpExchangeUtils.getQueryParams(req.getRequestURI()).get("offset"));
+        } catch (NumberFormatException ex) {
+            respond(req, 400, error("invalid offset"));
+            return;
+        }
+
+        try {
+            session.append(offset, Bandwidth.getInstance().limit(req.getRequestBody(), Bandwidth.Direction.DOWNLOAD));
+            respond(req, 200, status(session));
+        } catch (IllegalStateException ex) {
+            respond(req, 409, status(session));
+        } catch (IOException ex) {
+            log.warn("Chunk of the upload session " + session.getID() + " not completely received", ex);
+            respond(req, 500, status(session));
+        }
+    }
+
+    /**
+     * Complete an upload session, moving the received file in its place. The optional 'hash' parameter is
+     * the SHA-256 of the whole file, checked before the commit. The response is the json of the new file
+     * @param req Request with the 'session' parameter
+     * @throws IOException
+     */
+    @HttpRequest(name = "/uploadCommit", method = "POST")
+    public void onUploadCommitRequest (HttpExchange req) throws IOException {
+        UploadSession session = findSession(req);
+        if (session == null)
+            return;
 
-            // Register and emit event
-            SyncEvent event;
-            if (replace) {
+        log.info("Commit of the upload session " + session.getID());
 
-                // Update the old file
-                fileTable.update(incomingFile);
-                event = new SyncEvent(SyncEvent.EventKind.FILE_MODIFIED, incomingFile);
-            } else {
+        String filePathString = null;
+        File part = null;
+        try {
+            if (!session.isComplete()) {
+                respond(req, 409, status(session));
+                return;
+            }
 
-                // Insert the new file
-                fileTable.create(incomingFile);
-                event = new SyncEvent(SyncEvent.EventKind.FILE_CREATED, incomingFile);
+            // Check the content, without reading the file again if it was hashed while it was received
+            Ingest ingest = session.getIngest();
+            String expected = MyHttpExchangeUtils.getQueryParams(req.getRequestURI()).get("hash");
+            String actual = expected == null ? null : ingest != null ? ingest.getHash() : ContentHash.getInstance().hash(session.getPart());
+            if (expected != null && !expected.equalsIgnoreCase(actual)) {
+                log.warn("The file of the upload session " + session.getID() + " doesn't match the hash");
+                uploadSessions.remove(session);
+                respond(req, 400, error("hash mismatch"));
+                return;
             }
 
-            // The notification will contain the new file information
-            eventEmitter.emitEvent(event);
-            eventTable.create(event);
+            // Find where the file goes
+            GBFile incomingFile = resolve(session.getFile());
+            if (incomingFile == null) {
+                log.warn("Father not found");
+                respond(req, 404, error("Father not found"));
+                return;
+            }
 
-            log.info("New file received");
+            // Lock the file
+            filePathString = incomingFile.getPathAsString();
+            if (!lock(filePathString)) {
+                filePathString = null;
+                respond(req, 409, error("File already in use"));
+                return;
+            }
 
-            req.sendResponseHeaders(200, 0);
-            req.close();
+            // Close the session
+            part = uploadSessions.commit(session);
+            if (part == null) {
+                respond(req, 409, error("Session already committed"));
+                return;
+            }
+
+            // Replace the old version and update the database
+            install(incomingFile, part, ingest);
+
+            log.info("New file received");
+            respond(req, 200, gson.toJsonTree(incomingFile, GBFile.class).getAsJsonObject());
         } catch (SQLException ex) {
             log.warn(ex.toString(), ex);
-            req.sendResponseHeaders(500, 0);
-            req.close();
+            respond(req, 500, error(ex.toString()));
+        } finally {
+            if (part != null) {
+                part.delete();
+            }
+            unlock(filePathString);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Find the session specified by the 'session' parameter. If the session doesn't exist, the error response
+     * is sent
+     * @param req Request
+     * @return Session, null if not found
+     * @throws IOException
+     */
+    private UploadSession findSession (HttpExchange req) throws IOException {
+        UploadSession session = null;
+        try {
+            session = uploadSessions.get(MyHttpExchangeUtils.getQueryParams(req.getRequestURI()).get("session"));
+        } catch (InvalidParameterException ex) {
+            // Missing parameters
+        }
+        if (session == null) {
+            respond(req, 404, error("Session not found"));
+        }
+        return session;
+    }
+
+    /**
+     * Find the file that will be written with an upload: the old version if the file already exists,
+     * otherwise a new child of the father
+     * @param incomingFile File described by the client
+     * @return File with path and prefix, null if the father doesn't exist
+     * @throws SQLException
+     */
+    private GBFile resolve (GBFile incomingFile) throws SQLException {
+
+        // Get an old version of the file
+        GBFile old = DBCommonUtils.getFile(fileTable, incomingFile);
+
+        if (old != null) {
+
+            // Find path of the old file
+            DBCommonUtils.findPath(fileTable, old);
+            old.setPrefix(PATH);
+            return old;
+        }
+
+        // Get the father
+        GBFile father = DBCommonUtils.getFile(fileTable, incomingFile.getFather());
+        if (father == null)
+            return null;
+
+        // Find the path
+        DBCommonUtils.findPath(fileTable, father);
+        father.setPrefix(PATH);
+
+        return father.generateChild(incomingFile.getName(), false);
+    }
+
+    /**
+     * Move the received file in its place, update the database and notify the clients
+     * @param incomingFile Resolved file (see {@link #resolve(GBFile)})
+     * @param received File with the received content
+     * @param ingest Information collected while the file was received, null to read them from the file
+     * @throws IOException
+     * @throws SQLException
+     */
+    private void install (GBFile incomingFile, File received, Ingest ingest) throws IOException, SQLException {
+        boolean replace = incomingFile.getID() != GBFile.UNKNOWN_ID;
+
+        // Trust the ingest only if it saw the whole file
+        if (ingest != null && ingest.getSize() != received.length()) {
+            ingest = null;
+        }
+
+        // Tell the internal client to ignore the new version of the file
+        fileSystemWatcher.startIgnoring(incomingFile.toFile());
+        try {
+            MyFileUtils.replace(received, incomingFile.toFile());
+        } finally {
+            fileSystemWatcher.stopIgnoring(incomingFile.toFile());
+        }
+
+        // Read the info of the file. The content is read only if it wasn't ingested while it was received
+        MyFileUtils.loadFileAttributes(incomingFile, ingest == null ? null : ingest.detectMime(incomingFile.getName()));
+
+        // Register and emit event
+        SyncEvent event;
+        if (replace) {
+
+            // Update the old file
+            fileTable.update(incomingFile);
+            event = new SyncEvent(SyncEvent.EventKind.FILE_MODIFIED, incomingFile);
+        } else {
+
+            // Insert the new file
+            fileTable.create(incomingFile);
+            event = new SyncEvent(SyncEvent.EventKind.FILE_CREATED, incomingFile);
+        }
+
+        // Save the hash of the new content
+        if (ingest != null) {
+            DBCommonUtils.storeHash(hashTable, incomingFile, ingest.getHash());
+            ContentHash.getInstance().put(incomingFile.toFile(), ingest.getHash());
+        } else {
+            DBCommonUtils.storeHash(hashTable, incomingFile);
+        }
+
+        // The notification will contain the new file information
+        eventEmitter.emitEvent(event);
+        eventTable.create(event);
+    }
+
+    /**
+     * Lock a file, so only one upload at time can write it
+     * @param filePathString Path of the file
+     * @return True if the file has been locked, false if it's already locked
+     */
+    private boolean lock (String filePathString) {
+        synchronized (incomingFilesPath) {
+            return incomingFilesPath.add(filePathString);
+        }
+    }
+
+    private void unlock (String filePathString) {
+        if (filePathString == null)
+            return;
+        synchronized (incomingFilesPath) {
+            incomingFilesPath.remove(filePathString);
+        }
+    }
+
+    private JsonObject status (UploadSession session) {
+        JsonObject json = new JsonObject();
+        json.addProperty("session", session.getID());
+        json.addProperty("offset", session.getOffset());
+        json.addProperty("size", session.getSize());
+        return json;
+    }
+
+    private JsonObject error (String message) {
+        JsonObject json = new JsonObject();
+        json.addProperty("success", false);
+        json.addProperty("error", message);
+        return json;
+    }
+
+    private void respond (HttpExchange req, int code, JsonObject json) throws IOException {
+        byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+        req.getResponseHeaders().set("Content-Type", "application/json");
+        req.sendResponseHeaders(code, body.length);
+        req.getResponseBody().write(body);
+        req.close();
+    }
+}
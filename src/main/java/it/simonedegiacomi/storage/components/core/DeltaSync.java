@@ -0,0 +1,307 @@
+package it.simonedegiacomi.storage.components.core;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.sun.net.httpserver.HttpExchange;
+import it.simonedegiacomi.goboxapi.GBFile;
+import it.simonedegiacomi.goboxapi.client.SyncEvent;
+import it.simonedegiacomi.storage.EventEmitter;
+import it.simonedegiacomi.storage.StorageEnvironment;
+import it.simonedegiacomi.storage.components.AttachFailException;
+import it.simonedegiacomi.storage.components.ComponentConfig;
+import it.simonedegiacomi.storage.components.GBModule;
+import it.simonedegiacomi.storage.components.HttpRequest;
+import it.simonedegiacomi.storage.components.core.utils.DBCommonUtils;
+import it.simonedegiacomi.storage.components.core.utils.FileHash;
+import it.simonedegiacomi.storage.utils.BlockSignature;
+import it.simonedegiacomi.storage.utils.DeltaEncoder;
+import it.simonedegiacomi.storage.utils.DeltaPatcher;
+import it.simonedegiacomi.storage.utils.MyFileUtils;
+import it.simonedegiacomi.sync.fs.MyFileSystemWatcher;
+import it.simonedegiacomi.utils.Bandwidth;
+import it.simonedegiacomi.utils.MyHttpExchangeUtils;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.InvalidParameterException;
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * This component lets the clients transfer only the changed blocks of a modified file. The storage sends the
+ * signature of its version of a file, so the client can upload a delta, or reads the signature of the client
+ * version and sends back the delta to rebuild the new version.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class DeltaSync implements GBModule {
+
+    /**
+     * Logger of the class
+     */
+    private final Logger log = Logger.getLogger(DeltaSync.class);
+
+    /**
+     * Default folder of the cached signatures
+     */
+    public static final String DEFAULT_SIGNATURES_PATH = "signatures/";
+
+    private String PATH;
+
+    /**
+     * Folder where the signatures of the files are cached
+     */
+    private File signatures;
+
+    /**
+     * Database file table
+     */
+    private Dao<GBFile, Long> fileTable;
+
+    /**
+     * Database event table
+     */
+    private Dao<SyncEvent, Long> eventTable;
+
+    /**
+     * Database table of the content hashes
+     */
+    private Dao<FileHash, Long> hashTable;
+
+    /**
+     * File system watcher used in the environment
+     */
+    private MyFileSystemWatcher fileSystemWatcher;
+
+    /**
+     * Event emitter to notify other client and components
+     */
+    private EventEmitter eventEmitter;
+
+    @Override
+    public void onAttach(StorageEnvironment env, ComponentConfig componentConfig) throws AttachFailException {
+        fileSystemWatcher = env.getFileSystemWatcher();
+        eventEmitter = env.getEmitter();
+        PATH = env.getGlobalConfig().getProperty("path", "files/");
+        signatures = new File(env.getGlobalConfig().getProperty("signatures", DEFAULT_SIGNATURES_PATH));
+        if (!signatures.exists() && !signatures.mkdirs()) {
+            throw new AttachFailException("Unable to create the signatures folder");
+        }
+        try {
+            fileTable = DaoManager.createDao(env.getDbConnection(), GBFile.class);
+            eventTable = DaoManager.createDao(env.getDbConnection(), SyncEvent.class);
+            hashTable = DaoManager.createDao(env.getDbConnection(), FileHash.class);
+        } catch (SQLException ex) {
+            log.warn("Unable to create dao", ex);
+            throw new AttachFailException("Unable to create dao");
+        }
+    }
+
+    @Override
+    public void onDetach() {
+
+    }
+
+    /**
+     * Send the signature of the storage version of a file
+     * @param req Request with the ID of the file
+     * @throws IOException
+     */
+    @HttpRequest(name = "/signature")
+    public void onSignatureRequest (HttpExchange req) throws IOException {
+
+        log.info("New signature request");
+
+        try {
+            GBFile file = findFile(req);
+            if (file == null)
+                return;
+
+            BlockSignature signature = signatureOf(file);
+            req.sendResponseHeaders(200, 0);
+            signature.write(req.getResponseBody());
+            req.close();
+        } catch (SQLException ex) {
+            log.warn(ex.toString(), ex);
+            req.sendResponseHeaders(500, 0);
+            req.close();
+        }
+    }
+
+    /**
+     * Apply a delta created by the client with the signature of the storage version. The delta is applied to a
+     * copy of the file, so if it's not valid the storage version doesn't change
+     * @param req Request with the ID of the file, the block size of the signature and the delta as body
+     * @throws IOException
+     */
+    @HttpRequest(name = "/patch", method = "POST")
+    public void onPatchRequest (HttpExchange req) throws IOException {
+
+        log.info("New patch request");
+
+        try {
+            GBFile file = findFile(req);
+            if (file == null)
+                return;
+
+            int blockSize;
+            try {
+                blockSize = Integer.parseInt(MyHttpExchangeUtils.getQueryParams(req.getRequestURI()).get("blockSize"));
+            } catch (NumberFormatException ex) {
+                blockSize = 0;
+            }
+            if (blockSize <= 0) {
+                req.sendResponseHeaders(400, 0);
+                req.getResponseBody().write("missing parameters".getBytes());
+                req.close();
+                return;
+            }
+
+            // Tell the internal client to ignore the replace of the file and the temporary file of the patch
+            File temp = DeltaPatcher.tempFileOf(file.toFile());
+            fileSystemWatcher.startIgnoring(file.toFile());
+            fileSystemWatcher.startIgnoring(temp);
+            try {
+                DeltaPatcher.patch(file.toFile(), blockSize, Bandwidth.getInstance().limit(req.getRequestBody(), Bandwidth.Direction.DOWNLOAD));
+            } catch (IOException ex) {
+                log.warn("Invalid delta", ex);
+                req.sendResponseHeaders(400, 0);
+                req.getResponseBody().write("invalid delta".getBytes());
+                req.close();
+                return;
+            } finally {
+                fileSystemWatcher.stopIgnoring(temp);
+                fileSystemWatcher.stopIgnoring(file.toFile());
+            }
+
+            // Update the database
+            MyFileUtils.loadFileAttributes(file);
+            fileTable.update(file);
+            DBCommonUtils.storeHash(hashTable, file);
+
+            // The notification will contain the new file information
+            SyncEvent event = new SyncEvent(SyncEvent.EventKind.FILE_MODIFIED, file);
+            eventEmitter.emitEvent(event);
+            eventTable.create(event);
+
+            log.info("File patched");
+
+            req.sendResponseHeaders(200, 0);
+            req.close();
+        } catch (SQLException ex) {
+            log.warn(ex.toString(), ex);
+            req.sendResponseHeaders(500, 0);
+            req.close();
+        }
+    }
+
+    /**
+     * Send the delta that rebuilds the storage version of a file from the client version
+     * @param req Request with the ID of the file and the signature of the client version as body
+     * @throws IOException
+     */
+    @HttpRequest(name = "/delta", method = "POST")
+    public void onDeltaRequest (HttpExchange req) throws IOException {
+
+        log.info("New delta request");
+
+        try {
+            GBFile file = findFile(req);
+            if (file == null)
+                return;
+
+            BlockSignature signature;
+            try {
+                signature = BlockSignature.read(req.getRequestBody());
+            } catch (IOException ex) {
+                log.warn("Invalid signature", ex);
+                req.sendResponseHeaders(400, 0);
+                req.getResponseBody().write("invalid signature".getBytes());
+                req.close();
+                return;
+            }
+
+            req.sendResponseHeaders(200, 0);
+            new DeltaEncoder(signature).encode(file.toFile(), Bandwidth.getInstance().limit(req.getResponseBody(), Bandwidth.Direction.UPLOAD));
+            req.close();
+        } catch (SQLException ex) {
+            log.warn(ex.toString(), ex);
+            req.sendResponseHeaders(500, 0);
+            req.close();
+        }
+    }
+
+    /**
+     * Find the file specified by the ID parameter of the request. If the file doesn't exist, the error
+     * response is sent
+     * @param req Request
+     * @return File with the path, null if the request is not valid
+     * @throws IOException
+     * @throws SQLException
+     */
+    private GBFile findFile (HttpExchange req) throws IOException, SQLException {
+        GBFile file = null;
+        try {
+            Map<String, String> params = MyHttpExchangeUtils.getQueryParams(req.getRequestURI());
+            if (params.containsKey("ID")) {
+                file = DBCommonUtils.getFileById(fileTable, Long.parseLong(params.get("ID")));
+            }
+        } catch (InvalidParameterException | NumberFormatException ex) {
+            req.sendResponseHeaders(400, 0);
+            req.getResponseBody().write("missing parameters".getBytes());
+            req.close();
+            return null;
+        }
+
+        if (file == null || file.isDirectory()) {
+            log.info("Requested file not found");
+            req.sendResponseHeaders(404, 0);
+            req.close();
+            return null;
+        }
+
+        // Find the path
+        DBCommonUtils.findPath(fileTable, file);
+        file.setPrefix(PATH);
+        return file;
+    }
+
+    /**
+     * Return the signature of the file, reading it from the cache if the file didn't change since
+     * the signature was computed
+     * @param file File
+     * @return Signature of the file
+     * @throws IOException
+     */
+    private BlockSignature signatureOf (GBFile file) throws IOException {
+        File real = file.toFile();
+        File cached = new File(signatures, file.getID() + ".sig");
+        long size = real.length();
+        long lastModified = real.lastModified();
+
+        // Check the cache
+        if (cached.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cached)))) {
+                if (in.readLong() == size && in.readLong() == lastModified) {
+                    return BlockSignature.read(in);
+                }
+            } catch (IOException ex) {
+                log.warn("Invalid cached signature of " + real, ex);
+            }
+        }
+
+        // Compute the signature and update the cache
+        BlockSignature signature = BlockSignature.compute(real, BlockSignature.blockSizeFor(size));
+        File temp = new File(signatures, file.getID() + ".sig.tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeLong(size);
+            out.writeLong(lastModified);
+            signature.write(out);
+        }
+        Files.move(temp.toPath(), cached.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return signature;
+    }
+}
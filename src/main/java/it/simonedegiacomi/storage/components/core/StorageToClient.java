@@ -19,8 +19,9 @@ import it.simonedegiacomi.storage.components.ComponentConfig;
 import it.simonedegiacomi.storage.components.GBModule;
 import it.simonedegiacomi.storage.components.HttpRequest;
 import it.simonedegiacomi.storage.components.core.utils.DBCommonUtils;
+import it.simonedegiacomi.storage.components.core.utils.FileHash;
 import it.simonedegiacomi.storage.components.core.utils.sender.*;
-import it.simonedegiacomi.storage.utils.MyRange;
+import it.simonedegiacomi.storage.utils.Compressibility;
 import it.simonedegiacomi.utils.MyHttpExchangeUtils;
 import org.apache.log4j.Logger;
 
@@ -51,7 +52,7 @@ public class StorageToClient implements GBModule {
     /**
      * File and folder sender
      */
-    private final Sender sender = new Sender();
+    private Sender sender;
 
     /**
      * User credentials
@@ -78,6 +79,11 @@ public class StorageToClient implements GBModule {
      */
     private Dao<Sharing, Long> shareTable;
 
+    /**
+     * Database hash table
+     */
+    private Dao<FileHash, Long> hashTable;
+
     /**
      * Event emitter
      */
@@ -89,10 +95,13 @@ public class StorageToClient implements GBModule {
         eventEmitter = env.getEmitter();
         auth = env.getGlobalConfig().getAuth();
         PATH = env.getGlobalConfig().getProperty("path", "files/");
+        int zipThreads = Integer.parseInt(env.getGlobalConfig().getProperty("zipThreads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        sender = new Sender(zipThreads);
         try {
             fileTable = DaoManager.createDao(env.getDbConnection(), GBFile.class);
             eventTable = DaoManager.createDao(env.getDbConnection(), SyncEvent.class);
             shareTable = DaoManager.createDao(env.getDbConnection(), Sharing.class);
+            hashTable = DaoManager.createDao(env.getDbConnection(), FileHash.class);
         } catch (SQLException ex) {
             log.warn(ex.toString(), ex);
             throw new AttachFailException("Unable to create dao");
@@ -101,7 +110,7 @@ public class StorageToClient implements GBModule {
 
     @Override
     public void onDetach() {
-
+        sender.shutdown();
     }
 
     /**
@@ -179,10 +188,22 @@ public class StorageToClient implements GBModule {
             SendAction action = new SendAction();
             action.setFileToSend(dbFile);
             action.setThumbnail(thumbnail);
+            if (dbFile.isDirectory() && !thumbnail) {
+                action.setMimes(DBCommonUtils.getSubtreeMimes(fileTable, dbFile));
+            }
             if(request.has("range") && request.get("range").getAsString().length() > 0) {
-                action.setRange(MyRange.parse(request.get("range").getAsString()));
+
+                // The bridge may forward the range without the unit
+                String range = request.get("range").getAsString();
+                action.setRange(range.contains("=") ? range : "bytes=" + range);
             }
 
+            // Compress the file if the client accepts it and the file is compressible, so the bridge relays less bytes
+            boolean gzip = request.has("acceptEncoding") && request.get("acceptEncoding").getAsString().contains("gzip")
+                    && !thumbnail && !dbFile.isDirectory() && action.getRange() == null
+                    && Compressibility.isWorthCompressing(dbFile.toFile(), dbFile.getMime());
+            action.setGzip(gzip);
+
             // Send the file
             sender.send(action, dst);
 
@@ -212,6 +233,9 @@ public class StorageToClient implements GBModule {
 
             // Complete the response
             response.addProperty("success", true);
+            if (gzip) {
+                response.addProperty("encoding", "gzip");
+            }
         } catch (SQLException ex) {
             log.warn(ex.toString(), ex);
             response.addProperty("success", false);
@@ -258,12 +282,22 @@ public class StorageToClient implements GBModule {
             SendAction action = new SendAction();
             action.setFileToSend(file);
             action.setThumbnail(thumbnail);
+            if (file.isDirectory() && !thumbnail) {
+                action.setMimes(DBCommonUtils.getSubtreeMimes(fileTable, file));
+            }
+
+            // Send the hash of the version, so a client that downloads the file in more requests can check
+            // that all of them received the same version
+            String hash = file.isDirectory() || thumbnail ? null : DBCommonUtils.getHash(hashTable, file);
+            if (hash != null) {
+                req.getResponseHeaders().set("ETag", '"' + hash + '"');
+            }
 
             // Check if the range is specified
             if (headers.containsKey("Range")) {
 
-                // Parse and set the range
-                action.setRange(MyRange.parse(headers.getFirst("Range")));
+                // Set the range, parsed by the sender
+                action.setRange(headers.getFirst("Range"));
             }
 
             // Send the file
@@ -0,0 +1,303 @@
+package it.simonedegiacomi.storage.components.core;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.sun.net.httpserver.HttpExchange;
+import it.simonedegiacomi.goboxapi.GBFile;
+import it.simonedegiacomi.goboxapi.Sharing;
+import it.simonedegiacomi.goboxapi.myws.annotations.WSQuery;
+import it.simonedegiacomi.goboxapi.utils.MyGsonBuilder;
+import it.simonedegiacomi.storage.StorageEnvironment;
+import it.simonedegiacomi.storage.components.AttachFailException;
+import it.simonedegiacomi.storage.components.ComponentConfig;
+import it.simonedegiacomi.storage.components.GBModule;
+import it.simonedegiacomi.storage.components.HttpRequest;
+import it.simonedegiacomi.storage.components.core.utils.DBCommonUtils;
+import it.simonedegiacomi.storage.components.core.utils.FileHash;
+import it.simonedegiacomi.storage.components.core.utils.SubtreeCursor;
+import it.simonedegiacomi.utils.MyHttpExchangeUtils;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidParameterException;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This component sends a snapshot of a whole subtree in pages. The first query opens the snapshot and
+ * returns the first page with an id, then the client asks the next pages with this id until the
+ * 'last' flag is true. The same pages can be read with the 'treeSnapshot' query or, when the client is
+ * connected directly to the storage, with the '/treeSnapshot' http request.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class TreeSnapshot implements GBModule {
+
+    /**
+     * Logger of the class
+     */
+    private final Logger log = Logger.getLogger(TreeSnapshot.class);
+
+    /**
+     * Default number of files in a page
+     */
+    private static final int DEFAULT_PAGE_SIZE = 1000;
+
+    /**
+     * Maximum number of files in a page
+     */
+    private static final int MAX_PAGE_SIZE = 10000;
+
+    /**
+     * Time after which a snapshot not used is closed
+     */
+    private static final long SNAPSHOT_TIMEOUT = 60 * 1000;
+
+    /**
+     * Gson
+     */
+    private final Gson gson = MyGsonBuilder.create();
+
+    /**
+     * Open snapshots
+     */
+    private final Map<String, OpenSnapshot> snapshots = new ConcurrentHashMap<>();
+
+    /**
+     * Database file table
+     */
+    private Dao<GBFile, Long> fileTable;
+
+    /**
+     * Database table of the content hashes
+     */
+    private Dao<FileHash, Long> hashTable;
+
+    /**
+     * Database sharing table
+     */
+    private Dao<Sharing, Long> shareTable;
+
+    @Override
+    public void onAttach(StorageEnvironment env, ComponentConfig componentConfig) throws AttachFailException {
+        try {
+            fileTable = DaoManager.createDao(env.getDbConnection(), GBFile.class);
+            hashTable = DaoManager.createDao(env.getDbConnection(), FileHash.class);
+            shareTable = DaoManager.createDao(env.getDbConnection(), Sharing.class);
+        } catch (SQLException ex) {
+            log.warn(ex.toString(), ex);
+            throw new AttachFailException("Unable to create dao");
+        }
+    }
+
+    @Override
+    public void onDetach() {
+        snapshots.clear();
+    }
+
+    @WSQuery(name = "treeSnapshot")
+    public JsonElement onTreeSnapshotQuery (JsonElement data) {
+
+        log.info("New tree snapshot query");
+
+        JsonObject request = data.getAsJsonObject();
+
+        boolean publicAccess = request.has("public") && request.get("public").getAsBoolean();
+        int pageSize = request.has("pageSize") ? request.get("pageSize").getAsInt() : DEFAULT_PAGE_SIZE;
+        String snapshotID = request.has("snapshotID") ? request.get("snapshotID").getAsString() : null;
+        GBFile root = request.has("file") ? gson.fromJson(request.get("file"), GBFile.class) : GBFile.ROOT_FILE;
+
+        return nextPage(snapshotID, root, pageSize, publicAccess);
+    }
+
+    /**
+     * Send a page of a snapshot to a client connected directly to the storage. The request has the ID of the root
+     * to open a new snapshot, or the snapshotID to read the next page. The response is the same of the query
+     * @param req Request with the parameters in the url
+     * @throws IOException
+     */
+    @HttpRequest(name = "/treeSnapshot")
+    public void onTreeSnapshotRequest (HttpExchange req) throws IOException {
+
+        log.info("New tree snapshot request");
+
+        JsonObject response;
+        try {
+            Map<String, String> params = MyHttpExchangeUtils.getQueryParams(req.getRequestURI());
+            int pageSize = params.containsKey("pageSize") ? Integer.parseInt(params.get("pageSize")) : DEFAULT_PAGE_SIZE;
+            GBFile root = GBFile.ROOT_FILE;
+            if (params.containsKey("ID")) {
+                root = DBCommonUtils.getFileById(fileTable, Long.parseLong(params.get("ID")));
+            }
+
+            // The request passed the authentication, so the client can read the whole storage
+            response = nextPage(params.get("snapshotID"), root, pageSize, false);
+        } catch (InvalidParameterException | NumberFormatException ex) {
+            req.sendResponseHeaders(400, 0);
+            req.getResponseBody().write("missing parameters".getBytes());
+            req.close();
+            return;
+        } catch (SQLException ex) {
+            log.warn(ex.toString(), ex);
+            req.sendResponseHeaders(500, 0);
+            req.close();
+            return;
+        }
+
+        byte[] body = response.toString().getBytes(StandardCharsets.UTF_8);
+        req.getResponseHeaders().set("Content-Type", "application/json");
+        req.sendResponseHeaders(200, body.length);
+        req.getResponseBody().write(body);
+        req.close();
+    }
+
+    /**
+     * Read the next page of a snapshot, opening the snapshot if it's the first request
+     * @param snapshotID ID of the open snapshot, null to open a new one
+     * @param root Root of the subtree of the new snapshot, null if it's already known that it doesn't exist
+     * @param pageSize Maximum number of files in the page
+     * @param publicAccess True if the client is not authorized, so the root need to be shared
+     * @return Response with the page
+     */
+    private JsonObject nextPage (String snapshotID, GBFile root, int pageSize, boolean publicAccess) {
+
+        // Prepare the response
+        JsonObject response = new JsonObject();
+
+        pageSize = Math.max(1, Math.min(pageSize, MAX_PAGE_SIZE));
+
+        // Close the forgotten snapshots
+        removeExpiredSnapshots();
+
+        try {
+
+            // Find the snapshot or open a new one
+            OpenSnapshot snapshot;
+            if (snapshotID != null) {
+                snapshot = snapshots.get(snapshotID);
+
+                if (snapshot == null || snapshot.publicAccess != publicAccess) {
+                    response.addProperty("success", false);
+                    response.addProperty("error", "Snapshot not found");
+                    return response;
+                }
+            } else {
+
+                // Check if the root exists
+                GBFile dbRoot = root == null ? null : DBCommonUtils.getFile(fileTable, root);
+                if (dbRoot == null) {
+                    response.addProperty("success", false);
+                    response.addProperty("found", false);
+                    response.addProperty("error", "File not found");
+                    return response;
+                }
+
+                // Check if the root is shared if the request is unauthorized
+                if (publicAccess && !DBCommonUtils.isFileSharedByFileId(shareTable, dbRoot.getID())) {
+                    response.addProperty("success", false);
+                    response.addProperty("found", true);
+                    response.addProperty("error", "File is not shared");
+                    return response;
+                }
+
+                snapshotID = UUID.randomUUID().toString();
+                snapshot = new OpenSnapshot(new SubtreeCursor(fileTable, dbRoot), publicAccess);
+                snapshots.put(snapshotID, snapshot);
+            }
+
+            // Read the next page
+            JsonArray files = new JsonArray();
+            boolean last;
+            synchronized (snapshot) {
+                snapshot.lastUse = System.currentTimeMillis();
+                List<GBFile> page = snapshot.cursor.next(pageSize);
+                Map<Long, String> hashes = DBCommonUtils.getHashes(hashTable, page);
+                for (GBFile file : page) {
+                    files.add(toJson(file, hashes.get(file.getID())));
+                }
+                last = !snapshot.cursor.hasNext();
+            }
+
+            // The snapshot is completely read
+            if (last) {
+                snapshots.remove(snapshotID);
+            }
+
+            response.addProperty("success", true);
+            response.addProperty("snapshotID", snapshotID);
+            response.addProperty("last", last);
+            response.add("files", files);
+        } catch (InvalidParameterException ex) {
+            response.addProperty("success", false);
+            response.addProperty("found", false);
+            response.addProperty("error", "File not found");
+        } catch (SQLException ex) {
+            log.warn(ex.toString(), ex);
+            response.addProperty("success", false);
+            response.addProperty("error", ex.toString());
+        }
+        return response;
+    }
+
+    /**
+     * Create the compact json representation of a file of the snapshot
+     * @param file File to convert
+     * @param hash Content hash of the file, null if not known
+     * @return Json object
+     */
+    private JsonObject toJson (GBFile file, String hash) {
+        JsonObject json = new JsonObject();
+        json.addProperty("ID", file.getID());
+        json.addProperty("fatherID", file.getFatherID());
+        json.addProperty("name", file.getName());
+        json.addProperty("isDirectory", file.isDirectory());
+        json.addProperty("size", file.getSize());
+        json.addProperty("lastUpdateDate", file.getLastUpdateDate());
+        if (hash != null)
+            json.addProperty("hash", hash);
+        return json;
+    }
+
+    /**
+     * Remove the snapshots not used for more than {@link #SNAPSHOT_TIMEOUT} milliseconds
+     */
+    private void removeExpiredSnapshots () {
+        long now = System.currentTimeMillis();
+        Iterator<OpenSnapshot> it = snapshots.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().lastUse > SNAPSHOT_TIMEOUT) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Snapshot not completely read by the client
+     */
+    private static class OpenSnapshot {
+
+        private final SubtreeCursor cursor;
+
+        /**
+         * True if the snapshot was opened by an unauthorized client, that can't continue an authorized snapshot
+         */
+        private final boolean publicAccess;
+
+        private volatile long lastUse = System.currentTimeMillis();
+
+        private OpenSnapshot (SubtreeCursor cursor, boolean publicAccess) {
+            this.cursor = cursor;
+            this.publicAccess = publicAccess;
+        }
+    }
+}
@@ -5,11 +5,12 @@ import com.j256.ormlite.stmt.QueryBuilder;
 import it.simonedegiacomi.goboxapi.GBFile;
 import it.simonedegiacomi.goboxapi.Sharing;
 import it.simonedegiacomi.storage.StorageException;
+import it.simonedegiacomi.storage.utils.ContentHash;
 
+import java.io.IOException;
 import java.security.InvalidParameterException;
 import java.sql.SQLException;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.*;
 
 /**
  * Created on 26/05/16.
@@ -249,4 +250,113 @@ public class DBCommonUtils {
 
         return stmt.query();
     }
-}
\ No newline at end of file
+
+    /**
+     * Compute the hash of the content of the file and save it in the hash table.
+     * NOTE that the file must know his id and must be loaded with {@link it.simonedegiacomi.storage.utils.MyFileUtils#loadFileAttributes(GBFile)}
+     * @param hashTable Database hash table
+     * @param file File of the storage
+     * @return Hash of the file
+     * @throws SQLException Error while querying the database
+     * @throws IOException Error while reading the file
+     */
+    public static String storeHash (Dao<FileHash, Long> hashTable, GBFile file) throws SQLException, IOException {
+        String hash = ContentHash.getInstance().hash(file.toFile());
+        storeHash(hashTable, file, hash);
+        return hash;
+    }
+
+    /**
+     * Save the hash of the content of the file, already computed while the file was written.
+     * NOTE that the file must know his id and must be loaded with {@link it.simonedegiacomi.storage.utils.MyFileUtils#loadFileAttributes(GBFile)}
+     * @param hashTable Database hash table
+     * @param file File of the storage
+     * @param hash Hash of the current content of the file
+     * @throws SQLException Error while querying the database
+     */
+    public static void storeHash (Dao<FileHash, Long> hashTable, GBFile file, String hash) throws SQLException {
+        hashTable.createOrUpdate(new FileHash(file.getID(), hash, file.getSize(), file.getLastUpdateDate()));
+    }
+
+    /**
+     * Return the saved hash of the file, only if the file didn't change after the hash was computed
+     * @param hashTable Database hash table
+     * @param file File of the storage
+     * @return Hash, null if not known
+     * @throws SQLException Error while querying the database
+     */
+    public static String getHash (Dao<FileHash, Long> hashTable, GBFile file) throws SQLException {
+        FileHash hash = hashTable.queryForId(file.getID());
+        return isValid(hash, file) ? hash.getHash() : null;
+    }
+
+    /**
+     * Return the valid hashes of the specified files
+     * @param hashTable Database hash table
+     * @param files Files of the storage. The files must know their id
+     * @return Map with the id of the files as keys and the hashes as values. The files with an unknown hash
+     * are not in the map
+     * @throws SQLException Error while querying the database
+     */
+    public static Map<Long, String> getHashes (Dao<FileHash, Long> hashTable, List<GBFile> files) throws SQLException {
+        Map<Long, GBFile> byID = new HashMap<>();
+        for (GBFile file : files) {
+            if (!file.isDirectory())
+                byID.put(file.getID(), file);
+        }
+
+        Map<Long, String> hashes = new HashMap<>();
+        List<Long> ids = new ArrayList<>(byID.keySet());
+
+        // Query the hashes in chunks, to keep the 'in' clause small
+        for (int i = 0; i < ids.size(); i += 500) {
+            List<FileHash> rows = hashTable.queryBuilder()
+                    .where()
+                    .in("file_ID", ids.subList(i, Math.min(ids.size(), i + 500)))
+                    .query();
+            for (FileHash row : rows) {
+                if (isValid(row, byID.get(row.getFileID())))
+                    hashes.put(row.getFileID(), row.getHash());
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Return the mime of the files in the subtree of a folder, known from the database
+     * @param fileTable Database file table
+     * @param root Root of the subtree
+     * @return Map with the paths relative to the root (separated by '/') as keys and the mimes as values.
+     * The folders and the files with an unknown mime are not in the map
+     * @throws SQLException Error while querying the database
+     */
+    public static Map<String, String> getSubtreeMimes (Dao<GBFile, Long> fileTable, GBFile root) throws SQLException {
+        Map<Long, String> paths = new HashMap<>();
+        Map<String, String> mimes = new HashMap<>();
+        SubtreeCursor cursor = new SubtreeCursor(fileTable, root);
+
+        // The cursor returns each folder before its children
+        while (cursor.hasNext()) {
+            for (GBFile file : cursor.next(1000)) {
+                if (paths.isEmpty()) {
+                    paths.put(file.getID(), "");
+                    continue;
+                }
+                String father = paths.get(file.getFatherID());
+                if (father == null)
+                    continue;
+                String path = father.isEmpty() ? file.getName() : father + '/' + file.getName();
+                if (file.isDirectory()) {
+                    paths.put(file.getID(), path);
+                } else if (file.getMime() != null) {
+                    mimes.put(path, file.getMime());
+                }
+            }
+        }
+        return mimes;
+    }
+
+    private static boolean isValid (FileHash hash, GBFile file) {
+        return hash != null && file != null && hash.getSize() == file.getSize() && hash.getLastUpdateDate() == file.getLastUpdateDate();
+    }
+}
@@ -0,0 +1,64 @@
+package it.simonedegiacomi.storage.components.core.utils;
+
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+/**
+ * Hash of the content of a file of the storage. The hash is valid only while size and last update date of the
+ * file are the same of the ones saved with the hash.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+@DatabaseTable(tableName = "file_hash")
+public class FileHash {
+
+    /**
+     * ID of the file
+     */
+    @DatabaseField(id = true, columnName = "file_ID")
+    private long fileID;
+
+    /**
+     * Hex string of the SHA-256 hash
+     */
+    @DatabaseField
+    private String hash;
+
+    /**
+     * Size of the file when the hash was computed
+     */
+    @DatabaseField
+    private long size;
+
+    /**
+     * Last update date of the file when the hash was computed
+     */
+    @DatabaseField
+    private long lastUpdateDate;
+
+    public FileHash () { }
+
+    public FileHash (long fileID, String hash, long size, long lastUpdateDate) {
+        this.fileID = fileID;
+        this.hash = hash;
+        this.size = size;
+        this.lastUpdateDate = lastUpdateDate;
+    }
+
+    public long getFileID() {
+        return fileID;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastUpdateDate() {
+        return lastUpdateDate;
+    }
+}
@@ -0,0 +1,114 @@
+package it.simonedegiacomi.storage.components.core.utils;
+
+import com.j256.ormlite.dao.Dao;
+import it.simonedegiacomi.goboxapi.GBFile;
+
+import java.security.InvalidParameterException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * This cursor reads a whole subtree of the file table in pages. The tree is visited in breadth,
+ * and the children of many folders are read with a single query, so a subtree with thousands of
+ * folders is read with few queries.
+ *
+ * The first file returned is the root of the subtree. The files are returned without the path
+ * and the children list, but every file knows his id and the id of his father.
+ *
+ * This class is not thread-safe.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class SubtreeCursor {
+
+    /**
+     * Maximum number of folders whose children are read with one query
+     */
+    private static final int FOLDERS_PER_QUERY = 500;
+
+    /**
+     * Database table
+     */
+    private final Dao<GBFile, Long> table;
+
+    /**
+     * Ids of the folders that are found but not visited yet
+     */
+    private final LinkedList<Long> foldersToVisit = new LinkedList<>();
+
+    /**
+     * Files read from the database but not returned yet
+     */
+    private final LinkedList<GBFile> buffer = new LinkedList<>();
+
+    /**
+     * Create a new cursor that will read the subtree of the specified file
+     * @param table Database table
+     * @param root Root of the subtree. This file must exist in the table
+     * @throws SQLException Error while querying the database
+     */
+    public SubtreeCursor (Dao<GBFile, Long> table, GBFile root) throws SQLException {
+        this.table = table;
+
+        GBFile dbRoot = DBCommonUtils.getFile(table, root);
+        if (dbRoot == null)
+            throw new InvalidParameterException("Root of the subtree not found");
+
+        buffer.add(dbRoot);
+        if (dbRoot.isDirectory()) {
+            foldersToVisit.add(dbRoot.getID());
+        }
+    }
+
+    /**
+     * Check if there are other files to read
+     * @return True if the subtree is not completely read
+     */
+    public boolean hasNext () {
+        return !buffer.isEmpty() || !foldersToVisit.isEmpty();
+    }
+
+    /**
+     * Return the next page of files
+     * @param pageSize Maximum number of files of the page
+     * @return Next page, empty if the whole subtree was read
+     * @throws SQLException Error while querying the database
+     */
+    public List<GBFile> next (int pageSize) throws SQLException {
+
+        // Fill the buffer
+        while (buffer.size() < pageSize && !foldersToVisit.isEmpty()) {
+
+            // Take a batch of folders
+            List<Long> fathers = new ArrayList<>(Math.min(FOLDERS_PER_QUERY, foldersToVisit.size()));
+            while (fathers.size() < FOLDERS_PER_QUERY && !foldersToVisit.isEmpty()) {
+                fathers.add(foldersToVisit.poll());
+            }
+
+            // And read all their children
+            List<GBFile> children = table.queryBuilder()
+                    .where()
+                    .in("father_ID", fathers)
+                    .and()
+                    .eq("trashed", false)
+                    .query();
+
+            for (GBFile child : children) {
+                buffer.add(child);
+                if (child.isDirectory()) {
+                    foldersToVisit.add(child.getID());
+                }
+            }
+        }
+
+        // Return the page
+        List<GBFile> page = new ArrayList<>(Math.min(pageSize, buffer.size()));
+        while (page.size() < pageSize && !buffer.isEmpty()) {
+            page.add(buffer.poll());
+        }
+        return page;
+    }
+}
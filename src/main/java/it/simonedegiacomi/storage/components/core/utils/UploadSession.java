@@ -0,0 +1,174 @@
+package it.simonedegiacomi.storage.components.core.utils;
+
+import it.simonedegiacomi.goboxapi.GBFile;
+import it.simonedegiacomi.storage.utils.Ingest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Upload of a file sent in chunks. The received bytes are appended to a temporary file; when the client
+ * loses the connection it can ask the offset of the session and continue from there.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class UploadSession {
+
+    /**
+     * Size of the buffer used to write the chunks
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * ID of the session
+     */
+    private final String id;
+
+    /**
+     * File that the client is uploading, as described by the client
+     */
+    private final GBFile file;
+
+    /**
+     * Size of the whole file, -1 if not known
+     */
+    private final long size;
+
+    /**
+     * Temporary file with the received bytes
+     */
+    private final File part;
+
+    /**
+     * Bytes received and written to the disk
+     */
+    private long offset;
+
+    /**
+     * Last time that the client used the session
+     */
+    private volatile long lastActivity = System.currentTimeMillis();
+
+    /**
+     * Set when the session is committed or removed
+     */
+    private boolean closed;
+
+    /**
+     * Information of the file collected while the chunks are received. A session restored after a restart
+     * doesn't have it, because the bytes received before are not hashed
+     */
+    private final Ingest ingest;
+
+    UploadSession (String id, GBFile file, long size, File part) {
+        this.id = id;
+        this.file = file;
+        this.size = size;
+        this.part = part;
+        this.offset = part.length();
+        this.ingest = offset == 0 ? new Ingest() : null;
+    }
+
+    public String getID() {
+        return id;
+    }
+
+    public GBFile getFile() {
+        return file;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public File getPart() {
+        return part;
+    }
+
+    public synchronized long getOffset() {
+        return offset;
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * Append a chunk to the file. The chunk must start at the current offset of the session. If the stream
+     * breaks, the bytes already received are kept, so the client can continue from the new offset
+     * @param chunkOffset Offset of the chunk in the file
+     * @param in Stream of the chunk
+     * @return Offset after the chunk
+     * @throws IllegalStateException If the chunk doesn't start at the offset of the session or the session is closed
+     * @throws IOException Exception while receiving or writing the chunk
+     */
+    public synchronized long append (long chunkOffset, InputStream in) throws IOException {
+        if (closed || chunkOffset != offset)
+            throw new IllegalStateException("Chunk not expected");
+        lastActivity = System.currentTimeMillis();
+
+        try (FileChannel channel = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+
+            // Drop the bytes of a chunk not completely written before a crash
+            channel.truncate(offset);
+            channel.position(offset);
+
+            ReadableByteChannel src = Channels.newChannel(in);
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            try {
+                while (src.read(buffer) >= 0) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    if (ingest != null) {
+                        ingest.update(buffer.array(), 0, buffer.limit());
+                    }
+                    buffer.clear();
+                }
+            } finally {
+
+                // Acknowledge only what is on the disk
+                channel.force(false);
+                offset = channel.position();
+            }
+        }
+
+        if (size >= 0 && offset > size)
+            throw new IOException("Received more bytes than the size of the file");
+        return offset;
+    }
+
+    /**
+     * Return the information of the file collected while the chunks were received
+     * @return Ingest of all the received bytes, null if not available
+     */
+    public synchronized Ingest getIngest() {
+        return ingest != null && ingest.getSize() == offset ? ingest : null;
+    }
+
+    /**
+     * Close the session, so no more chunks can be written
+     * @return True if the session was open
+     */
+    synchronized boolean close () {
+        boolean wasOpen = !closed;
+        closed = true;
+        return wasOpen;
+    }
+
+    /**
+     * Check if the whole file has been received
+     * @return True if all the bytes have been received
+     */
+    public synchronized boolean isComplete () {
+        return size < 0 || offset == size;
+    }
+}
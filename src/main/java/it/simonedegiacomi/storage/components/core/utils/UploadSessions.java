@@ -0,0 +1,177 @@
+package it.simonedegiacomi.storage.components.core.utils;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import it.simonedegiacomi.goboxapi.GBFile;
+import it.simonedegiacomi.goboxapi.utils.MyGsonBuilder;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sessions of the chunked uploads. Every session has a temporary file with the received bytes and a small
+ * json file that describes it, so the uploads can be resumed also after a restart of the storage.
+ * The sessions not used for a while are removed.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class UploadSessions {
+
+    /**
+     * Logger of the class
+     */
+    private static final Logger log = Logger.getLogger(UploadSessions.class);
+
+    /**
+     * Default time after which an unused session is removed
+     */
+    public static final long DEFAULT_EXPIRATION = 24 * 60 * 60 * 1000;
+
+    private static final String PART_EXTENSION = ".part";
+
+    private static final String SESSION_EXTENSION = ".session";
+
+    private final Gson gson = MyGsonBuilder.create();
+
+    /**
+     * Folder of the temporary files
+     */
+    private final File folder;
+
+    /**
+     * Time after which an unused session is removed
+     */
+    private final long expiration;
+
+    /**
+     * Open sessions by id
+     */
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+
+    public UploadSessions (File folder, long expiration) {
+        this.folder = folder;
+        this.expiration = expiration;
+    }
+
+    /**
+     * Load the sessions left by a previous execution
+     * @throws IOException If the folder can't be created
+     */
+    public void load () throws IOException {
+        if (!folder.exists() && !folder.mkdirs())
+            throw new IOException("Unable to create the uploads folder");
+
+        File[] files = folder.listFiles();
+        if (files == null)
+            return;
+
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(SESSION_EXTENSION))
+                continue;
+
+            String id = name.substring(0, name.length() - SESSION_EXTENSION.length());
+            try {
+                String json = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+                JsonObject description = new JsonParser().parse(json).getAsJsonObject();
+                GBFile incoming = gson.fromJson(description.get("file"), GBFile.class);
+                UploadSession session = new UploadSession(id, incoming, description.get("size").getAsLong(), partOf(id));
+                sessions.put(id, session);
+            } catch (Exception ex) {
+                log.warn("Invalid upload session " + name, ex);
+                delete(id);
+            }
+        }
+        log.info(sessions.size() + " upload sessions loaded");
+        expire();
+    }
+
+    /**
+     * Create a new session
+     * @param file File that the client wants to upload
+     * @param size Size of the file, -1 if not known
+     * @return New session
+     * @throws IOException Exception while writing the session description
+     */
+    public UploadSession create (GBFile file, long size) throws IOException {
+        expire();
+
+        String id = UUID.randomUUID().toString();
+        File part = partOf(id);
+        Files.createFile(part.toPath());
+
+        JsonObject description = new JsonObject();
+        description.add("file", gson.toJsonTree(file, GBFile.class));
+        description.addProperty("size", size);
+        Files.write(new File(folder, id + SESSION_EXTENSION).toPath(), description.toString().getBytes(StandardCharsets.UTF_8));
+
+        UploadSession session = new UploadSession(id, file, size, part);
+        sessions.put(id, session);
+        return session;
+    }
+
+    /**
+     * Return an open session
+     * @param id ID of the session
+     * @return Session, null if the session doesn't exist
+     */
+    public UploadSession get (String id) {
+        return id == null ? null : sessions.get(id);
+    }
+
+    /**
+     * Close and remove a session. The temporary file is deleted, if still present
+     * @param session Session to remove
+     * @return True if this call closed the session, false if it was already closed
+     */
+    public boolean remove (UploadSession session) {
+        boolean wasOpen = session.close();
+        sessions.remove(session.getID());
+        delete(session.getID());
+        return wasOpen;
+    }
+
+    /**
+     * Close a completed session and return the temporary file with the received bytes. The caller has to move
+     * or delete the file
+     * @param session Session to commit
+     * @return Temporary file, null if the session was already closed
+     */
+    public File commit (UploadSession session) {
+        if (!session.close())
+            return null;
+        sessions.remove(session.getID());
+        new File(folder, session.getID() + SESSION_EXTENSION).delete();
+        return session.getPart();
+    }
+
+    /**
+     * Remove the sessions not used for too long
+     */
+    public void expire () {
+        long limit = System.currentTimeMillis() - expiration;
+        for (UploadSession session : sessions.values()) {
+            if (session.getLastActivity() < limit && session.getPart().lastModified() < limit) {
+                log.info("Upload session " + session.getID() + " expired");
+                remove(session);
+            }
+        }
+    }
+
+    private File partOf (String id) {
+        return new File(folder, id + PART_EXTENSION);
+    }
+
+    private void delete (String id) {
+        partOf(id).delete();
+        new File(folder, id + SESSION_EXTENSION).delete();
+    }
+}
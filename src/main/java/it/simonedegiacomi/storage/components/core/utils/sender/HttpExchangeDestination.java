@@ -18,6 +18,16 @@ public class HttpExchangeDestination implements SenderDestination {
     private final HttpExchange conn;
     private final Headers headers;
 
+    /**
+     * Length of the response body, -1 if not known. The http server writes the header by itself
+     */
+    private long contentLength = -1;
+
+    /**
+     * Set when the status line and the headers have been sent
+     */
+    private boolean headersSent;
+
     public HttpExchangeDestination (HttpExchange conn) {
 
         this.conn = conn;
@@ -25,18 +35,32 @@ public class HttpExchangeDestination implements SenderDestination {
     }
 
     @Override
-    public OutputStream getOutputStream() {
+    public OutputStream getOutputStream() throws IOException {
 
+        // The body can be written only after the headers
+        if (!headersSent) {
+            sendHeaders(200);
+        }
         return conn.getResponseBody();
     }
 
     @Override
     public void setHeader(String headerName, String headerValue) {
+
+        // With a known length the body is sent as is, instead of chunked
+        if ("Content-Length".equalsIgnoreCase(headerName)) {
+            contentLength = Long.parseLong(headerValue);
+            return;
+        }
         headers.add(headerName, headerValue);
     }
 
     @Override
     public void sendHeaders(int httpCode) throws IOException {
-        conn.sendResponseHeaders(httpCode, 0);
+
+        // For the http server 0 means a chunked body of unknown length, and -1 means no body
+        long length = contentLength < 0 ? 0 : contentLength == 0 ? -1 : contentLength;
+        conn.sendResponseHeaders(httpCode, length);
+        headersSent = true;
     }
-}
\ No newline at end of file
+}
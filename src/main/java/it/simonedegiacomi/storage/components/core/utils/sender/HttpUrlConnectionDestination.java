@@ -25,6 +25,17 @@ public class HttpUrlConnectionDestination implements SenderDestination {
 
     @Override
     public void setHeader(String headerName, String headerValue) {
+
+        // With a known length the body is streamed, otherwise the connection keeps the whole body in memory
+        if ("Content-Length".equalsIgnoreCase(headerName)) {
+            conn.setFixedLengthStreamingMode(Long.parseLong(headerValue));
+            return;
+        }
+
+        // The length of an encoded body is not known, so it's streamed in chunks
+        if ("Content-Encoding".equalsIgnoreCase(headerName)) {
+            conn.setChunkedStreamingMode(0);
+        }
         conn.addRequestProperty(headerName, headerValue);
     }
 
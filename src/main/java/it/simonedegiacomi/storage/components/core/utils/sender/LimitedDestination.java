@@ -0,0 +1,51 @@
+package it.simonedegiacomi.storage.components.core.utils.sender;
+
+import it.simonedegiacomi.utils.Bandwidth;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Destination that limits the bandwidth used to write to another destination. While a limit is set,
+ * the channel of the destination is not exposed, so all the data goes through the limited stream.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class LimitedDestination implements SenderDestination {
+
+    private final SenderDestination destination;
+
+    private final Bandwidth.Transfer transfer;
+
+    private OutputStream limited;
+
+    public LimitedDestination (SenderDestination destination) {
+        this.destination = destination;
+        this.transfer = Bandwidth.getInstance().newTransfer(Bandwidth.Direction.UPLOAD);
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if (limited == null) {
+            limited = transfer.limit(destination.getOutputStream());
+        }
+        return limited;
+    }
+
+    @Override
+    public WritableByteChannel getChannel() throws IOException {
+        return Bandwidth.getInstance().isLimited(Bandwidth.Direction.UPLOAD) ? null : destination.getChannel();
+    }
+
+    @Override
+    public void setHeader(String headerName, String headerValue) {
+        destination.setHeader(headerName, headerValue);
+    }
+
+    @Override
+    public void sendHeaders(int httpCode) throws IOException {
+        destination.sendHeaders(httpCode);
+    }
+}
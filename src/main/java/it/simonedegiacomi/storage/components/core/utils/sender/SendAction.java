@@ -1,8 +1,10 @@
 package it.simonedegiacomi.storage.components.core.utils.sender;
 
-import com.google.common.collect.Range;
 import it.simonedegiacomi.goboxapi.GBFile;
 
+import java.util.Collections;
+import java.util.Map;
+
 /**
  * Created on 27/05/16.
  * @author Degiacomi Simone
@@ -13,7 +15,20 @@ public class SendAction {
 
     private boolean thumbnail;
 
-    private Range<Long> range;
+    /**
+     * Value of the Range header, null to send the whole file
+     */
+    private String range;
+
+    /**
+     * Set when the file is sent compressed with gzip. Only the whole files are compressed
+     */
+    private boolean gzip;
+
+    /**
+     * Mime of the files of the folder to send, by path relative to the folder
+     */
+    private Map<String, String> mimes = Collections.emptyMap();
 
     public GBFile getFileToSend() {
         return fileToSend;
@@ -31,11 +46,27 @@ public class SendAction {
         this.thumbnail = thumbnail;
     }
 
-    public Range<Long> getRange() {
+    public String getRange() {
         return range;
     }
 
-    public void setRange(Range<Long> range) {
+    public void setRange(String range) {
         this.range = range;
     }
+
+    public Map<String, String> getMimes() {
+        return mimes;
+    }
+
+    public void setMimes(Map<String, String> mimes) {
+        this.mimes = mimes;
+    }
+
+    public boolean isGzip() {
+        return gzip;
+    }
+
+    public void setGzip(boolean gzip) {
+        this.gzip = gzip;
+    }
 }
\ No newline at end of file
@@ -1,16 +1,28 @@
 package it.simonedegiacomi.storage.components.core.utils.sender;
 
 import com.google.common.collect.Range;
-import com.google.common.io.ByteStreams;
 import it.simonedegiacomi.goboxapi.GBFile;
 import it.simonedegiacomi.storage.components.core.utils.sender.preview.CachedPreviewer;
 import it.simonedegiacomi.storage.components.core.utils.sender.preview.Previewer;
+import it.simonedegiacomi.storage.utils.MyRange;
 import it.simonedegiacomi.storage.utils.MyZip;
-import org.h2.store.LimitInputStream;
 
 import java.io.*;
-import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * This class sends files and preview, writing the content to the http
@@ -26,6 +38,37 @@ public class Sender {
      */
     private Previewer previewer = new CachedPreviewer();
 
+    /**
+     * Size of the buffer used to send the files to the destinations without a channel
+     */
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Threads that compress the folders, null if the folders are compressed by the sending thread
+     */
+    private final ExecutorService compressors;
+
+    public Sender () {
+        this(1);
+    }
+
+    /**
+     * Create a new sender
+     * @param zipThreads Number of threads shared by all the folder downloads to compress the archives
+     */
+    public Sender (int zipThreads) {
+        if (zipThreads > 1) {
+            AtomicInteger count = new AtomicInteger();
+            compressors = Executors.newFixedThreadPool(zipThreads, runnable -> {
+                Thread thread = new Thread(runnable, "Zip-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            compressors = null;
+        }
+    }
+
     /**
      * Send the file using the specific action
      * @param action Action
@@ -34,9 +77,12 @@ public class Sender {
      */
     public void send (SendAction action, SenderDestination dst) throws IOException {
 
+        // Apply the bandwidth limits
+        dst = new LimitedDestination(dst);
+
         // Check if it's a folder
         if (action.getFileToSend().isDirectory()) {
-            sendDirectory(action.getFileToSend(), dst);
+            sendDirectory(action.getFileToSend(), action.getMimes(), dst);
             return;
         }
 
@@ -47,26 +93,29 @@ public class Sender {
         }
 
         // Just send the file
-        sendFile(action.getFileToSend(), dst, action.getRange());
+        sendFile(action.getFileToSend(), dst, action.getRange(), action.isGzip());
     }
 
     /**
      * Send the zipped version of a directory.
      * NOTE that this method doesn't close the connection stream
      * @param file Directory to send
+     * @param mimes Mime of the files of the directory, by path relative to the directory. The files whose
+     *              content is already compressed are stored in the archive without compressing them again
      * @param dst Connection which body will be filled with the zipped folder
      * @throws IOException Exception while zipping the folder or writing to the connection output stream
      */
-    public void sendDirectory (GBFile file, SenderDestination dst) throws IOException {
+    public void sendDirectory (GBFile file, Map<String, String> mimes, SenderDestination dst) throws IOException {
 
         // Set the type of response
         dst.setHeader("Content-Type", "application/zip");
+        dst.setHeader("Content-Disposition", "attachment; filename=\"" + file.getName().replace("\"", "") + ".zip\"");
 
         // Get the output stream
         OutputStream rawStreamToServer = dst.getOutputStream();
 
         /// Zip and send the folder
-        MyZip.zipFolder(file.toFile(), rawStreamToServer);
+        MyZip.zipFolder(file.toFile(), rawStreamToServer, mimes, compressors);
     }
 
     /**
@@ -94,7 +143,7 @@ public class Sender {
 
     /**
      * Send the specified file.
-     * This method is just an alias of {@link #sendFile(GBFile, HttpURLConnection, Range) sendFile}.
+     * This method is just an alias of {@link #sendFile(GBFile, SenderDestination, String) sendFile}.
      * NOTE that this method doesn't close the connection stream
      * @param file File to send
      * @param dst Connection of which body will be filled with the file
@@ -107,15 +156,29 @@ public class Sender {
     }
 
     /**
-     * Send the specified file. If the range is not a null value, only the specified range of file
-     * will be sent.
+     * Send the specified file. If the range is not a null value, only the specified ranges of the file
+     * will be sent: a single range as a 206 response, more ranges as a multipart/byteranges response.
+     * If no range can be satisfied the response is a 416, if the range is not valid the whole file is sent.
      * NOTE that this method doesn't close the connection stream
      * @param gbFile File to send
      * @param dst Connection to send
-     * @param range Range of bytes of the file
+     * @param range Value of the Range header
      * @throws IOException Exception while sending the file
      */
-    public void sendFile (GBFile gbFile, SenderDestination dst, Range<Long> range) throws IOException {
+    public void sendFile (GBFile gbFile, SenderDestination dst, String range) throws IOException {
+        sendFile(gbFile, dst, range, false);
+    }
+
+    /**
+     * Send the specified file, like {@link #sendFile(GBFile, SenderDestination, String)}.
+     * NOTE that this method doesn't close the connection stream
+     * @param gbFile File to send
+     * @param dst Connection to send
+     * @param range Value of the Range header
+     * @param gzip True to compress the whole file with gzip. The ranges are never compressed
+     * @throws IOException Exception while sending the file
+     */
+    public void sendFile (GBFile gbFile, SenderDestination dst, String range, boolean gzip) throws IOException {
         if (gbFile == null || !gbFile.toFile().exists())
             throw new InvalidParameterException("file not valid");
 
@@ -126,47 +189,163 @@ public class Sender {
         if (file.isDirectory())
             throw new InvalidParameterException("This method cannot send a directory");
 
-        // If the file knows his mime, specify it
-        if(gbFile.getMime() !=  null)
-            dst.setHeader("Content-Type", gbFile.getMime());
-
-        // Open the file
-        InputStream fromFile = new FileInputStream(file);
-
-        // If the range is specified
-        if (range != null) {
-
-            long start = Math.max(range.lowerEndpoint(), 0);
-            long end = Math.min(range.upperEndpoint(),file.length());
+        try (FileChannel fromFile = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long length = fromFile.size();
+            List<Range<Long>> ranges = range == null ? null : MyRange.parse(range, length);
+
+            // No range satisfiable
+            if (ranges != null && ranges.isEmpty()) {
+                dst.setHeader("Content-Range", "bytes */" + length);
+                dst.sendHeaders(416);
+                return;
+            }
+
+            dst.setHeader("Accept-Ranges", "bytes");
+
+            // Send the whole file
+            if (ranges == null) {
+
+                // If the file knows his mime, specify it
+                if(gbFile.getMime() !=  null)
+                    dst.setHeader("Content-Type", gbFile.getMime());
+
+                // The length of the compressed file is not known
+                if (gzip) {
+                    dst.setHeader("Content-Encoding", "gzip");
+                    dst.sendHeaders(200);
+                    sendCompressed(fromFile, length, dst);
+                    return;
+                }
+
+                dst.setHeader("Content-Length", String.valueOf(length));
+                dst.sendHeaders(200);
+                transfer(fromFile, 0, length, dst);
+                return;
+            }
+
+            // Send a single range
+            if (ranges.size() == 1) {
+                Range<Long> only = ranges.get(0);
+                if(gbFile.getMime() !=  null)
+                    dst.setHeader("Content-Type", gbFile.getMime());
+                dst.setHeader("Content-Length", String.valueOf(only.upperEndpoint() - only.lowerEndpoint()));
+                dst.setHeader("Content-Range", MyRange.contentRange(only, length));
+                dst.sendHeaders(206);
+                transfer(fromFile, only.lowerEndpoint(), only.upperEndpoint(), dst);
+                return;
+            }
+
+            sendRanges(fromFile, gbFile.getMime(), ranges, length, dst);
+        }
+    }
 
-            // Create a new limited input stream
-            LimitInputStream limitInputStream = new LimitInputStream(fromFile, end);
+    /**
+     * Send more ranges of the file in a multipart/byteranges response
+     * @param fromFile Channel of the file
+     * @param mime Mime of the file, can be null
+     * @param ranges Ranges to send
+     * @param length Length of the file
+     * @param dst Destination
+     * @throws IOException Exception while reading the file or writing to the destination
+     */
+    private void sendRanges (FileChannel fromFile, String mime, List<Range<Long>> ranges, long length, SenderDestination dst) throws IOException {
+        String boundary = UUID.randomUUID().toString().replace("-", "");
+
+        // Prepare the headers of the parts, so the length of the whole response is known
+        List<byte[]> partHeaders = new ArrayList<>(ranges.size());
+        long contentLength = 0;
+        for (Range<Long> range : ranges) {
+            StringBuilder header = new StringBuilder("\r\n--").append(boundary).append("\r\n");
+            if (mime != null) {
+                header.append("Content-Type: ").append(mime).append("\r\n");
+            }
+            header.append("Content-Range: ").append(MyRange.contentRange(range, length)).append("\r\n\r\n");
+            byte[] bytes = header.toString().getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(bytes);
+            contentLength += bytes.length + range.upperEndpoint() - range.lowerEndpoint();
+        }
+        byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        contentLength += end.length;
 
-            // Skip the first bytes
-            limitInputStream.skip(start);
+        dst.setHeader("Content-Type", "multipart/byteranges; boundary=" + boundary);
+        dst.setHeader("Content-Length", String.valueOf(contentLength));
+        dst.sendHeaders(206);
 
-            fromFile = limitInputStream;
+        OutputStream out = dst.getOutputStream();
+        for (int i = 0; i < ranges.size(); i++) {
+            out.write(partHeaders.get(i));
+            transfer(fromFile, ranges.get(i).lowerEndpoint(), ranges.get(i).upperEndpoint(), dst);
+        }
+        out.write(end);
+    }
 
-            // Set the http header
-            dst.setHeader("Content-Length", String.valueOf(end - start));
-            dst.setHeader("Content-Range", "bytes " + range.lowerEndpoint() + "-" + (end - 1) + "/" + file.length());
+    /**
+     * Send a part of the file. If the destination has a channel the file channel writes directly to it,
+     * otherwise the file is read with positional reads (so a range doesn't need to skip the first bytes)
+     * in a big buffer, that is written to the destination stream with few big writes
+     * @param fromFile Channel of the file
+     * @param start First byte to send
+     * @param end End of the part to send (excluded)
+     * @param dst Destination
+     * @throws IOException Exception while reading the file or writing to the destination
+     */
+    private void transfer (FileChannel fromFile, long start, long end, SenderDestination dst) throws IOException {
+        long position = start;
+
+        WritableByteChannel channel = dst.getChannel();
+        if (channel != null) {
+            while (position < end) {
+                long sent = fromFile.transferTo(position, end - position, channel);
+                if (sent <= 0 && position >= fromFile.size())
+                    throw new EOFException("File truncated while sending");
+                position += sent;
+            }
+            return;
+        }
 
-            dst.sendHeaders(206);
-        } else {
-            // If the file know his length, specify it
-            if(gbFile.getSize() > 0)
-                dst.setHeader("Content-Length", String.valueOf(file.length()));
+        copy(fromFile, start, end, dst.getOutputStream());
+    }
 
-            dst.sendHeaders(200);
+    private void copy (FileChannel fromFile, long start, long end, OutputStream out) throws IOException {
+        long position = start;
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(end - start, 1)));
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int read = fromFile.read(buffer, position);
+            if (read < 0)
+                throw new EOFException("File truncated while sending");
+            out.write(buffer.array(), 0, read);
+            position += read;
         }
+    }
 
-        // Get the output stream to the server
-        OutputStream rawStreamToServer = dst.getOutputStream();
-
-        // Send the file
-        ByteStreams.copy(fromFile, rawStreamToServer);
+    /**
+     * Send the whole file compressed with gzip. The fastest level is used, because the goal is to send
+     * less bytes without slowing down the transfer
+     * @param fromFile Channel of the file
+     * @param length Length of the file
+     * @param dst Destination
+     * @throws IOException Exception while reading the file or writing to the destination
+     */
+    private void sendCompressed (FileChannel fromFile, long length, SenderDestination dst) throws IOException {
+        GZIPOutputStream gzip = new GZIPOutputStream(dst.getOutputStream(), BUFFER_SIZE) {
+            {
+                def.setLevel(Deflater.BEST_SPEED);
+            }
+        };
+        copy(fromFile, 0, length, gzip);
+
+        // Finish the gzip stream without closing the destination
+        gzip.finish();
+    }
 
-        // Close the file stream
-        fromFile.close();
+    /**
+     * Stop the threads that compress the folders
+     */
+    public void shutdown () {
+        if (compressors != null) {
+            compressors.shutdownNow();
+        }
     }
-}
\ No newline at end of file
+}
@@ -2,6 +2,7 @@ package it.simonedegiacomi.storage.components.core.utils.sender;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * Ubject used by the sender to send files and preview
@@ -16,6 +17,15 @@ public interface SenderDestination {
      */
     OutputStream getOutputStream() throws IOException;
 
+    /**
+     * Return a channel to the destination that the file channels can write to without copying the data
+     * through the heap (like a socket channel). Destinations that are only streams return null
+     * @return Channel to the destination or null
+     */
+    default WritableByteChannel getChannel() throws IOException {
+        return null;
+    }
+
     /**
      * Send the specified header to the destination
      * @param headerName Name of the header
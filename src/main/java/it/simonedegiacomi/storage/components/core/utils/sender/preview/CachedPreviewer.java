@@ -3,7 +3,7 @@ package it.simonedegiacomi.storage.components.core.utils.sender.preview;
 import com.google.common.io.Files;
 import it.simonedegiacomi.configuration.Config;
 import it.simonedegiacomi.goboxapi.GBFile;
-import org.apache.tika.Tika;
+import it.simonedegiacomi.storage.utils.MimeDetector;
 
 import java.io.File;
 import java.io.FileOutputStream;
@@ -29,11 +29,6 @@ public class CachedPreviewer extends Previewer {
      */
     private final SimplePreviewer previewer = new SimplePreviewer();
 
-    /**
-     * Used to read the kind of cached preview
-     */
-    private final Tika tika = new Tika();
-
     /**
      * Object used to synchronize the method eraseAll
      * TODO: evaluate if is needed
@@ -74,7 +69,7 @@ public class CachedPreviewer extends Previewer {
     public String getPreviewKind(GBFile file) {
         if(isCached(file)) {
             try {
-                return tika.detect(new File(CACHE_PATH + file.getID()));
+                return MimeDetector.getInstance().detect(new File(CACHE_PATH + file.getID()));
             } catch (IOException ex) {
                 ex.printStackTrace();
             }
@@ -0,0 +1,201 @@
+package it.simonedegiacomi.storage.utils;
+
+import com.google.common.hash.Hashing;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Signature of a file used by the delta transfer. The file is divided in blocks of the same size (the last one
+ * can be shorter) and for every block the signature keeps a weak rolling checksum and a strong hash.
+ * Who has the new version of the file uses the signature of the old version to find the blocks that didn't
+ * change, and sends only the other bytes (see {@link DeltaEncoder}).
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class BlockSignature {
+
+    /**
+     * Minimum size of a block
+     */
+    public static final int MIN_BLOCK_SIZE = 2 * 1024;
+
+    /**
+     * Maximum size of a block
+     */
+    public static final int MAX_BLOCK_SIZE = 128 * 1024;
+
+    /**
+     * Length of the strong hash of a block
+     */
+    static final int STRONG_LENGTH = 16;
+
+    private final int blockSize;
+
+    private final long fileLength;
+
+    private final int[] weak;
+
+    private final byte[][] strong;
+
+    /**
+     * Blocks by weak checksum
+     */
+    private Map<Integer, List<Integer>> byWeak;
+
+    private BlockSignature (int blockSize, long fileLength, int blocks) {
+        this.blockSize = blockSize;
+        this.fileLength = fileLength;
+        this.weak = new int[blocks];
+        this.strong = new byte[blocks][];
+    }
+
+    /**
+     * Choose the block size for a file. Like rsync, the size grows with the square root of the file length,
+     * so the number of blocks (and the size of the signature) stays small also for big files
+     * @param fileLength Length of the file
+     * @return Block size
+     */
+    public static int blockSizeFor (long fileLength) {
+        long size = (long) Math.sqrt(fileLength) & ~7L;
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+    }
+
+    /**
+     * Compute the signature of a file
+     * @param file File
+     * @param blockSize Size of the blocks
+     * @return Signature of the file
+     * @throws IOException Exception while reading the file
+     */
+    public static BlockSignature compute (File file, int blockSize) throws IOException {
+        long length = file.length();
+        int blocks = (int) ((length + blockSize - 1) / blockSize);
+        BlockSignature signature = new BlockSignature(blockSize, length, blocks);
+
+        byte[] buffer = new byte[blockSize];
+        InputStream in = new BufferedInputStream(new FileInputStream(file), Math.max(blockSize, 64 * 1024));
+        try {
+            for (int i = 0; i < blocks; i++) {
+                int read = readBlock(in, buffer);
+                signature.weak[i] = RollingChecksum.of(buffer, 0, read);
+                signature.strong[i] = strongHash(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return signature;
+    }
+
+    private static int readBlock (InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int read = in.read(buffer, total, buffer.length - total);
+            if (read < 0)
+                break;
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Compute the strong hash of a block
+     */
+    static byte[] strongHash (byte[] data, int offset, int length) {
+        return Hashing.md5().hashBytes(data, offset, length).asBytes();
+    }
+
+    /**
+     * Write the signature to the stream
+     * @param out Destination stream
+     * @throws IOException Exception while writing the stream
+     */
+    public void write (OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(blockSize);
+        data.writeLong(fileLength);
+        data.writeInt(weak.length);
+        for (int i = 0; i < weak.length; i++) {
+            data.writeInt(weak[i]);
+            data.write(strong[i]);
+        }
+        data.flush();
+    }
+
+    /**
+     * Read a signature from the stream
+     * @param in Source stream
+     * @return Signature
+     * @throws IOException Exception while reading the stream or invalid signature
+     */
+    public static BlockSignature read (InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        int blockSize = data.readInt();
+        long fileLength = data.readLong();
+        int blocks = data.readInt();
+        if (blockSize <= 0 || blocks < 0 || (long) blocks * blockSize < fileLength)
+            throw new IOException("Invalid signature");
+
+        BlockSignature signature = new BlockSignature(blockSize, fileLength, blocks);
+        for (int i = 0; i < blocks; i++) {
+            signature.weak[i] = data.readInt();
+            signature.strong[i] = new byte[STRONG_LENGTH];
+            data.readFully(signature.strong[i]);
+        }
+        return signature;
+    }
+
+    public int getBlockSize () {
+        return blockSize;
+    }
+
+    public long getFileLength () {
+        return fileLength;
+    }
+
+    public int getBlockCount () {
+        return weak.length;
+    }
+
+    /**
+     * Return the length of a block
+     * @param index Index of the block
+     * @return Length of the block
+     */
+    public int getBlockLength (int index) {
+        return (int) Math.min(blockSize, fileLength - (long) index * blockSize);
+    }
+
+    /**
+     * Find a block with the same content of the specified data
+     * @param weakChecksum Rolling checksum of the data
+     * @param data Data
+     * @param offset Start of the data
+     * @param length Length of the data
+     * @return Index of the block, -1 if not found
+     */
+    int find (int weakChecksum, byte[] data, int offset, int length) {
+        if (byWeak == null) {
+            byWeak = new HashMap<>();
+            for (int i = 0; i < weak.length; i++) {
+                byWeak.computeIfAbsent(weak[i], w -> new ArrayList<>(1)).add(i);
+            }
+        }
+
+        List<Integer> candidates = byWeak.get(weakChecksum);
+        if (candidates == null)
+            return -1;
+
+        byte[] hash = null;
+        for (int index : candidates) {
+            if (getBlockLength(index) != length)
+                continue;
+            if (hash == null)
+                hash = strongHash(data, offset, length);
+            if (Arrays.equals(hash, strong[index]))
+                return index;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,102 @@
+package it.simonedegiacomi.storage.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * This class decides if a file is worth compressing before sending it. The mime type decides for the
+ * known formats; for the others a sample of the file is read and its entropy estimates how much the
+ * content can be compressed.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class Compressibility {
+
+    /**
+     * Files smaller than this are sent as they are, the compression wouldn't save a packet
+     */
+    private static final long MIN_SIZE = 1024;
+
+    /**
+     * Size of each of the samples read from the start and the middle of the file
+     */
+    private static final int SAMPLE_SIZE = 32 * 1024;
+
+    /**
+     * Entropy (bits per byte) over which the content is considered already compressed or random
+     */
+    private static final double MAX_ENTROPY = 7.5;
+
+    /**
+     * Check if a file should be compressed
+     * @param file File to check
+     * @param mime Mime of the file, can be null
+     * @return True if compressing the file would reduce the sent bytes
+     * @throws IOException Error while reading the sample
+     */
+    public static boolean isWorthCompressing (File file, String mime) throws IOException {
+        if (file.length() < MIN_SIZE || MyZip.isCompressed(mime, file.getName()))
+            return false;
+        if (mime != null && isText(mime.toLowerCase(Locale.ROOT)))
+            return true;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer sample = ByteBuffer.allocate((int) Math.min(2 * SAMPLE_SIZE, size));
+
+            // Read the start of the file, and the middle if the file is big enough
+            sample.limit(Math.min(SAMPLE_SIZE, sample.capacity()));
+            read(channel, sample, 0);
+            if (sample.capacity() > SAMPLE_SIZE) {
+                sample.limit(sample.capacity());
+                read(channel, sample, size / 2);
+            }
+            return entropy(sample.array(), sample.position()) < MAX_ENTROPY;
+        }
+    }
+
+    private static boolean isText (String mime) {
+        return mime.startsWith("text/") || mime.endsWith("+xml") || mime.endsWith("+json")
+                || mime.equals("application/json") || mime.equals("application/xml") || mime.equals("application/javascript")
+                || mime.equals("application/x-sh") || mime.equals("application/sql");
+    }
+
+    private static void read (FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                return;
+            position += read;
+        }
+    }
+
+    /**
+     * Compute the Shannon entropy of the bytes
+     * @param data Data
+     * @param length Number of bytes to consider
+     * @return Entropy in bits per byte, between 0 and 8
+     */
+    public static double entropy (byte[] data, int length) {
+        if (length <= 0)
+            return 0;
+
+        int[] counts = new int[256];
+        for (int i = 0; i < length; i++) {
+            counts[data[i] & 0xFF]++;
+        }
+
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / length;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2);
+    }
+}
@@ -0,0 +1,107 @@
+package it.simonedegiacomi.storage.utils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The ContentHash computes the SHA-256 hash of the content of the files. The file is read in chunks, so the
+ * memory used doesn't depend on the size of the file. The hashes are cached by inode (when the file system
+ * exposes it, path otherwise), size and last modified date, so a file is read again only when it changes.
+ *
+ * This class is thread-safe.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class ContentHash {
+
+    /**
+     * Size of the chunks read from the file
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Maximum number of cached hashes
+     */
+    private static final int CACHE_SIZE = 100000;
+
+    private static final ContentHash instance = new ContentHash();
+
+    /**
+     * Cached hashes
+     */
+    private final Cache<FileVersion, String> cache = CacheBuilder.newBuilder().maximumSize(CACHE_SIZE).build();
+
+    private ContentHash () { }
+
+    public static ContentHash getInstance () {
+        return instance;
+    }
+
+    /**
+     * Return the hash of the content of the file, reading the file only if the hash is not cached
+     * @param file File to hash. It must not be a directory
+     * @return Hex string of the hash
+     * @throws IOException Exception while reading the file
+     */
+    public String hash (File file) throws IOException {
+        FileVersion key = FileVersion.byInode(file);
+        String hash = cache.getIfPresent(key);
+        if (hash != null)
+            return hash;
+
+        Hasher hasher = newHasher();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        InputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                hasher.putBytes(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        hash = hasher.hash().toString();
+
+        // Cache the hash only if the file didn't change while it was read
+        if (key.equals(FileVersion.byInode(file)))
+            cache.put(key, hash);
+        return hash;
+    }
+
+    /**
+     * Return the cached hash of the file, without reading the file
+     * @param file File
+     * @return Hash, null if not cached
+     * @throws IOException Exception while reading the attributes of the file
+     */
+    public String cached (File file) throws IOException {
+        return cache.getIfPresent(FileVersion.byInode(file));
+    }
+
+    /**
+     * Save the hash of a file computed while the file was written or read by someone else
+     * @param file File
+     * @param hash Hash of the current content of the file
+     * @throws IOException Exception while reading the attributes of the file
+     */
+    public void put (File file, String hash) throws IOException {
+        cache.put(FileVersion.byInode(file), hash);
+    }
+
+    /**
+     * Create a new hasher that computes the same hash of this class. Use it to compute the hash of a stream
+     * while the stream is used
+     * @return New hasher
+     */
+    public static Hasher newHasher () {
+        return Hashing.sha256().newHasher();
+    }
+}
@@ -0,0 +1,238 @@
+package it.simonedegiacomi.storage.utils;
+
+import com.google.common.hash.Hasher;
+
+import java.io.*;
+
+/**
+ * The DeltaEncoder compares a file with the signature of an old version and writes a delta: a list of
+ * instructions that rebuild the new version from the old one, copying the blocks that didn't change and adding
+ * the new bytes. The file is read once, as a stream, and the blocks are searched at every offset with the
+ * rolling checksum, so also the blocks moved by an insertion are found.
+ *
+ * Format of the delta:
+ * - COPY: byte 1, int index of the first block, int number of blocks;
+ * - DATA: byte 2, int length, bytes;
+ * - END: byte 0, SHA-256 of the new version (UTF string), used to verify the result.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class DeltaEncoder {
+
+    static final int END = 0;
+
+    static final int COPY = 1;
+
+    static final int DATA = 2;
+
+    /**
+     * Maximum length of a DATA instruction
+     */
+    private static final int MAX_LITERAL = 64 * 1024;
+
+    /**
+     * Size of the reads from the file
+     */
+    private static final int READ_SIZE = 64 * 1024;
+
+    private final BlockSignature signature;
+
+    private final int blockSize;
+
+    private final byte[] buffer;
+
+    private DataOutputStream out;
+
+    private Hasher hasher;
+
+    private InputStream in;
+
+    /**
+     * Start of the bytes not yet sent
+     */
+    private int literalStart;
+
+    /**
+     * Start of the current window
+     */
+    private int pos;
+
+    /**
+     * End of the valid data in the buffer
+     */
+    private int end;
+
+    private boolean eof;
+
+    /**
+     * Pending copy, merged with the next copies of the following blocks
+     */
+    private int copyStart = -1;
+
+    private int copyCount;
+
+    /**
+     * Bytes of the new version that are sent in the delta
+     */
+    private long literalBytes;
+
+    /**
+     * Hash of the new version, known when the delta is written
+     */
+    private String hash;
+
+    public DeltaEncoder (BlockSignature signature) {
+        this.signature = signature;
+        this.blockSize = signature.getBlockSize();
+        this.buffer = new byte[MAX_LITERAL + 2 * blockSize + READ_SIZE];
+    }
+
+    /**
+     * Write the delta between the old version and the new file
+     * @param file New version of the file
+     * @param dst Stream where the delta is written
+     * @return Number of bytes of the new version that are in the delta, so not copied from the old version
+     * @throws IOException Exception while reading the file or writing the delta
+     */
+    public long encode (File file, OutputStream dst) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(dst));
+        hasher = ContentHash.newHasher();
+        in = new FileInputStream(file);
+        literalStart = pos = end = 0;
+        eof = false;
+        literalBytes = 0;
+        try {
+            encode();
+        } finally {
+            in.close();
+        }
+
+        hash = hasher.hash().toString();
+        out.writeByte(END);
+        out.writeUTF(hash);
+        out.flush();
+        return literalBytes;
+    }
+
+    /**
+     * Return the hash of the new version, the same written at the end of the delta
+     * @return Hash computed by the last {@link #encode(File, OutputStream)}, null if no delta has been written
+     */
+    public String getHash () {
+        return hash;
+    }
+
+    private void encode () throws IOException {
+        RollingChecksum checksum = new RollingChecksum();
+        boolean valid = false;
+
+        while (true) {
+
+            // Be sure that the window and the next byte are in the buffer
+            if (end - pos <= blockSize && !eof) {
+                fill();
+            }
+            if (end - pos < blockSize)
+                break;
+
+            if (!valid) {
+                checksum.reset(buffer, pos, blockSize);
+                valid = true;
+            }
+
+            int block = signature.find(checksum.getValue(), buffer, pos, blockSize);
+            if (block >= 0) {
+
+                // The block didn't change
+                flushLiteral();
+                copy(block);
+                pos += blockSize;
+                literalStart = pos;
+                valid = false;
+                continue;
+            }
+
+            if (pos - literalStart >= MAX_LITERAL) {
+                flushLiteral();
+            }
+
+            // Move the window forward by one byte
+            if (pos + blockSize < end) {
+                checksum.roll(buffer[pos], buffer[pos + blockSize]);
+            } else {
+                valid = false;
+            }
+            pos++;
+        }
+
+        // The tail of the file may be the last short block of the old version
+        int tail = end - pos;
+        int lastBlock = signature.getBlockCount() - 1;
+        if (tail > 0 && lastBlock >= 0 && tail < blockSize && signature.getBlockLength(lastBlock) == tail
+                && signature.find(RollingChecksum.of(buffer, pos, tail), buffer, pos, tail) == lastBlock) {
+            flushLiteral();
+            copy(lastBlock);
+            pos = end;
+            literalStart = pos;
+        }
+
+        // Send the rest
+        pos = end;
+        flushLiteral();
+        flushCopy();
+    }
+
+    /**
+     * Read more data from the file, moving the bytes not yet sent to the start of the buffer
+     */
+    private void fill () throws IOException {
+        if (literalStart > 0) {
+            System.arraycopy(buffer, literalStart, buffer, 0, end - literalStart);
+            pos -= literalStart;
+            end -= literalStart;
+            literalStart = 0;
+        }
+
+        while (end < buffer.length && end - pos <= blockSize) {
+            int read = in.read(buffer, end, Math.min(READ_SIZE, buffer.length - end));
+            if (read < 0) {
+                eof = true;
+                return;
+            }
+            hasher.putBytes(buffer, end, read);
+            end += read;
+        }
+    }
+
+    private void copy (int block) throws IOException {
+        if (copyStart >= 0 && copyStart + copyCount == block) {
+            copyCount++;
+            return;
+        }
+        flushCopy();
+        copyStart = block;
+        copyCount = 1;
+    }
+
+    private void flushCopy () throws IOException {
+        if (copyStart < 0)
+            return;
+        out.writeByte(COPY);
+        out.writeInt(copyStart);
+        out.writeInt(copyCount);
+        copyStart = -1;
+    }
+
+    private void flushLiteral () throws IOException {
+        int length = pos - literalStart;
+        if (length <= 0)
+            return;
+        flushCopy();
+        out.writeByte(DATA);
+        out.writeInt(length);
+        out.write(buffer, literalStart, length);
+        literalBytes += length;
+        literalStart = pos;
+    }
+}
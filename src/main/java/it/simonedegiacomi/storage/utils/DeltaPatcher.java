@@ -0,0 +1,130 @@
+package it.simonedegiacomi.storage.utils;
+
+import com.google.common.hash.Hasher;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The DeltaPatcher rebuilds the new version of a file from the old version and a delta created by
+ * the {@link DeltaEncoder}. The new version is written to a temporary file next to the old one and then
+ * renamed, so the old version is never half patched: a failed or interrupted transfer leaves it unchanged.
+ * The temporary file is in the same folder of the file, so the callers that patch a watched file need to
+ * ignore also {@link #tempFileOf(File)}.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class DeltaPatcher {
+
+    /**
+     * Size of the copy buffer
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Apply the delta to the file, replacing it with the new version
+     * @param file Old version of the file, replaced with the new version
+     * @param blockSize Size of the blocks of the signature used to create the delta
+     * @param delta Stream of the delta
+     * @return Hash of the new version
+     * @throws IOException Exception while reading the delta, invalid delta or the result doesn't match the hash
+     */
+    public static String patch (File file, int blockSize, InputStream delta) throws IOException {
+        File temp = tempFileOf(file);
+        try {
+            String hash;
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), BUFFER_SIZE);
+            try {
+                hash = patch(file, blockSize, delta, out);
+            } finally {
+                out.close();
+            }
+
+            // Replace the old version
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            ContentHash.getInstance().put(file, hash);
+            return hash;
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Return the temporary file where the new version of the file is written
+     * @param file File to patch
+     * @return Temporary file
+     */
+    public static File tempFileOf (File file) {
+        return new File(file.getParentFile(), '.' + file.getName() + ".delta");
+    }
+
+    /**
+     * Write the new version of the file to the stream
+     * @param base Old version of the file
+     * @param blockSize Size of the blocks of the signature used to create the delta
+     * @param delta Stream of the delta
+     * @param dst Destination of the new version
+     * @return Hash of the new version
+     * @throws IOException Exception while reading the delta, invalid delta or the result doesn't match the hash
+     */
+    public static String patch (File base, int blockSize, InputStream delta, OutputStream dst) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(delta, BUFFER_SIZE));
+        Hasher hasher = ContentHash.newHasher();
+        byte[] buffer = new byte[BUFFER_SIZE];
+
+        RandomAccessFile old = new RandomAccessFile(base, "r");
+        try {
+            long oldLength = old.length();
+            while (true) {
+                int op = in.readUnsignedByte();
+                switch (op) {
+                    case DeltaEncoder.COPY: {
+                        long start = (long) in.readInt() * blockSize;
+                        long length = Math.min((long) in.readInt() * blockSize, oldLength - start);
+                        if (start < 0 || length < 0)
+                            throw new IOException("Invalid delta");
+
+                        old.seek(start);
+                        while (length > 0) {
+                            int read = old.read(buffer, 0, (int) Math.min(buffer.length, length));
+                            if (read < 0)
+                                throw new IOException("Old version changed while patching");
+                            dst.write(buffer, 0, read);
+                            hasher.putBytes(buffer, 0, read);
+                            length -= read;
+                        }
+                        break;
+                    }
+                    case DeltaEncoder.DATA: {
+                        int length = in.readInt();
+                        if (length < 0)
+                            throw new IOException("Invalid delta");
+
+                        while (length > 0) {
+                            int read = in.read(buffer, 0, Math.min(buffer.length, length));
+                            if (read < 0)
+                                throw new EOFException("Delta truncated");
+                            dst.write(buffer, 0, read);
+                            hasher.putBytes(buffer, 0, read);
+                            length -= read;
+                        }
+                        break;
+                    }
+                    case DeltaEncoder.END: {
+                        String expected = in.readUTF();
+                        String hash = hasher.hash().toString();
+                        if (!hash.equals(expected))
+                            throw new IOException("Patched file doesn't match the expected hash");
+                        return hash;
+                    }
+                    default:
+                        throw new IOException("Invalid delta instruction " + op);
+                }
+            }
+        } finally {
+            old.close();
+        }
+    }
+}
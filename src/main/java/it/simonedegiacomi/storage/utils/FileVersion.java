@@ -0,0 +1,66 @@
+package it.simonedegiacomi.storage.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+
+/**
+ * Identity of a version of a file: the file, its size and its last modified date. Used as key of the
+ * caches of the information read from the content of the files.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class FileVersion {
+
+    private final Object id;
+
+    private final long size;
+
+    private final long lastModified;
+
+    private FileVersion (Object id, long size, long lastModified) {
+        this.id = id;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Return the version of the file identified by its inode (when the file system exposes it, path otherwise),
+     * so the version doesn't change when the file is moved
+     * @param file File
+     * @return Current version of the file
+     * @throws IOException Exception while reading the attributes of the file
+     */
+    public static FileVersion byInode (File file) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        Object id = attrs.fileKey() != null ? attrs.fileKey() : file.getAbsolutePath();
+        return new FileVersion(id, attrs.size(), attrs.lastModifiedTime().toMillis());
+    }
+
+    /**
+     * Return the version of the file identified by its path
+     * @param file File
+     * @return Current version of the file
+     * @throws IOException Exception while reading the attributes of the file
+     */
+    public static FileVersion byPath (File file) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        return new FileVersion(file.getAbsolutePath(), attrs.size(), attrs.lastModifiedTime().toMillis());
+    }
+
+    @Override
+    public boolean equals (Object o) {
+        if (!(o instanceof FileVersion))
+            return false;
+        FileVersion other = (FileVersion) o;
+        return id.equals(other.id) && size == other.size && lastModified == other.lastModified;
+    }
+
+    @Override
+    public int hashCode () {
+        return Objects.hash(id, size, lastModified);
+    }
+}
@@ -0,0 +1,105 @@
+package it.simonedegiacomi.storage.utils;
+
+import com.google.common.hash.Hasher;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * The Ingest collects the information of a file while the file is received: the content hash, the size and
+ * the first bytes, used to detect the mime. So the file doesn't need to be read again after it's written.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class Ingest {
+
+    /**
+     * Number of bytes kept to detect the mime
+     */
+    private static final int HEAD_SIZE = 64 * 1024;
+
+    private final Hasher hasher = ContentHash.newHasher();
+
+    private final byte[] head = new byte[HEAD_SIZE];
+
+    private int headLength;
+
+    private long size;
+
+    /**
+     * Computed hash. A hasher can compute the hash only once
+     */
+    private String hash;
+
+    /**
+     * Add the next bytes of the file
+     * @param data Data
+     * @param off Offset of the bytes
+     * @param len Number of bytes
+     */
+    public void update (byte[] data, int off, int len) {
+        if (hash != null)
+            throw new IllegalStateException("Hash already computed");
+        hasher.putBytes(data, off, len);
+        size += len;
+        if (headLength < HEAD_SIZE) {
+            int copy = Math.min(len, HEAD_SIZE - headLength);
+            System.arraycopy(data, off, head, headLength, copy);
+            headLength += copy;
+        }
+    }
+
+    /**
+     * Wrap a stream, so the written bytes are added to the ingest
+     * @param out Stream to the file
+     * @return Stream that updates the ingest
+     */
+    public OutputStream wrap (OutputStream out) {
+        return new FilterOutputStream(out) {
+
+            @Override
+            public void write (int b) throws IOException {
+                out.write(b);
+                update(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write (byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                update(b, off, len);
+            }
+        };
+    }
+
+    /**
+     * Return the number of bytes added
+     * @return Size of the file
+     */
+    public long getSize () {
+        return size;
+    }
+
+    /**
+     * Return the hash of the file, the same computed by {@link ContentHash}. No more bytes can be added
+     * after this call
+     * @return Hex string of the hash
+     */
+    public String getHash () {
+        if (hash == null) {
+            hash = hasher.hash().toString();
+        }
+        return hash;
+    }
+
+    /**
+     * Detect the mime of the file from its first bytes and its name
+     * @param name Name of the file
+     * @return Mime
+     */
+    public String detectMime (String name) {
+        return MimeDetector.getInstance().detect(Arrays.copyOf(head, headLength), name);
+    }
+}
@@ -0,0 +1,81 @@
+package it.simonedegiacomi.storage.utils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.tika.Tika;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The MimeDetector detects the mime of the files with a single Tika instance, that is expensive to create
+ * and is thread-safe. The results are cached by path, size and last modified date (the name is part of
+ * the detection), so a file is sniffed again only when it changes.
+ *
+ * This class is thread-safe.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class MimeDetector {
+
+    /**
+     * Maximum number of cached mimes
+     */
+    private static final int CACHE_SIZE = 100000;
+
+    private static final MimeDetector instance = new MimeDetector();
+
+    private final Tika tika = new Tika();
+
+    /**
+     * Cached mimes
+     */
+    private final Cache<FileVersion, String> cache = CacheBuilder.newBuilder().maximumSize(CACHE_SIZE).build();
+
+    private MimeDetector () { }
+
+    public static MimeDetector getInstance () {
+        return instance;
+    }
+
+    /**
+     * Return the mime of the file, reading the file only if the mime is not cached
+     * @param file File
+     * @return Mime
+     * @throws IOException Exception while reading the file
+     */
+    public String detect (File file) throws IOException {
+        FileVersion version = FileVersion.byPath(file);
+        String mime = cache.getIfPresent(version);
+        if (mime != null)
+            return mime;
+
+        mime = tika.detect(file);
+
+        // Cache the mime only if the file didn't change while it was read
+        if (version.equals(FileVersion.byPath(file)))
+            cache.put(version, mime);
+        return mime;
+    }
+
+    /**
+     * Detect the mime from the first bytes of a file
+     * @param head First bytes of the file
+     * @param name Name of the file
+     * @return Mime
+     */
+    public String detect (byte[] head, String name) {
+        return tika.detect(head, name);
+    }
+
+    /**
+     * Save the mime of a file detected while the file was written
+     * @param file File
+     * @param mime Mime of the current content of the file
+     * @throws IOException Exception while reading the attributes of the file
+     */
+    public void put (File file, String mime) throws IOException {
+        cache.put(FileVersion.byPath(file), mime);
+    }
+}
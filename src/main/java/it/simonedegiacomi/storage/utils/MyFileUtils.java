@@ -2,11 +2,12 @@ package it.simonedegiacomi.storage.utils;
 
 import it.simonedegiacomi.configuration.Config;
 import it.simonedegiacomi.goboxapi.GBFile;
-import org.apache.tika.Tika;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.security.InvalidParameterException;
 
@@ -91,6 +92,16 @@ public class MyFileUtils {
      * @throws IOException
      */
     public static void loadFileAttributes (GBFile file) throws IOException {
+        loadFileAttributes(file, null);
+    }
+
+    /**
+     * Load the file attributes from the disk to the object
+     * @param file File to fill with the information
+     * @param mime Mime of the file if already known, null to detect it reading the file
+     * @throws IOException
+     */
+    public static void loadFileAttributes (GBFile file, String mime) throws IOException {
         if(file == null || !file.toFile().exists())
             throw new InvalidParameterException("file not valid");
 
@@ -98,11 +109,16 @@ public class MyFileUtils {
         BasicFileAttributes attrs = Files.readAttributes(file.toFile().toPath(), BasicFileAttributes.class);
         file.setSize(attrs.size());
         file.setCreationDate(attrs.creationTime().toMillis());
-        file.setLastUpdateDate(attrs.lastAccessTime().toMillis());
+        file.setLastUpdateDate(attrs.lastModifiedTime().toMillis());
 
         // If is not a directory load the mime
         if(!file.isDirectory()) {
-            file.setMime(new Tika().detect(file.toFile()));
+            if (mime != null) {
+                MimeDetector.getInstance().put(file.toFile(), mime);
+            } else {
+                mime = MimeDetector.getInstance().detect(file.toFile());
+            }
+            file.setMime(mime);
         }
     }
 
@@ -136,4 +152,19 @@ public class MyFileUtils {
             file.setPrefix(oldPrefix);
         }
     }
+
+    /**
+     * Move a file replacing the destination. The move is atomic when the source and the destination are on
+     * the same file system, so nobody will ever see a half written destination
+     * @param src File to move
+     * @param dst Destination
+     * @throws IOException
+     */
+    public static void replace (File src, File dst) throws IOException {
+        try {
+            Files.move(src.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(src.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
 }
\ No newline at end of file
@@ -2,16 +2,124 @@ package it.simonedegiacomi.storage.utils;
 
 import com.google.common.collect.Range;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
+ * Parser of the http Range header. The ranges are returned as closed-open ranges of bytes,
+ * already resolved against the length of the file.
+ *
  * Created on 11/04/16.
  * @author Degiacomi Simone
  */
 public class MyRange {
 
-    public static Range parse (String rangeStr) {
-        String pieces[] = rangeStr.substring(rangeStr.indexOf("=") + 1).split("-");
-        long low = Long.parseLong(pieces[0]);
-        long high = pieces.length == 2 ? Long.parseLong(pieces[1]) : Long.MAX_VALUE;
-        return Range.open(low, high);
+    /**
+     * Maximum number of ranges served in a single response. Requests with more (not overlapping) ranges
+     * are served with the whole file
+     */
+    public static final int MAX_RANGES = 64;
+
+    private static final String UNIT = "bytes=";
+
+    /**
+     * Parse the value of a Range header. Supports the ranges 'a-b', 'a-' and the suffix ranges '-n',
+     * also in a list separated by commas
+     * @param rangeStr Value of the header
+     * @param length Length of the file
+     * @return Ranges of bytes [start, end) in the order of the request (overlapping ranges are merged),
+     * an empty list if no range can be satisfied, or null if the header is not valid and must be ignored
+     */
+    public static List<Range<Long>> parse (String rangeStr, long length) {
+        if (rangeStr == null || !rangeStr.regionMatches(true, 0, UNIT, 0, UNIT.length()))
+            return null;
+
+        List<Range<Long>> ranges = new ArrayList<>();
+        try {
+            for (String spec : rangeStr.substring(UNIT.length()).split(",")) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if (dash < 0)
+                    return null;
+
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                long start, end;
+
+                if (first.isEmpty()) {
+
+                    // Suffix range: the last n bytes
+                    long suffix = Long.parseLong(last);
+                    if (suffix < 0)
+                        return null;
+                    start = Math.max(length - suffix, 0);
+                    end = length;
+                } else {
+                    start = Long.parseLong(first);
+                    end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last) + 1;
+                    if (start < 0 || end <= start)
+                        return null;
+                    end = Math.min(end, length);
+                }
+
+                // Skip the ranges that can't be satisfied
+                if (start < end) {
+                    ranges.add(Range.closedOpen(start, end));
+                }
+            }
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+
+        if (ranges.size() > 1 && overlap(ranges)) {
+            ranges = merge(ranges);
+        }
+        return ranges.size() > MAX_RANGES ? null : ranges;
+    }
+
+    private static boolean overlap (List<Range<Long>> ranges) {
+        List<Range<Long>> sorted = sort(ranges);
+        for (int i = 1; i < sorted.size(); i++) {
+            if (sorted.get(i).lowerEndpoint() <= sorted.get(i - 1).upperEndpoint())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Merge the overlapping and adjacent ranges
+     */
+    private static List<Range<Long>> merge (List<Range<Long>> ranges) {
+        List<Range<Long>> merged = new ArrayList<>();
+        Range<Long> current = null;
+        for (Range<Long> range : sort(ranges)) {
+            if (current != null && range.lowerEndpoint() <= current.upperEndpoint()) {
+                current = current.span(range);
+            } else {
+                if (current != null) {
+                    merged.add(current);
+                }
+                current = range;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+
+    private static List<Range<Long>> sort (List<Range<Long>> ranges) {
+        List<Range<Long>> sorted = new ArrayList<>(ranges);
+        Collections.sort(sorted, (a, b) -> Long.compare(a.lowerEndpoint(), b.lowerEndpoint()));
+        return sorted;
+    }
+
+    /**
+     * Format a range as the value of the Content-Range header
+     * @param range Range of bytes [start, end)
+     * @param length Length of the file
+     * @return Value of the header
+     */
+    public static String contentRange (Range<Long> range, long length) {
+        return "bytes " + range.lowerEndpoint() + "-" + (range.upperEndpoint() - 1) + "/" + length;
     }
 }
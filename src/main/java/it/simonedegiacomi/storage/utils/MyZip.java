@@ -1,39 +1,403 @@
 package it.simonedegiacomi.storage.utils;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.OutputStream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 /**
+ * Create the zip archives of the folders, streaming them to the destination. The files whose content is
+ * already compressed (images, videos, archives...) are stored as they are, because compressing them again
+ * only wastes cpu; the other files are deflated.
+ *
+ * When a pool of threads is given, the files are deflated in blocks on the pool, like pigz does: every
+ * block is compressed on its own using the end of the previous block as dictionary, and ends with a sync
+ * flush, so the compressed blocks written one after the other form a single deflate stream.
+ *
  * Created by simone on 15.gif/02/16.
  */
 public class MyZip {
 
+    /**
+     * Size of the buffers used to read the files
+     */
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Size of the blocks of the files compressed in parallel
+     */
+    private static final int BLOCK_SIZE = 128 * 1024;
+
+    /**
+     * Size of the deflate window, that is the size of the dictionary of every block
+     */
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    /**
+     * Maximum number of blocks that are read but not written yet, that limits the memory used by an archive
+     */
+    private static final int MAX_PENDING_BLOCKS = 32;
+
+    /**
+     * Mime types whose content is already compressed
+     */
+    private static final Set<String> COMPRESSED_MIMES = new HashSet<>(Arrays.asList(
+            "application/zip", "application/gzip", "application/x-gzip", "application/x-bzip2", "application/x-xz",
+            "application/x-7z-compressed", "application/x-rar-compressed", "application/vnd.rar",
+            "application/java-archive", "application/epub+zip", "application/x-compress", "application/zstd"));
+
+    /**
+     * Mime types of images, audio and videos that are not compressed
+     */
+    private static final Set<String> UNCOMPRESSED_MEDIA = new HashSet<>(Arrays.asList(
+            "image/bmp", "image/x-ms-bmp", "image/svg+xml", "image/tiff", "image/x-portable-pixmap",
+            "audio/wav", "audio/x-wav", "audio/vnd.wave", "audio/aiff", "audio/x-aiff"));
+
+    /**
+     * Extensions of the files already compressed, used when the mime is not known
+     */
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "mp3", "m4a", "aac", "ogg", "opus", "flac",
+            "mp4", "m4v", "mkv", "mov", "avi", "webm", "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst",
+            "jar", "apk", "docx", "xlsx", "pptx", "odt", "ods", "odp", "epub"));
+
     public static void zipFolder (File folderToZip, OutputStream rawOutput) throws IOException {
-        ZipOutputStream zip = new ZipOutputStream(rawOutput);
+        zipFolder(folderToZip, rawOutput, Collections.emptyMap());
+    }
+
+    public static void zipFolder (File folderToZip, OutputStream rawOutput, Map<String, String> mimes) throws IOException {
+        zipFolder(folderToZip, rawOutput, mimes, null);
+    }
+
+    /**
+     * Zip the folder, writing the archive to the stream. The entries are named with the path relative to the
+     * parent of the folder, so the archive contains the folder.
+     * NOTE that this method doesn't close the stream
+     * @param folderToZip Folder to zip
+     * @param rawOutput Destination of the archive
+     * @param mimes Mime of the files, by path relative to the folder. The files not in the map are recognized
+     *              by the extension
+     * @param compressors Pool that deflates the blocks of the files, null to deflate them on this thread
+     * @throws IOException Exception while reading the files or writing the archive
+     */
+    public static void zipFolder (File folderToZip, OutputStream rawOutput, Map<String, String> mimes, ExecutorService compressors) throws IOException {
+        ZipStreamWriter zip = new ZipStreamWriter(rawOutput);
+        Pipeline pipeline = compressors == null ? null : new Pipeline(zip, compressors);
+        Path root = folderToZip.toPath();
+        String rootName = folderToZip.getName() + '/';
+        byte[] buffer = new byte[BUFFER_SIZE];
+
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    String name = rootName + relative(root, dir);
+                    long time = attrs.lastModifiedTime().toMillis();
+                    if (pipeline != null) {
+                        pipeline.add(z -> z.putDirectory(name, time));
+                    } else {
+                        zip.putDirectory(name, time);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (!attrs.isRegularFile())
+                        return FileVisitResult.CONTINUE;
+
+                    String path = relative(root, file);
+                    String name = rootName + path;
+                    long time = attrs.lastModifiedTime().toMillis();
+                    if (isCompressed(mimes.get(path), file.getFileName().toString())) {
+
+                        // The stored files are only copied, so they don't need the pool
+                        if (pipeline != null) {
+                            pipeline.drain();
+                        }
+                        addStored(zip, name, time, file, buffer);
+                    } else if (pipeline != null) {
+                        pipeline.addDeflated(name, time, file, attrs.size());
+                    } else {
+                        addDeflated(zip, name, time, file, attrs.size(), buffer);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
 
-        addR(zip, "", folderToZip);
+            if (pipeline != null) {
+                pipeline.drain();
+            }
+        } finally {
+            if (pipeline != null) {
+                pipeline.cancel();
+            }
+        }
+
+        zip.finish();
+    }
+
+    private static String relative (Path root, Path path) {
+        StringBuilder name = new StringBuilder();
+        for (Path piece : root.relativize(path)) {
+            if (piece.toString().isEmpty())
+                continue;
+            if (name.length() > 0) {
+                name.append('/');
+            }
+            name.append(piece.toString());
+        }
+        return name.toString();
+    }
+
+    /**
+     * Check if the content of a file is already compressed
+     * @param mime Mime of the file, can be null
+     * @param name Name of the file
+     * @return True if compressing the file would not make it smaller
+     */
+    public static boolean isCompressed (String mime, String name) {
+        if (mime != null) {
+            mime = mime.toLowerCase(Locale.ROOT);
+            int parameters = mime.indexOf(';');
+            if (parameters >= 0) {
+                mime = mime.substring(0, parameters).trim();
+            }
+            if (COMPRESSED_MIMES.contains(mime))
+                return true;
+            if (mime.startsWith("image/") || mime.startsWith("audio/") || mime.startsWith("video/"))
+                return !UNCOMPRESSED_MEDIA.contains(mime);
+            if (mime.startsWith("application/vnd.openxmlformats-") || mime.startsWith("application/vnd.oasis.opendocument."))
+                return true;
+            if (!mime.equals("application/octet-stream"))
+                return false;
+        }
 
-        zip.close();
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
     }
 
-    private static void addR (ZipOutputStream zip, String father, File file) throws IOException {
-        if(file.isFile()) {
-            zip.putNextEntry(new ZipEntry(father + '/' + file.getName()));
-            FileInputStream fileStream = new FileInputStream(file);
-            byte buffer[] = new byte[1024];
-            int read = 0;
-            while((read = fileStream.read(buffer)) > 0)
+    /**
+     * Add a file without compressing it. The file is read twice: first to compute the CRC, that a stored entry
+     * needs before the data, then to copy it
+     */
+    private static void addStored (ZipStreamWriter zip, String name, long time, Path file, byte[] buffer) throws IOException {
+        CRC32 crc = new CRC32();
+        long size = 0;
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+                size += read;
+            }
+        }
+
+        zip.putStored(name, time, size, crc.getValue());
+        long copied = 0;
+        CRC32 check = new CRC32();
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while (copied < size && (read = in.read(buffer, 0, (int) Math.min(buffer.length, size - copied))) > 0) {
+                check.update(buffer, 0, read);
                 zip.write(buffer, 0, read);
-            zip.closeEntry();
-            zip.flush();
-            return;
+                copied += read;
+            }
+        }
+        zip.closeEntry(check.getValue(), copied, copied);
+    }
+
+    private static void addDeflated (ZipStreamWriter zip, String name, long time, Path file, long expectedSize, byte[] buffer) throws IOException {
+        zip.putDeflated(name, time, expectedSize);
+
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        byte[] output = new byte[BUFFER_SIZE];
+        CRC32 crc = new CRC32();
+        long size = 0;
+        long compressed = 0;
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+                size += read;
+                deflater.setInput(buffer, 0, read);
+                while (!deflater.needsInput()) {
+                    int length = deflater.deflate(output);
+                    zip.write(output, 0, length);
+                    compressed += length;
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                int length = deflater.deflate(output);
+                zip.write(output, 0, length);
+                compressed += length;
+            }
+        } finally {
+            deflater.end();
         }
-        for(File child : file.listFiles())
-            addR(zip, father + '/' + file.getName(), child);
+        zip.closeEntry(crc.getValue(), compressed, size);
     }
 
+    /**
+     * Compress a block of a file as a piece of a raw deflate stream
+     * @param data Data of the block
+     * @param dictionary Previous block of the file, null for the first block
+     * @param last True if this is the last block of the file, that finishes the stream
+     * @return Compressed block
+     */
+    private static byte[] deflateBlock (byte[] data, byte[] dictionary, boolean last) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary, dictionary.length - DICTIONARY_SIZE, DICTIONARY_SIZE);
+            }
+            deflater.setInput(data);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+            byte[] buffer = new byte[BLOCK_SIZE / 2];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+            } else {
+
+                // Flush to a byte boundary, so the next block can be appended
+                int length;
+                do {
+                    length = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    out.write(buffer, 0, length);
+                } while (length == buffer.length);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Read a block of a file
+     * @return Block, shorter than the block size only at the end of the file
+     */
+    private static byte[] readBlock (InputStream in) throws IOException {
+        byte[] block = new byte[BLOCK_SIZE];
+        int filled = 0;
+        int read;
+        while (filled < block.length && (read = in.read(block, filled, block.length - filled)) > 0) {
+            filled += read;
+        }
+        return filled == block.length ? block : Arrays.copyOf(block, filled);
+    }
+
+    /**
+     * Piece of the archive to write, once it's ready
+     */
+    private interface Step {
+
+        void write (ZipStreamWriter zip) throws IOException;
+    }
+
+    /**
+     * Queue of the pieces of the archive, that are prepared on the pool and written in order
+     */
+    private static class Pipeline {
+
+        private final ZipStreamWriter zip;
+
+        private final ExecutorService compressors;
+
+        private final ArrayDeque<Future<Step>> pending = new ArrayDeque<>();
+
+        private Pipeline (ZipStreamWriter zip, ExecutorService compressors) {
+            this.zip = zip;
+            this.compressors = compressors;
+        }
+
+        private void add (Step step) throws IOException {
+            add(CompletableFuture.completedFuture(step));
+        }
+
+        private void add (Future<Step> step) throws IOException {
+            pending.add(step);
+            while (pending.size() > MAX_PENDING_BLOCKS) {
+                writeNext();
+            }
+        }
+
+        /**
+         * Read the file and queue the compression of its blocks. The CRC is computed here, because it
+         * has to follow the order of the data
+         */
+        private void addDeflated (String name, long time, Path file, long expectedSize) throws IOException {
+            add(z -> z.putDeflated(name, time, expectedSize));
+
+            CRC32 crc = new CRC32();
+            long size = 0;
+            long[] compressed = { 0 };
+            try (InputStream in = Files.newInputStream(file)) {
+                byte[] previous = null;
+                byte[] block = readBlock(in);
+                while (true) {
+                    byte[] next = block.length == BLOCK_SIZE ? readBlock(in) : null;
+                    boolean last = next == null || next.length == 0;
+                    crc.update(block);
+                    size += block.length;
+
+                    byte[] data = block;
+                    byte[] dictionary = previous;
+                    add(compressors.submit(() -> {
+                        byte[] deflated = deflateBlock(data, dictionary, last);
+                        return (Step) z -> {
+                            z.write(deflated, 0, deflated.length);
+                            compressed[0] += deflated.length;
+                        };
+                    }));
+
+                    if (last)
+                        break;
+                    previous = block;
+                    block = next;
+                }
+            }
+
+            long checksum = crc.getValue();
+            long total = size;
+            add(z -> z.closeEntry(checksum, compressed[0], total));
+        }
+
+        private void writeNext () throws IOException {
+            try {
+                pending.poll().get().write(zip);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Archive interrupted");
+            } catch (ExecutionException ex) {
+                throw new IOException("Compression failed", ex.getCause());
+            }
+        }
+
+        /**
+         * Write all the queued pieces
+         */
+        private void drain () throws IOException {
+            while (!pending.isEmpty()) {
+                writeNext();
+            }
+        }
+
+        /**
+         * Cancel the pieces not written yet
+         */
+        private void cancel () {
+            pending.forEach(step -> step.cancel(true));
+            pending.clear();
+        }
+    }
 }
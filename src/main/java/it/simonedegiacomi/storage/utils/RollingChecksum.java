@@ -0,0 +1,67 @@
+package it.simonedegiacomi.storage.utils;
+
+/**
+ * Weak rolling checksum used by the delta transfer (the same of rsync). The checksum of a window can be
+ * moved forward by one byte in constant time, so every offset of a file can be checked against the blocks
+ * of a signature.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class RollingChecksum {
+
+    private int a;
+
+    private int b;
+
+    private int length;
+
+    /**
+     * Compute the checksum of a new window
+     * @param data Data
+     * @param offset Start of the window
+     * @param length Length of the window
+     */
+    public void reset (byte[] data, int offset, int length) {
+        a = 0;
+        b = 0;
+        this.length = length;
+        for (int i = 0; i < length; i++) {
+            int value = data[offset + i] & 0xff;
+            a += value;
+            b += (length - i) * value;
+        }
+    }
+
+    /**
+     * Move the window forward by one byte
+     * @param out Byte that leaves the window
+     * @param in Byte that enters the window
+     */
+    public void roll (byte out, byte in) {
+        int outValue = out & 0xff;
+        a += (in & 0xff) - outValue;
+        b += a - length * outValue;
+    }
+
+    /**
+     * Return the checksum of the current window
+     * @return Checksum
+     */
+    public int getValue () {
+        return (a & 0xffff) | (b << 16);
+    }
+
+    /**
+     * Compute the checksum of a block
+     * @param data Data
+     * @param offset Start of the block
+     * @param length Length of the block
+     * @return Checksum
+     */
+    public static int of (byte[] data, int offset, int length) {
+        RollingChecksum checksum = new RollingChecksum();
+        checksum.reset(data, offset, length);
+        return checksum.getValue();
+    }
+}
@@ -0,0 +1,350 @@
+package it.simonedegiacomi.storage.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Writer of zip archives to a stream. Unlike the {@link java.util.zip.ZipOutputStream}, the caller writes
+ * the data of the entries already compressed, so the entries can be compressed elsewhere (for example on
+ * more threads) and the stored entries don't need a buffer. The archives bigger than 4GB are written with
+ * the zip64 extensions.
+ *
+ * An entry is opened with {@link #putStored(String, long, long, long)}, {@link #putDeflated(String, long, long)}
+ * or {@link #putDirectory(String, long)}, its data is written with {@link #write(byte[], int, int)} and then
+ * it's closed with {@link #closeEntry(long, long, long)}.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class ZipStreamWriter {
+
+    public static final int STORED = 0;
+
+    public static final int DEFLATED = 8;
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+
+    private static final int DATA_DESCRIPTOR = 0x08074b50;
+
+    private static final int CENTRAL_HEADER = 0x02014b50;
+
+    private static final int END = 0x06054b50;
+
+    private static final int ZIP64_END = 0x06064b50;
+
+    private static final int ZIP64_LOCATOR = 0x07064b50;
+
+    private static final int ZIP64_EXTRA = 0x0001;
+
+    private static final long LIMIT = 0xFFFFFFFFL;
+
+    /**
+     * Sizes are written after the data
+     */
+    private static final int FLAG_DESCRIPTOR = 1 << 3;
+
+    /**
+     * Names are UTF-8
+     */
+    private static final int FLAG_UTF8 = 1 << 11;
+
+    private final OutputStream out;
+
+    /**
+     * Bytes written to the stream
+     */
+    private long written;
+
+    /**
+     * Entries already written, used to write the central directory
+     */
+    private final List<Entry> entries = new ArrayList<>();
+
+    /**
+     * Entry that is being written
+     */
+    private Entry current;
+
+    private final byte[] header = new byte[64];
+
+    public ZipStreamWriter (OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Start a stored entry. The caller must write exactly 'size' bytes
+     * @param name Name of the entry
+     * @param time Last modification date
+     * @param size Size of the data
+     * @param crc CRC-32 of the data
+     * @throws IOException
+     */
+    public void putStored (String name, long time, long size, long crc) throws IOException {
+        Entry entry = new Entry(name, time, STORED, 0);
+        entry.crc = crc;
+        entry.size = entry.compressedSize = size;
+        entry.zip64 = size >= LIMIT;
+        putEntry(entry);
+    }
+
+    /**
+     * Start a deflated entry. The caller writes the raw deflated data, then closes the entry with the sizes
+     * @param name Name of the entry
+     * @param time Last modification date
+     * @param expectedSize Expected uncompressed size, used to decide if the zip64 sizes are needed
+     * @throws IOException
+     */
+    public void putDeflated (String name, long time, long expectedSize) throws IOException {
+        Entry entry = new Entry(name, time, DEFLATED, FLAG_DESCRIPTOR);
+
+        // The compressed data can be a bit bigger than the original data
+        entry.zip64 = expectedSize >= LIMIT - (LIMIT >> 6);
+        putEntry(entry);
+    }
+
+    /**
+     * Add an empty directory
+     * @param name Name of the directory, ending with a '/'
+     * @param time Last modification date
+     * @throws IOException
+     */
+    public void putDirectory (String name, long time) throws IOException {
+        putStored(name.endsWith("/") ? name : name + '/', time, 0, 0);
+        closeEntry(0, 0, 0);
+    }
+
+    private void putEntry (Entry entry) throws IOException {
+        if (current != null)
+            throw new IllegalStateException("Previous entry not closed");
+        current = entry;
+        entry.offset = written;
+
+        boolean descriptor = (entry.flags & FLAG_DESCRIPTOR) != 0;
+        byte[] extra = new byte[0];
+        if (entry.zip64) {
+            extra = zip64Extra(descriptor ? 0 : entry.size, descriptor ? 0 : entry.compressedSize, -1);
+        }
+
+        int p = 0;
+        p = putInt(header, p, LOCAL_HEADER);
+        p = putShort(header, p, entry.zip64 ? 45 : 20);
+        p = putShort(header, p, entry.flags);
+        p = putShort(header, p, entry.method);
+        p = putInt(header, p, (int) entry.dosTime);
+        p = putInt(header, p, descriptor ? 0 : (int) entry.crc);
+        p = putInt(header, p, descriptor ? 0 : entry.zip64 ? (int) LIMIT : (int) entry.compressedSize);
+        p = putInt(header, p, descriptor ? 0 : entry.zip64 ? (int) LIMIT : (int) entry.size);
+        p = putShort(header, p, entry.name.length);
+        p = putShort(header, p, extra.length);
+        writeRaw(header, 0, p);
+        writeRaw(entry.name, 0, entry.name.length);
+        writeRaw(extra, 0, extra.length);
+        entry.dataStart = written;
+    }
+
+    /**
+     * Write data of the current entry: the raw bytes for the stored entries, the deflated bytes for the
+     * deflated entries
+     * @param data Data
+     * @param off Offset
+     * @param len Length
+     * @throws IOException
+     */
+    public void write (byte[] data, int off, int len) throws IOException {
+        if (current == null)
+            throw new IllegalStateException("No open entry");
+        writeRaw(data, off, len);
+    }
+
+    /**
+     * Close the current entry
+     * @param crc CRC-32 of the uncompressed data
+     * @param compressedSize Size of the written data
+     * @param size Size of the uncompressed data
+     * @throws IOException If the data written doesn't match the sizes
+     */
+    public void closeEntry (long crc, long compressedSize, long size) throws IOException {
+        Entry entry = current;
+        if (entry == null)
+            throw new IllegalStateException("No open entry");
+        if (written - entry.dataStart != compressedSize)
+            throw new IOException("Wrong size of the entry " + new String(entry.name, StandardCharsets.UTF_8));
+
+        if ((entry.flags & FLAG_DESCRIPTOR) != 0) {
+            if (!entry.zip64 && (compressedSize >= LIMIT || size >= LIMIT))
+                throw new IOException("Entry too big for the expected size");
+            entry.crc = crc;
+            entry.compressedSize = compressedSize;
+            entry.size = size;
+
+            int p = 0;
+            p = putInt(header, p, DATA_DESCRIPTOR);
+            p = putInt(header, p, (int) crc);
+            if (entry.zip64) {
+                p = putLong(header, p, compressedSize);
+                p = putLong(header, p, size);
+            } else {
+                p = putInt(header, p, (int) compressedSize);
+                p = putInt(header, p, (int) size);
+            }
+            writeRaw(header, 0, p);
+        } else if (entry.crc != crc || entry.size != size) {
+            throw new IOException("Stored entry changed while writing");
+        }
+
+        entries.add(entry);
+        current = null;
+    }
+
+    /**
+     * Write the central directory. The underlying stream is flushed but not closed
+     * @throws IOException
+     */
+    public void finish () throws IOException {
+        if (current != null)
+            throw new IllegalStateException("Entry not closed");
+
+        long directoryStart = written;
+        for (Entry entry : entries) {
+            boolean bigSize = entry.size >= LIMIT || entry.compressedSize >= LIMIT;
+            boolean bigOffset = entry.offset >= LIMIT;
+            byte[] extra = new byte[0];
+            if (bigSize || bigOffset) {
+                extra = zip64Extra(bigSize ? entry.size : -1, bigSize ? entry.compressedSize : -1, bigOffset ? entry.offset : -1);
+            }
+
+            int p = 0;
+            p = putInt(header, p, CENTRAL_HEADER);
+            p = putShort(header, p, 45);
+            p = putShort(header, p, entry.zip64 || extra.length > 0 ? 45 : 20);
+            p = putShort(header, p, entry.flags);
+            p = putShort(header, p, entry.method);
+            p = putInt(header, p, (int) entry.dosTime);
+            p = putInt(header, p, (int) entry.crc);
+            p = putInt(header, p, bigSize ? (int) LIMIT : (int) entry.compressedSize);
+            p = putInt(header, p, bigSize ? (int) LIMIT : (int) entry.size);
+            p = putShort(header, p, entry.name.length);
+            p = putShort(header, p, extra.length);
+            p = putShort(header, p, 0);
+            p = putShort(header, p, 0);
+            p = putShort(header, p, 0);
+            p = putInt(header, p, 0);
+            p = putInt(header, p, bigOffset ? (int) LIMIT : (int) entry.offset);
+            writeRaw(header, 0, p);
+            writeRaw(entry.name, 0, entry.name.length);
+            writeRaw(extra, 0, extra.length);
+        }
+        long directorySize = written - directoryStart;
+
+        boolean zip64 = entries.size() >= 0xFFFF || directoryStart >= LIMIT || directorySize >= LIMIT;
+        if (zip64) {
+            long zip64End = written;
+            int p = 0;
+            p = putInt(header, p, ZIP64_END);
+            p = putLong(header, p, 44);
+            p = putShort(header, p, 45);
+            p = putShort(header, p, 45);
+            p = putInt(header, p, 0);
+            p = putInt(header, p, 0);
+            p = putLong(header, p, entries.size());
+            p = putLong(header, p, entries.size());
+            p = putLong(header, p, directorySize);
+            p = putLong(header, p, directoryStart);
+            writeRaw(header, 0, p);
+
+            p = 0;
+            p = putInt(header, p, ZIP64_LOCATOR);
+            p = putInt(header, p, 0);
+            p = putLong(header, p, zip64End);
+            p = putInt(header, p, 1);
+            writeRaw(header, 0, p);
+        }
+
+        int p = 0;
+        p = putInt(header, p, END);
+        p = putShort(header, p, 0);
+        p = putShort(header, p, 0);
+        p = putShort(header, p, zip64 ? 0xFFFF : entries.size());
+        p = putShort(header, p, zip64 ? 0xFFFF : entries.size());
+        p = putInt(header, p, zip64 ? (int) LIMIT : (int) directorySize);
+        p = putInt(header, p, zip64 ? (int) LIMIT : (int) directoryStart);
+        p = putShort(header, p, 0);
+        writeRaw(header, 0, p);
+        out.flush();
+    }
+
+    /**
+     * Create the zip64 extra field with the values that are not negative
+     */
+    private static byte[] zip64Extra (long size, long compressedSize, long offset) {
+        ByteArrayOutputStream extra = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8];
+        int length = (size >= 0 ? 8 : 0) + (compressedSize >= 0 ? 8 : 0) + (offset >= 0 ? 8 : 0);
+        extra.write(buffer, 0, putShort(buffer, putShort(buffer, 0, ZIP64_EXTRA), length));
+        for (long value : new long[] { size, compressedSize, offset }) {
+            if (value >= 0) {
+                extra.write(buffer, 0, putLong(buffer, 0, value));
+            }
+        }
+        return extra.toByteArray();
+    }
+
+    private void writeRaw (byte[] data, int off, int len) throws IOException {
+        out.write(data, off, len);
+        written += len;
+    }
+
+    private static int putShort (byte[] b, int p, int value) {
+        b[p] = (byte) value;
+        b[p + 1] = (byte) (value >>> 8);
+        return p + 2;
+    }
+
+    private static int putInt (byte[] b, int p, int value) {
+        return putShort(b, putShort(b, p, value), value >>> 16);
+    }
+
+    private static int putLong (byte[] b, int p, long value) {
+        return putInt(b, putInt(b, p, (int) value), (int) (value >>> 32));
+    }
+
+    /**
+     * Convert a date to the MS-DOS format used by the zip entries
+     */
+    private static long dosTime (long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980)
+            return (1 << 21) | (1 << 16);
+        return ((year - 1980) << 25) | ((calendar.get(Calendar.MONTH) + 1) << 21) | (calendar.get(Calendar.DAY_OF_MONTH) << 16)
+                | (calendar.get(Calendar.HOUR_OF_DAY) << 11) | (calendar.get(Calendar.MINUTE) << 5) | (calendar.get(Calendar.SECOND) >> 1);
+    }
+
+    private static class Entry {
+
+        private final byte[] name;
+
+        private final long dosTime;
+
+        private final int method;
+
+        private final int flags;
+
+        private long crc, size, compressedSize, offset, dataStart;
+
+        private boolean zip64;
+
+        private Entry (String name, long time, int method, int flags) {
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            this.dosTime = dosTime(time);
+            this.method = method;
+            this.flags = flags | FLAG_UTF8;
+        }
+    }
+}
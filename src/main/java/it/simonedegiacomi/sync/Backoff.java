@@ -0,0 +1,44 @@
+package it.simonedegiacomi.sync;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with full jitter. The delay before the n-th retry is a random time between zero and
+ * base * 2^n, capped at the maximum delay. The jitter spreads the retries of the works that failed together,
+ * so they don't hit the storage all at the same time.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class Backoff {
+
+    /**
+     * Default delay of the first retry, in milliseconds
+     */
+    public static final long DEFAULT_BASE_DELAY = 1000;
+
+    /**
+     * Default maximum delay, in milliseconds
+     */
+    public static final long DEFAULT_MAX_DELAY = 5 * 60 * 1000;
+
+    private final long baseDelay;
+
+    private final long maxDelay;
+
+    public Backoff (long baseDelay, long maxDelay) {
+        this.baseDelay = Math.max(1, baseDelay);
+        this.maxDelay = Math.max(this.baseDelay, maxDelay);
+    }
+
+    /**
+     * Return the delay before a retry
+     * @param attempt Number of failed attempts, starting from one
+     * @return Delay in milliseconds
+     */
+    public long delay (int attempt) {
+        int shift = Math.min(Math.max(0, attempt - 1), 30);
+        long cap = baseDelay > (maxDelay >> shift) ? maxDelay : baseDelay << shift;
+        return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+}
@@ -0,0 +1,211 @@
+package it.simonedegiacomi.sync;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import it.simonedegiacomi.goboxapi.GBFile;
+import it.simonedegiacomi.goboxapi.utils.MyGsonBuilder;
+import it.simonedegiacomi.storage.utils.ContentHash;
+import it.simonedegiacomi.utils.Bandwidth;
+import org.apache.log4j.Logger;
+
+import javax.net.ssl.HttpsURLConnection;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The ChunkedUploader uploads big files in chunks, using the upload sessions of the storage. If the
+ * connection breaks, the upload fails but the session is kept: when the work is tried again the upload
+ * continues from the last offset acknowledged by the storage instead of starting from zero.
+ * The chunked upload is used only when the client is connected directly to the storage.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class ChunkedUploader {
+
+    /**
+     * Logger of the class
+     */
+    private static final Logger log = Logger.getLogger(ChunkedUploader.class);
+
+    /**
+     * Default size of a chunk. Files smaller than a chunk are uploaded with a single request
+     */
+    public static final long DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Gson gson = MyGsonBuilder.create();
+
+    /**
+     * Storage connected directly to the client
+     */
+    private final DirectStorage storage;
+
+    /**
+     * Size of a chunk
+     */
+    private final long chunkSize;
+
+    /**
+     * Sessions of the uploads not yet completed, by path of the file
+     */
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * Set when the storage doesn't know the upload sessions
+     */
+    private volatile boolean unsupported;
+
+    public ChunkedUploader (DirectStorage storage, long chunkSize) {
+        this.storage = storage;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Upload the file in chunks, continuing a previous upload of the same file if possible
+     * @param file File to upload. When the upload completes the ID of the storage is set
+     * @return Hash of the uploaded version, checked by the storage. Null if the file can't be uploaded in chunks,
+     * and need to be uploaded with a single request
+     * @throws IOException Upload failed. The session is kept, so the next upload of the file continues from
+     * the last acknowledged offset
+     */
+    public String upload (GBFile file) throws IOException {
+        File local = file.toFile();
+        long size = local.length();
+        if (unsupported || size <= chunkSize)
+            return null;
+
+        String base = storage.baseUrl(file);
+        if (base == null)
+            return null;
+
+        // Continue the previous session if the file didn't change
+        String key = local.getAbsolutePath();
+        Session session = sessions.get(key);
+        long offset = -1;
+        if (session != null && session.size == size && session.lastModified == local.lastModified()) {
+            HttpsURLConnection conn = storage.open(base + "/uploadStatus?session=" + session.id, "GET");
+            if (conn.getResponseCode() == 200) {
+                offset = readJson(conn).get("offset").getAsLong();
+                log.info("Resuming the upload of " + local + " from " + offset + " of " + size + " bytes");
+            }
+            conn.disconnect();
+        }
+
+        // Otherwise start a new session
+        if (offset < 0) {
+            sessions.remove(key);
+            HttpsURLConnection conn = storage.open(base + "/uploadSession?size=" + size, "POST");
+            conn.setDoOutput(true);
+            try (OutputStream out = conn.getOutputStream()) {
+                out.write(gson.toJson(file, GBFile.class).getBytes(StandardCharsets.UTF_8));
+            }
+            int code = conn.getResponseCode();
+            if (code == 401 || code == 403 || code == 404 || code == 405) {
+
+                // Let the single request upload report the error, if any
+                log.info("Upload sessions not available (" + code + ")");
+                unsupported = code != 404;
+                conn.disconnect();
+                return null;
+            }
+            if (code != 200) {
+                conn.disconnect();
+                throw new IOException("Unable to start the upload session: " + code);
+            }
+            session = new Session(readJson(conn).get("session").getAsString(), size, local.lastModified());
+            sessions.put(key, session);
+            offset = 0;
+        }
+
+        // Send the chunks
+        try (RandomAccessFile in = new RandomAccessFile(local, "r")) {
+            while (offset < size) {
+                offset = sendChunk(base, session, in, offset, Math.min(chunkSize, size - offset));
+            }
+        }
+
+        // Complete the upload
+        String hash = ContentHash.getInstance().hash(local);
+        HttpsURLConnection conn = storage.open(base + "/uploadCommit?session=" + session.id + "&hash=" + hash, "POST");
+        int code = conn.getResponseCode();
+        if (code == 400) {
+
+            // The file changed while uploading, the next try will start again
+            sessions.remove(key);
+        }
+        if (code != 200) {
+            conn.disconnect();
+            throw new IOException("Unable to complete the upload session: " + code);
+        }
+        GBFile uploaded = gson.fromJson(readJson(conn), GBFile.class);
+        sessions.remove(key);
+        file.setID(uploaded.getID());
+
+        log.info("Chunked upload of " + local + " completed");
+        return hash;
+    }
+
+    /**
+     * Send a chunk of the file
+     * @return Offset acknowledged by the storage
+     */
+    private long sendChunk (String base, Session session, RandomAccessFile in, long offset, long length) throws IOException {
+        HttpsURLConnection conn = storage.open(base + "/uploadChunk?session=" + session.id + "&offset=" + offset, "PUT");
+        conn.setDoOutput(true);
+        conn.setFixedLengthStreamingMode(length);
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        in.seek(offset);
+        try (OutputStream out = Bandwidth.getInstance().limit(conn.getOutputStream(), Bandwidth.Direction.UPLOAD)) {
+            long remaining = length;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0)
+                    throw new IOException("File changed while uploading");
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+
+        // With a 409 the storage has a different offset, so continue from there
+        int code = conn.getResponseCode();
+        if (code != 200 && code != 409) {
+            conn.disconnect();
+            throw new IOException("Chunk refused by the storage: " + code);
+        }
+        long acknowledged = readJson(conn).get("offset").getAsLong();
+        conn.disconnect();
+        return acknowledged;
+    }
+
+    private JsonObject readJson (HttpsURLConnection conn) throws IOException {
+        InputStream in = conn.getResponseCode() < 400 ? conn.getInputStream() : conn.getErrorStream();
+        try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            return new JsonParser().parse(reader).getAsJsonObject();
+        }
+    }
+
+    /**
+     * Upload session of a file
+     */
+    private static class Session {
+
+        private final String id;
+
+        /**
+         * Size and last modification date of the file when the session started
+         */
+        private final long size, lastModified;
+
+        private Session (String id, long size, long lastModified) {
+            this.id = id;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
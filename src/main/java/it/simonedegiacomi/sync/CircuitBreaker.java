@@ -0,0 +1,152 @@
+package it.simonedegiacomi.sync;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The CircuitBreaker stops the works that need the storage when the storage is unreachable. After a number of
+ * consecutive failures the circuit opens, and no work is tried until the open time elapses. Then only one
+ * work is tried: if it succeeds the circuit closes, otherwise it opens again for twice the time.
+ *
+ * This class is thread-safe.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class CircuitBreaker {
+
+    /**
+     * Logger of the class
+     */
+    private static final Logger log = Logger.getLogger(CircuitBreaker.class);
+
+    /**
+     * Default number of consecutive failures that open the circuit
+     */
+    public static final int DEFAULT_THRESHOLD = 5;
+
+    /**
+     * Default time the circuit stays open, in milliseconds
+     */
+    public static final long DEFAULT_OPEN_TIME = 30 * 1000;
+
+    /**
+     * Maximum time the circuit stays open, in milliseconds
+     */
+    private static final long MAX_OPEN_TIME = 10 * 60 * 1000;
+
+    public enum State {
+
+        /**
+         * The storage is reachable
+         */
+        CLOSED,
+
+        /**
+         * The storage is unreachable, no work can be tried
+         */
+        OPEN,
+
+        /**
+         * A work is trying to reach the storage
+         */
+        HALF_OPEN
+    }
+
+    private final int threshold;
+
+    private final long openTime;
+
+    private State state = State.CLOSED;
+
+    /**
+     * Number of consecutive failures
+     */
+    private int failures;
+
+    /**
+     * Time the circuit stays open the next time it opens
+     */
+    private long currentOpenTime;
+
+    /**
+     * Time when the circuit can try again a work
+     */
+    private long openUntil;
+
+    /**
+     * Create a new circuit breaker
+     * @param threshold Number of consecutive failures that open the circuit
+     * @param openTime Time the circuit stays open, in milliseconds
+     */
+    public CircuitBreaker (int threshold, long openTime) {
+        this.threshold = Math.max(1, threshold);
+        this.openTime = Math.max(1, openTime);
+        this.currentOpenTime = this.openTime;
+    }
+
+    /**
+     * Check if a work that needs the storage can run now
+     * @return True if the work can run
+     */
+    public synchronized boolean allowRequest () {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() < openUntil)
+                    return false;
+
+                // Try one work
+                state = State.HALF_OPEN;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Return how much time the circuit stays open
+     * @return Milliseconds before the circuit can try a work, zero if the circuit is closed
+     */
+    public synchronized long getRemainingOpenTime () {
+        if (state == State.CLOSED)
+            return 0;
+        return Math.max(0, openUntil - System.currentTimeMillis());
+    }
+
+    /**
+     * Notify that a work reached the storage
+     */
+    public synchronized void onSuccess () {
+        if (state != State.CLOSED)
+            log.info("Storage reachable again, circuit closed");
+        state = State.CLOSED;
+        failures = 0;
+        currentOpenTime = openTime;
+    }
+
+    /**
+     * Notify that a work could not reach the storage
+     */
+    public synchronized void onFailure () {
+        failures++;
+        if (state == State.HALF_OPEN) {
+
+            // The storage is still unreachable
+            currentOpenTime = Math.min(MAX_OPEN_TIME, currentOpenTime * 2);
+            open();
+        } else if (state == State.CLOSED && failures >= threshold) {
+            open();
+        }
+    }
+
+    private void open () {
+        log.warn("Storage unreachable, circuit open for " + currentOpenTime + "ms");
+        state = State.OPEN;
+        openUntil = System.currentTimeMillis() + currentOpenTime;
+    }
+
+    public synchronized State getState () {
+        return state;
+    }
+}
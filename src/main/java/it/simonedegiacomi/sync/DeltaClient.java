@@ -0,0 +1,187 @@
+package it.simonedegiacomi.sync;
+
+import it.simonedegiacomi.goboxapi.GBFile;
+import it.simonedegiacomi.storage.utils.BlockSignature;
+import it.simonedegiacomi.storage.utils.DeltaEncoder;
+import it.simonedegiacomi.storage.utils.DeltaPatcher;
+import it.simonedegiacomi.sync.fs.MyFileSystemWatcher;
+import it.simonedegiacomi.utils.Bandwidth;
+import org.apache.log4j.Logger;
+
+import javax.net.ssl.HttpsURLConnection;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The DeltaClient transfers only the changed blocks of a modified file, talking directly with the
+ * {@link it.simonedegiacomi.storage.components.core.DeltaSync} component of the storage. The delta transfer
+ * is used only with files that are already synced and big enough, and only when the client is connected
+ * directly to the storage: in all the other cases the methods return false and the caller has to transfer
+ * the whole file.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class DeltaClient {
+
+    /**
+     * Logger of the class
+     */
+    private static final Logger log = Logger.getLogger(DeltaClient.class);
+
+    /**
+     * Default minimum size of the files transferred with a delta
+     */
+    public static final long DEFAULT_MIN_SIZE = 1024 * 1024;
+
+    /**
+     * Storage connected directly to the client
+     */
+    private final DirectStorage storage;
+
+    /**
+     * Watcher that has to ignore the temporary files of the patches
+     */
+    private final MyFileSystemWatcher watcher;
+
+    /**
+     * Files smaller than this size are transferred whole
+     */
+    private final long minSize;
+
+    /**
+     * Set when the storage refuses the delta requests, so they are not tried again
+     */
+    private volatile boolean unsupported;
+
+    public DeltaClient (DirectStorage storage, MyFileSystemWatcher watcher, long minSize) {
+        this.storage = storage;
+        this.watcher = watcher;
+        this.minSize = minSize;
+    }
+
+    /**
+     * Upload the changed blocks of a file that the storage already has
+     * @param file Local file, with the ID of the storage version
+     * @return Hash of the version sent to the storage, null if the whole file need to be uploaded
+     */
+    public String upload (GBFile file) {
+        File local = file.toFile();
+        String base = storageUrl(file, local.length());
+        if (base == null)
+            return null;
+
+        try {
+
+            // Get the signature of the storage version
+            HttpsURLConnection conn = storage.open(base + "/signature?ID=" + file.getID(), "GET");
+            if (!check(conn))
+                return null;
+            BlockSignature signature;
+            try (InputStream in = conn.getInputStream()) {
+                signature = BlockSignature.read(in);
+            }
+
+            // Send the delta
+            conn = storage.open(base + "/patch?ID=" + file.getID() + "&blockSize=" + signature.getBlockSize(), "POST");
+            conn.setDoOutput(true);
+            conn.setChunkedStreamingMode(0);
+            DeltaEncoder encoder = new DeltaEncoder(signature);
+            long sent;
+            try (OutputStream out = Bandwidth.getInstance().limit(conn.getOutputStream(), Bandwidth.Direction.UPLOAD)) {
+                sent = encoder.encode(local, out);
+            }
+            if (!check(conn))
+                return null;
+            conn.disconnect();
+
+            log.info("Delta upload of " + local + ": " + sent + " of " + local.length() + " bytes sent");
+            return encoder.getHash();
+        } catch (IOException ex) {
+            log.warn("Delta upload failed", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Download the changed blocks of a file that the client already has
+     * @param file Local file, with the ID of the storage version
+     * @return Hash of the new version, null if the whole file need to be downloaded
+     */
+    public String download (GBFile file) {
+        File local = file.toFile();
+        if (!local.isFile())
+            return null;
+        String base = storageUrl(file, local.length());
+        if (base == null)
+            return null;
+
+        try {
+
+            // Send the signature of the local version
+            BlockSignature signature = BlockSignature.compute(local, BlockSignature.blockSizeFor(local.length()));
+            HttpsURLConnection conn = storage.open(base + "/delta?ID=" + file.getID(), "POST");
+            conn.setDoOutput(true);
+            try (OutputStream out = conn.getOutputStream()) {
+                signature.write(out);
+            }
+            if (!check(conn))
+                return null;
+
+            // Rebuild the new version
+            File temp = DeltaPatcher.tempFileOf(local);
+            String hash;
+            watcher.startIgnoring(temp);
+            try (InputStream in = Bandwidth.getInstance().limit(conn.getInputStream(), Bandwidth.Direction.DOWNLOAD)) {
+                hash = DeltaPatcher.patch(local, signature.getBlockSize(), in);
+            } finally {
+                watcher.stopIgnoring(temp);
+            }
+            conn.disconnect();
+
+            log.info("Delta download of " + local + " completed");
+            return hash;
+        } catch (IOException ex) {
+            log.warn("Delta download failed", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Find the address of the storage, if the delta transfer can be used with the file
+     * @param file File to transfer
+     * @param size Size of the local version of the file
+     * @return Base url of the storage, null if the delta transfer can't be used
+     */
+    private String storageUrl (GBFile file, long size) {
+        if (unsupported || file.getID() == GBFile.UNKNOWN_ID || size < minSize)
+            return null;
+
+        // The delta components are reachable only with a direct connection
+        return storage.baseUrl(file);
+    }
+
+    /**
+     * Check the response of the storage. If the storage doesn't know the delta requests or refuses them,
+     * the delta transfer is disabled
+     * @param conn Connection
+     * @return True if the request succeeded
+     * @throws IOException
+     */
+    private boolean check (HttpsURLConnection conn) throws IOException {
+        int code = conn.getResponseCode();
+        if (code == 200)
+            return true;
+
+        if (code == 401 || code == 403 || code == 405) {
+            log.info("Delta transfer not supported by the storage (" + code + ")");
+            unsupported = true;
+        } else {
+            log.warn("Delta request failed: " + code + " " + conn.getResponseMessage());
+        }
+        conn.disconnect();
+        return false;
+    }
+}
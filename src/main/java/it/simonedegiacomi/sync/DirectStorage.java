@@ -0,0 +1,69 @@
+package it.simonedegiacomi.sync;
+
+import it.simonedegiacomi.goboxapi.GBFile;
+import it.simonedegiacomi.goboxapi.authentication.GBAuth;
+import it.simonedegiacomi.goboxapi.client.GBClient;
+import it.simonedegiacomi.goboxapi.client.TransferProfile;
+
+import javax.net.ssl.HttpsURLConnection;
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Helper used to call the http components of the storage when the client is connected directly to it.
+ * The address of the storage is read from the direct download url of the client.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class DirectStorage {
+
+    /**
+     * Path of the direct download url of the storage
+     */
+    private static final String DIRECT_DOWNLOAD_PATH = "/fromStorage";
+
+    /**
+     * Client used to find the address of the storage
+     */
+    private final GBClient client;
+
+    /**
+     * Credentials used to authorize the requests
+     */
+    private final GBAuth auth;
+
+    public DirectStorage (GBClient client, GBAuth auth) {
+        this.client = client;
+        this.auth = auth;
+    }
+
+    /**
+     * Find the address of the storage
+     * @param file File that will be transferred
+     * @return Base url of the storage, null if the client is not connected directly to the storage
+     */
+    public String baseUrl (GBFile file) {
+        URL url = client.getUrl(TransferProfile.Action.DOWNLOAD, file, false);
+        if (url == null || !url.getPath().endsWith(DIRECT_DOWNLOAD_PATH))
+            return null;
+
+        String path = url.getPath();
+        return url.getProtocol() + "://" + url.getAuthority() + path.substring(0, path.length() - DIRECT_DOWNLOAD_PATH.length());
+    }
+
+    /**
+     * Open an authorized connection to the storage
+     * @param url Url of the request
+     * @param method Http method
+     * @return Connection
+     * @throws IOException
+     */
+    public HttpsURLConnection open (String url, String method) throws IOException {
+        HttpsURLConnection conn = (HttpsURLConnection) new URL(url).openConnection();
+        conn.setRequestMethod(method);
+        conn.setDoInput(true);
+        auth.authorize(conn);
+        return conn;
+    }
+}
@@ -0,0 +1,133 @@
+package it.simonedegiacomi.sync;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import it.simonedegiacomi.goboxapi.GBFile;
+import it.simonedegiacomi.goboxapi.client.ClientException;
+import org.apache.log4j.Logger;
+
+import javax.net.ssl.HttpsURLConnection;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Source of the tree snapshots for the clients that are not the internal client. The pages are read with the
+ * '/treeSnapshot' request of the {@link it.simonedegiacomi.storage.components.core.TreeSnapshot} component,
+ * so the snapshot can be used only when the client is connected directly to the storage: in the other cases
+ * {@link #getTreeSnapshot(GBFile, int, PageListener)} fails and the caller asks the folders one by one.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class DirectTreeSnapshot implements TreeSnapshotSource {
+
+    /**
+     * Logger of the class
+     */
+    private static final Logger log = Logger.getLogger(DirectTreeSnapshot.class);
+
+    /**
+     * Storage connected directly to the client
+     */
+    private final DirectStorage storage;
+
+    /**
+     * Set when the storage doesn't know the snapshot request, so it's not tried again
+     */
+    private volatile boolean unsupported;
+
+    public DirectTreeSnapshot (DirectStorage storage) {
+        this.storage = storage;
+    }
+
+    @Override
+    public void getTreeSnapshot (GBFile root, int pageSize, PageListener listener) throws ClientException {
+        if (unsupported)
+            throw new ClientException("Tree snapshot not supported by the storage");
+        if (root.getID() == GBFile.UNKNOWN_ID)
+            throw new ClientException("Root of the snapshot without ID");
+
+        String base = storage.baseUrl(root);
+        if (base == null)
+            throw new ClientException("Not connected directly to the storage");
+
+        try {
+            String snapshotID = null;
+            boolean last = false;
+            while (!last) {
+
+                // The first request opens the snapshot, the others continue it
+                String url = base + "/treeSnapshot?pageSize=" + pageSize
+                        + (snapshotID == null ? "&ID=" + root.getID() : "&snapshotID=" + snapshotID);
+                JsonObject response = request(url);
+
+                if (!response.get("success").getAsBoolean()) {
+
+                    // The root is not in the storage, so the snapshot is empty
+                    if (snapshotID == null && response.has("found") && !response.get("found").getAsBoolean())
+                        return;
+                    throw new ClientException(response.get("error").getAsString());
+                }
+
+                snapshotID = response.get("snapshotID").getAsString();
+                last = response.get("last").getAsBoolean();
+                readPage(response, listener);
+            }
+        } catch (IOException ex) {
+            log.warn("Tree snapshot failed", ex);
+            throw new ClientException(ex.toString());
+        }
+    }
+
+    private JsonObject request (String url) throws IOException, ClientException {
+        HttpsURLConnection conn = storage.open(url, "GET");
+        int code = conn.getResponseCode();
+        if (code != 200) {
+            if (code == 401 || code == 403 || code == 404 || code == 405) {
+                log.info("Tree snapshot not supported by the storage (" + code + ")");
+                unsupported = true;
+            }
+            conn.disconnect();
+            throw new ClientException("Tree snapshot request failed: " + code);
+        }
+
+        try (InputStream in = conn.getInputStream();
+             Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            return new JsonParser().parse(reader).getAsJsonObject();
+        }
+    }
+
+    /**
+     * Convert the compact files of a page and pass them to the listener
+     * @param response Response with the page
+     * @param listener Listener of the snapshot
+     */
+    private static void readPage (JsonObject response, PageListener listener) {
+        List<GBFile> files = new ArrayList<>();
+        Map<Long, String> hashes = new HashMap<>();
+        for (JsonElement element : response.getAsJsonArray("files")) {
+            JsonObject json = element.getAsJsonObject();
+
+            // The root of the storage has no name
+            String name = json.get("name").isJsonNull() ? null : json.get("name").getAsString();
+            GBFile file = new GBFile(name, json.get("fatherID").getAsLong(), json.get("isDirectory").getAsBoolean());
+            file.setID(json.get("ID").getAsLong());
+            file.setSize(json.get("size").getAsLong());
+            file.setLastUpdateDate(json.get("lastUpdateDate").getAsLong());
+            files.add(file);
+
+            if (json.has("hash")) {
+                hashes.put(file.getID(), json.get("hash").getAsString());
+            }
+        }
+        listener.onPage(files, hashes);
+    }
+}
@@ -8,6 +8,7 @@ import it.simonedegiacomi.storage.utils.MyFileUtils;
 import it.simonedegiacomi.sync.fs.MyFileSystemWatcher;
 import org.apache.log4j.Logger;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 
@@ -44,11 +45,47 @@ public class Employee {
      */
     private final WorkManager manager;
 
+    /**
+     * Index updated when a work completes
+     */
+    private final SyncIndex index;
+
+    /**
+     * Client used to transfer only the changed blocks of the modified files
+     */
+    private final DeltaClient delta;
+
+    /**
+     * Uploader used to send the big files in resumable chunks
+     */
+    private final ChunkedUploader chunked;
+
+    /**
+     * Downloader used to download the big files with more concurrent requests
+     */
+    private final SegmentedDownloader segmented;
+
+    /**
+     * Source used to read the whole tree of a downloaded folder
+     */
+    private final TreeSnapshotSource treeSnapshots;
+
     public Employee(GBClient client, Sync sync, WorkManager workManager) {
         this.client = client;
         this.sync = sync;
         this.watcher = sync.getFileSystemWatcher();
         this.manager = workManager;
+        this.index = sync.getIndex();
+        this.treeSnapshots = sync.getTreeSnapshots();
+        Config config = Config.getInstance();
+        DirectStorage storage = new DirectStorage(client, config.getAuth());
+        this.delta = new DeltaClient(storage, watcher,
+                Long.parseLong(config.getProperty("deltaMinSize", String.valueOf(DeltaClient.DEFAULT_MIN_SIZE))));
+        this.chunked = new ChunkedUploader(storage,
+                Long.parseLong(config.getProperty("uploadChunkSize", String.valueOf(ChunkedUploader.DEFAULT_CHUNK_SIZE))));
+        this.segmented = new SegmentedDownloader(storage, watcher,
+                Integer.parseInt(config.getProperty("downloadSegments", String.valueOf(SegmentedDownloader.DEFAULT_SEGMENTS))),
+                Long.parseLong(config.getProperty("segmentedDownloadMinSize", String.valueOf(SegmentedDownloader.DEFAULT_MIN_SIZE))));
     }
 
     public boolean submit (Work workToDo) {
@@ -65,7 +102,8 @@ public class Employee {
                     break;
 
                 case UPLOAD:
-                    upload(workToDo.getFile());
+                    String hash = upload(workToDo.getFile());
+                    index.update(workToDo.getFile(), 0, hash);
                     break;
 
                 case MOVE_IN_CLIENT:
@@ -73,22 +111,26 @@ public class Employee {
                     watcher.startIgnoring(workToDo.getBefore().toFile());
                     Files.move(workToDo.getBefore().toFile().toPath(), workToDo.getFile().toFile().toPath());
                     watcher.stopIgnoring(workToDo.getBefore().toFile());
+                    index.move(workToDo.getBefore().toFile(), workToDo.getFile().toFile());
                     break;
 
                 case MOVE_IN_STORAGE:
 
                     client.move(workToDo.getBefore(), workToDo.getFile(), false);
+                    index.move(workToDo.getBefore().toFile(), workToDo.getFile().toFile());
                     break;
 
                 case REMOVE_IN_CLIENT:
 
                     watcher.foresee(workToDo.getFile().toFile());
                     MyFileUtils.delete(workToDo.getFile());
+                    index.remove(workToDo.getFile().toFile());
                     break;
 
                 case REMOVE_IN_STORAGE:
 
                     client.removeFile(workToDo.getFile());
+                    index.remove(workToDo.getFile().toFile());
                     break;
             }
 
@@ -96,7 +138,9 @@ public class Employee {
             workToDo.setState(Work.WorkState.END);
             return true;
         } catch (Exception ex) {
+            watcher.stopIgnoring(workToDo.getFile().toFile());
             workToDo.setState(Work.WorkState.FAILED);
+            workToDo.failed(ex);
             log.warn(ex.toString(), ex);
             return false;
         }
@@ -115,6 +159,11 @@ public class Employee {
         GBFile detailedFile = client.getInfo(file);
         detailedFile.setPrefix(file.getPrefix());
 
+        // If the file is a directory and the whole subtree can be read at once
+        if (detailedFile.isDirectory() && downloadTree(detailedFile)) {
+            return;
+        }
+
         // If the file is a directory
         if (detailedFile.isDirectory()) {
 
@@ -122,6 +171,7 @@ public class Employee {
             watcher.startIgnoring(detailedFile.toFile());
             detailedFile.toFile().mkdirs();
             watcher.stopIgnoring(detailedFile.toFile());
+            index.update(detailedFile);
 
             // Download each file
             for (GBFile child : detailedFile.getChildren()) {
@@ -131,17 +181,78 @@ public class Employee {
             return;
         }
 
-        // Otherwise just download the file
-        client.getFile(file);
+        // Otherwise download only the changed blocks, or the whole file in segments if it's big
+        String hash = delta.download(detailedFile);
+        if (hash == null) {
+            hash = segmented.download(detailedFile, detailedFile.getSize());
+        }
+        if (hash == null) {
+            client.getFile(file);
+        }
+        index.update(detailedFile, detailedFile.getLastUpdateDate(), hash);
+    }
+
+    /**
+     * Create the whole tree of folders of the specified directory and schedule the download of every file
+     * in the tree. The tree is read with a snapshot, so the folders are not asked one by one
+     * @param folder Folder to download
+     * @return False if the snapshot can't be read, so the folders need to be asked one by one
+     */
+    private boolean downloadTree (GBFile folder) {
+        if (treeSnapshots == null)
+            return false;
+
+        RemoteTree tree;
+        try {
+            tree = RemoteTree.load(treeSnapshots, folder);
+        } catch (ClientException ex) {
+            log.info("Tree snapshot not available for " + folder.getName() + ": " + ex.getMessage());
+            return false;
+        }
+        if (tree.getRoot() == null)
+            return false;
+
+        File localRoot = folder.toFile();
+
+        // Ignore the whole folder while creating the subdirectories
+        watcher.startIgnoring(localRoot);
+        try {
+            downloadTreeR(tree, tree.getRoot(), localRoot, folder.getPrefix());
+        } finally {
+            watcher.stopIgnoring(localRoot);
+        }
+        return true;
+    }
+
+    private void downloadTreeR (RemoteTree tree, GBFile remote, File local, String prefix) {
+
+        // Wrap the local file with the id of the storage
+        GBFile wrappedFile = new GBFile(local, prefix);
+        wrappedFile.setID(remote.getID());
+
+        // Schedule the download of the file
+        if (!remote.isDirectory()) {
+            manager.addWork(new Work(wrappedFile, Work.WorkKind.DOWNLOAD));
+            return;
+        }
+
+        // Create the folder
+        local.mkdirs();
+        index.update(wrappedFile);
+
+        for (GBFile child : tree.getChildren(remote).values()) {
+            downloadTreeR(tree, child, new File(local, child.getName()), prefix);
+        }
     }
 
     /**
      * Download the file if a file, schedule multiple upload if a folder
      * @param file File to upload
+     * @return Hash of the uploaded version, null if the transfer didn't compute it
      * @throws ClientException
      * @throws IOException
      */
-    private void upload (GBFile file) throws ClientException, IOException {
+    private String upload (GBFile file) throws ClientException, IOException {
 
         // If the file is a folder
         if (file.isDirectory()) {
@@ -149,15 +260,43 @@ public class Employee {
             // Create the folder in the storage
             client.createDirectory(file);
 
-            // And create enw works, to upload each file
+            // And create enw works, to upload each file. The files of a new folder may still be written,
+            // so they are uploaded only when they are stable, like the files created in the watched folders
             for (GBFile child : file.getChildren()) {
-                manager.addWork(new Work(child, Work.WorkKind.UPLOAD));
+                if (child.isDirectory()) {
+                    manager.addWork(new Work(child, Work.WorkKind.UPLOAD));
+                } else {
+                    sync.getSettleWindow().touch(child.toFile());
+                }
             }
 
-            return;
+            return null;
         }
 
-        // Upload the file
-        client.uploadFile(file);
+        // If the storage already has a version of the file, upload only the changed blocks
+        SyncIndex.Entry synced = index.get(file.toFile());
+        if (synced != null && synced.getRemoteID() != GBFile.UNKNOWN_ID) {
+            GBFile remote = new GBFile(file.toFile(), file.getPrefix());
+            remote.setID(synced.getRemoteID());
+            String hash = delta.upload(remote);
+            if (hash != null) {
+                file.setID(remote.getID());
+                return hash;
+            }
+        }
+
+        // Upload the file, in chunks if it's big
+        String hash = chunked.upload(file);
+        if (hash == null) {
+            client.uploadFile(file);
+        }
+        return hash;
+    }
+
+    /**
+     * Stop the threads used by the transfers
+     */
+    public void shutdown () {
+        segmented.shutdown();
     }
 }
\ No newline at end of file
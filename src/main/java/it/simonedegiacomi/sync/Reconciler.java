@@ -0,0 +1,583 @@
+package it.simonedegiacomi.sync;
+
+import it.simonedegiacomi.goboxapi.GBFile;
+import it.simonedegiacomi.goboxapi.client.ClientException;
+import it.simonedegiacomi.goboxapi.client.GBClient;
+import it.simonedegiacomi.storage.utils.MyFileUtils;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The Reconciler compares the file system with the storage and creates the works needed to synchronize them.
+ * The tree is walked with fork/join tasks, so sibling folders are compared in parallel and the requests to the
+ * storage overlap. Every task returns the works of his subtree in the order of the walk, so the works are added
+ * to the work manager in the same order of a sequential walk.
+ *
+ * Depending on the client and on the sync index, the reconciler uses one of these strategies:
+ * - If a snapshot of the storage tree can be read, the whole tree is read with few requests;
+ * - If the index is empty, every file is asked to the storage;
+ * - Otherwise every folder is listed once from the storage and compared with the file system and the index,
+ *   so only the files changed on one of the sides are compared further.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class Reconciler {
+
+    /**
+     * Logger of the class
+     */
+    private static final Logger log = Logger.getLogger(Reconciler.class);
+
+    /**
+     * Client used to ask information to the storage
+     */
+    private final GBClient client;
+
+    /**
+     * Source of the snapshots of the storage tree, null if the snapshots can't be used
+     */
+    private final TreeSnapshotSource snapshots;
+
+    /**
+     * Index with the state of the last synchronization
+     */
+    private final SyncIndex index;
+
+    /**
+     * Path of the files folder
+     */
+    private final String PATH;
+
+    /**
+     * Maximum number of threads that walk the tree
+     */
+    private final int parallelism;
+
+    /**
+     * Create a new reconciler
+     * @param client Client used to ask information to the storage
+     * @param snapshots Source of the snapshots of the storage tree, null to ask the folders one by one
+     * @param index Sync index
+     * @param path Path of the files folder
+     * @param parallelism Maximum number of threads
+     */
+    public Reconciler (GBClient client, TreeSnapshotSource snapshots, SyncIndex index, String path, int parallelism) {
+        this.client = client;
+        this.snapshots = snapshots;
+        this.index = index;
+        this.PATH = path;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Compare the whole file system with the storage and add the needed works to the manager
+     * @param workManager Manager that will receive the works
+     * @throws IOException
+     * @throws ClientException
+     */
+    public void reconcile (WorkManager workManager) throws IOException, ClientException {
+        for (Work work : reconcile()) {
+            workManager.addWork(work);
+        }
+    }
+
+    /**
+     * Compare the whole file system with the storage, see {@link #reconcile(WorkManager)}
+     * @return Works to synchronize the two sides, in the order of the walk
+     * @throws IOException
+     * @throws ClientException
+     */
+    public List<Work> reconcile () throws IOException, ClientException {
+
+        ReconcileTask root = null;
+        if (snapshots != null) {
+
+            // Read the whole tree of the storage with few requests and compare it with the file system
+            try {
+                RemoteTree tree = RemoteTree.load(snapshots, GBFile.ROOT_FILE);
+                log.info("Storage tree snapshot received, " + tree.size() + " files");
+                root = new SnapshotTask(tree, tree.getRoot(), new File(PATH));
+            } catch (ClientException ex) {
+                log.info("Storage tree snapshot not available, the folders will be asked one by one: " + ex.getMessage());
+            }
+        }
+
+        if (root == null && index.isEmpty()) {
+
+            // First synchronization, check the root and all the subfolder with the storage
+            root = new StorageTask(GBFile.ROOT_FILE);
+        } else if (root == null) {
+
+            // Compare the file system with the index and ask the storage only the changed files
+            root = new IndexTask(new File(PATH));
+        }
+
+        return run(root);
+    }
+
+    /**
+     * Compare a subtree of the file system with the sync index and add the works of the changed files to the
+     * manager. This is used when the watcher lost the events of the subtree, so only the subtree is walked and
+     * the storage is asked only about the changed files
+     * @param folder Root of the subtree
+     * @param workManager Manager that will receive the works
+     * @throws IOException
+     * @throws ClientException
+     */
+    public void rescan (File folder, WorkManager workManager) throws IOException, ClientException {
+        for (Work work : rescan(folder)) {
+            workManager.addWork(work);
+        }
+    }
+
+    /**
+     * Compare a subtree of the file system with the sync index, see {@link #rescan(File, WorkManager)}
+     * @param folder Root of the subtree
+     * @return Works of the changed files, in the order of the walk
+     * @throws IOException
+     * @throws ClientException
+     */
+    public List<Work> rescan (File folder) throws IOException, ClientException {
+
+        // If the folder itself was deleted, the deletion is found scanning the parent
+        File root = new File(PATH);
+        while (!folder.exists() && !folder.equals(root) && folder.getParentFile() != null) {
+            folder = folder.getParentFile();
+        }
+
+        log.info("Scanning again " + folder);
+        return run(new IndexTask(folder));
+    }
+
+    private List<Work> run (ReconcileTask root) throws IOException, ClientException {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            return pool.invoke(root);
+        } catch (ReconcileException ex) {
+            if (ex.getCause() instanceof ClientException)
+                throw (ClientException) ex.getCause();
+            throw (IOException) ex.getCause();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Compare a file (not a folder) that exists both in the storage and in the file system, and return the
+     * work to synchronize the two versions.
+     * When the hashes are known, the contents are compared, and the version that didn't change since the last
+     * synchronization (the hash in the index) is replaced with the other one. Otherwise the last
+     * modification dates are compared, and the newest version wins
+     * @param remote Version of the file in the storage
+     * @param remoteHash Hash of the version in the storage, null if not known
+     * @param local Local version of the file
+     * @return Work to do, null if the file is up to date
+     */
+    private Work compareFile (GBFile remote, String remoteHash, GBFile local) {
+
+        File localFile = local.toFile();
+        log.info("Local copy: " + localFile.lastModified() + " Remote copy: " + remote.getLastUpdateDate());
+
+        // The file is read only if it changed since the last synchronization
+        SyncIndex.Entry entry = index.get(localFile);
+        String localHash = entry != null && entry.getHash() != null && index.isUnchanged(localFile) ? entry.getHash() : null;
+
+        if (remoteHash != null && remote.getSize() == localFile.length()) {
+            if (localHash == null) {
+                localHash = SyncIndex.hashOf(localFile);
+            }
+            if (remoteHash.equals(localHash)) {
+
+                // Same content, even if the dates are different
+                index.update(local, 0, localHash);
+                return null;
+            }
+        }
+
+        if (remoteHash != null && entry != null && entry.getHash() != null) {
+            if (localHash == null && entry.getSize() == localFile.length()) {
+                localHash = SyncIndex.hashOf(localFile);
+            }
+
+            // Only the storage version changed since the last synchronization
+            if (entry.getHash().equals(localHash))
+                return new Work(local, Work.WorkKind.DOWNLOAD);
+
+            // Only the local version changed
+            if (entry.getHash().equals(remoteHash))
+                return new Work(local, Work.WorkKind.UPLOAD);
+        }
+
+        if (remoteHash == null && remote.getLastUpdateDate() == localFile.lastModified()) {
+            // Already up to date
+            index.update(local);
+            return null;
+        }
+
+        // Otherwise the newest version wins
+        Work.WorkKind action = remote.getLastUpdateDate() > localFile.lastModified() ? Work.WorkKind.DOWNLOAD : Work.WorkKind.UPLOAD;
+        return new Work(local, action);
+    }
+
+    /**
+     * Task that compares a subtree. The subclasses add the works to the list passed to {@link #reconcile(List)}
+     * and fork a subtask for each child
+     */
+    private abstract static class ReconcileTask extends RecursiveTask<List<Work>> {
+
+        @Override
+        protected final List<Work> compute() {
+            List<Work> works = new LinkedList<>();
+            try {
+                List<ReconcileTask> subtasks = reconcile(works);
+
+                // Compare the children in parallel and collect the works in order
+                invokeAll(subtasks);
+                for (ReconcileTask subtask : subtasks) {
+                    works.addAll(subtask.join());
+                }
+            } catch (IOException | ClientException ex) {
+                throw new ReconcileException(ex);
+            }
+            return works;
+        }
+
+        /**
+         * Compare this file
+         * @param works List where the works of this file must be added
+         * @return Tasks that compare the children
+         */
+        protected abstract List<ReconcileTask> reconcile (List<Work> works) throws IOException, ClientException;
+    }
+
+    /**
+     * Compare a file asking his information to the storage
+     */
+    private class StorageTask extends ReconcileTask {
+
+        private final GBFile file;
+
+        private StorageTask (GBFile file) {
+            this.file = file;
+        }
+
+        @Override
+        protected List<ReconcileTask> reconcile (List<Work> works) throws IOException, ClientException {
+
+            // Get details about this file
+            GBFile detailedFile = client.getInfo(file);
+
+            // If the storage doesn't know anything about this file
+            if(detailedFile == null) {
+
+                // Upload it
+                works.add(new Work(file, Work.WorkKind.UPLOAD));
+                return Collections.emptyList();
+            }
+
+            detailedFile.setPrefix(PATH);
+
+            // Check if i have this file
+            if (!detailedFile.toFile().exists()) {
+                works.add(new Work(detailedFile, Work.WorkKind.DOWNLOAD));
+                return Collections.emptyList();
+            }
+
+            MyFileUtils.loadFileAttributes(detailedFile);
+
+            // If it's not a directory check who has the latest version
+            if (!detailedFile.isDirectory()) {
+                Work work = compareFile(detailedFile, null, detailedFile);
+                if (work != null) {
+                    works.add(work);
+                }
+                return Collections.emptyList();
+            }
+
+            // The folder exists in both sides
+            index.update(detailedFile);
+
+            // Create a map with the name of the file as key and the GBFile
+            // as value. These files are the children of the folder
+            Map<String, GBFile> storageFiles = new HashMap<>();
+            for (GBFile child : detailedFile.getChildren())
+                storageFiles.put(child.getName(), child);
+
+            List<ReconcileTask> subtasks = new ArrayList<>();
+
+            // Check every children (in the fs)
+            File[] children = detailedFile.toFile().listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    subtasks.add(new StorageTask(new GBFile(child, PATH)));
+
+                    // And then remove from the map
+                    storageFiles.remove(child.getName());
+                }
+            }
+
+            // Wait! and the remaining files in the map?
+            // This client doesn't have these file!
+            for (GBFile storageChild : storageFiles.values()) {
+                subtasks.add(new StorageTask(storageChild));
+            }
+
+            return subtasks;
+        }
+    }
+
+    /**
+     * Compare a local folder with the sync index and with the list of its children in the storage. The storage
+     * is asked once for each folder: the children that didn't change on either side since the last
+     * synchronization are recognized comparing the listing with the index, without other requests. So the
+     * changes made in the storage while this client was offline are found too.
+     */
+    private class IndexTask extends ReconcileTask {
+
+        private final File folder;
+
+        private IndexTask (File folder) {
+            this.folder = folder;
+        }
+
+        @Override
+        protected List<ReconcileTask> reconcile (List<Work> works) throws IOException, ClientException {
+
+            GBFile wrappedFolder = new GBFile(folder, PATH);
+            if (!folder.isDirectory()) {
+                return Collections.singletonList(new StorageTask(wrappedFolder));
+            }
+
+            GBFile detailedFolder = client.getInfo(wrappedFolder);
+
+            // If the storage doesn't know anything about this folder, upload it
+            if (detailedFolder == null) {
+                works.add(new Work(wrappedFolder, Work.WorkKind.UPLOAD));
+                return Collections.emptyList();
+            }
+
+            // A file in the storage, compare it as at the first synchronization
+            if (!detailedFolder.isDirectory()) {
+                return Collections.singletonList(new StorageTask(wrappedFolder));
+            }
+
+            detailedFolder.setPrefix(PATH);
+            index.update(detailedFolder);
+
+            // Children in the storage and in the index, by name
+            Map<String, GBFile> storageFiles = new HashMap<>();
+            for (GBFile child : detailedFolder.getChildren())
+                storageFiles.put(child.getName(), child);
+            Map<String, SyncIndex.Entry> indexed = index.children(index.pathOf(folder));
+
+            List<ReconcileTask> subtasks = new ArrayList<>();
+
+            // Check every child in the file system
+            File[] children = folder.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    GBFile remote = storageFiles.remove(child.getName());
+                    SyncIndex.Entry entry = indexed.remove(child.getName());
+                    GBFile local = new GBFile(child, PATH);
+
+                    if (remote == null) {
+
+                        // If the file was synchronized and not changed since, it was deleted in the storage
+                        if (entry != null && entry.getRemoteID() != GBFile.UNKNOWN_ID && index.isUnchanged(child)) {
+                            works.add(new Work(local, Work.WorkKind.REMOVE_IN_CLIENT));
+                        } else {
+                            works.add(new Work(local, Work.WorkKind.UPLOAD));
+                        }
+                        continue;
+                    }
+
+                    local.setID(remote.getID());
+                    if (remote.isDirectory() && child.isDirectory()) {
+                        subtasks.add(new IndexTask(child));
+                    } else if (remote.isDirectory() != child.isDirectory()) {
+
+                        // The file changed kind, ask the storage
+                        subtasks.add(new StorageTask(local));
+                    } else {
+                        Work work = compareIndexedFile(remote, local);
+                        if (work != null) {
+                            works.add(work);
+                        }
+                    }
+                }
+            }
+
+            // The remaining children are only in the storage
+            for (GBFile remote : storageFiles.values()) {
+                GBFile local = new GBFile(new File(folder, remote.getName()), PATH);
+                local.setID(remote.getID());
+                SyncIndex.Entry entry = indexed.remove(remote.getName());
+
+                // If the file was synchronized, it was deleted while the sync was off
+                if (entry != null && entry.getRemoteID() == remote.getID()) {
+                    works.add(new Work(local, Work.WorkKind.REMOVE_IN_STORAGE));
+                } else {
+                    works.add(new Work(local, Work.WorkKind.DOWNLOAD));
+                }
+            }
+
+            // The children left in the index don't exist anymore on either side
+            for (String name : indexed.keySet()) {
+                index.remove(new File(folder, name));
+            }
+
+            return subtasks;
+        }
+
+        /**
+         * Compare a file that exists both in the storage and in the file system, using the index to know
+         * which side changed since the last synchronization
+         * @param remote File in the listing of the storage
+         * @param local Local file, with the id of the storage
+         * @return Work to do, null if the file is up to date
+         */
+        private Work compareIndexedFile (GBFile remote, GBFile local) {
+            File localFile = local.toFile();
+            SyncIndex.Entry entry = index.get(localFile);
+            if (entry == null)
+                return compareFile(remote, null, local);
+
+            // A touched file is still unchanged
+            boolean touched = !index.isUnchanged(localFile) && index.isContentUnchanged(localFile);
+            boolean localUnchanged = touched || index.isUnchanged(localFile);
+
+            // When the storage date of the synchronized version is not known (the file was uploaded), the
+            // version with the same size and id is the uploaded one
+            boolean remoteUnchanged = remote.getSize() == entry.getSize() && (entry.getRemoteLastUpdate() == 0
+                    ? entry.getRemoteID() == GBFile.UNKNOWN_ID || entry.getRemoteID() == remote.getID()
+                    : entry.getRemoteLastUpdate() == remote.getLastUpdateDate());
+
+            if (localUnchanged && remoteUnchanged) {
+                if (touched || entry.getRemoteLastUpdate() == 0) {
+                    index.update(local, remote.getLastUpdateDate(), entry.getHash());
+                }
+                return null;
+            }
+
+            // Only one side changed since the last synchronization
+            if (localUnchanged)
+                return new Work(local, Work.WorkKind.DOWNLOAD);
+            if (remoteUnchanged)
+                return new Work(local, Work.WorkKind.UPLOAD);
+
+            return compareFile(remote, null, local);
+        }
+    }
+
+    /**
+     * Compare a local file with his version in the snapshot of the storage tree.
+     * This task doesn't make any request to the storage.
+     */
+    private class SnapshotTask extends ReconcileTask {
+
+        /**
+         * Snapshot of the storage tree
+         */
+        private final RemoteTree tree;
+
+        /**
+         * File in the snapshot, null if the storage doesn't have the file
+         */
+        private final GBFile remote;
+
+        /**
+         * Local file, may not exist
+         */
+        private final File local;
+
+        private SnapshotTask (RemoteTree tree, GBFile remote, File local) {
+            this.tree = tree;
+            this.remote = remote;
+            this.local = local;
+        }
+
+        @Override
+        protected List<ReconcileTask> reconcile (List<Work> works) {
+
+            SyncIndex.Entry entry = index.get(local);
+
+            // If the storage doesn't know anything about this file
+            if (remote == null) {
+
+                // If the file was synchronized and not changed since, it was deleted in the storage
+                if (entry != null && entry.getRemoteID() != GBFile.UNKNOWN_ID && index.isUnchanged(local)) {
+                    works.add(new Work(new GBFile(local, PATH), Work.WorkKind.REMOVE_IN_CLIENT));
+                    return Collections.emptyList();
+                }
+
+                // Upload it
+                works.add(new Work(new GBFile(local, PATH), Work.WorkKind.UPLOAD));
+                return Collections.emptyList();
+            }
+
+            // Wrap the local file, with the id of the storage
+            GBFile wrappedFile = new GBFile(local, PATH);
+            wrappedFile.setID(remote.getID());
+
+            // Check if i have this file
+            if (!local.exists()) {
+
+                // If the file was synchronized, it was deleted while the sync was off
+                if (entry != null && entry.getRemoteID() == remote.getID()) {
+                    works.add(new Work(wrappedFile, Work.WorkKind.REMOVE_IN_STORAGE));
+                    return Collections.emptyList();
+                }
+
+                works.add(new Work(wrappedFile, Work.WorkKind.DOWNLOAD));
+                return Collections.emptyList();
+            }
+
+            if (!remote.isDirectory()) {
+                Work work = compareFile(remote, tree.getHash(remote), wrappedFile);
+                if (work != null) {
+                    works.add(work);
+                }
+                return Collections.emptyList();
+            }
+
+            // The folder exists in both sides
+            index.update(wrappedFile);
+
+            // Children in the storage, by name
+            Map<String, GBFile> storageFiles = new HashMap<>(tree.getChildren(remote));
+
+            List<ReconcileTask> subtasks = new ArrayList<>();
+
+            // Check every children (in the fs)
+            File[] children = local.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    subtasks.add(new SnapshotTask(tree, storageFiles.remove(child.getName()), child));
+                }
+            }
+
+            // The remaining children are only in the storage
+            for (Map.Entry<String, GBFile> storageChild : storageFiles.entrySet()) {
+                subtasks.add(new SnapshotTask(tree, storageChild.getValue(), new File(local, storageChild.getKey())));
+            }
+
+            return subtasks;
+        }
+    }
+
+    /**
+     * Unchecked wrapper of the exceptions thrown inside the tasks
+     */
+    private static class ReconcileException extends RuntimeException {
+
+        private ReconcileException (Exception cause) {
+            super(cause);
+        }
+    }
+}
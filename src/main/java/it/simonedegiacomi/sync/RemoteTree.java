@@ -0,0 +1,115 @@
+package it.simonedegiacomi.sync;
+
+import it.simonedegiacomi.goboxapi.GBFile;
+import it.simonedegiacomi.goboxapi.client.ClientException;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In memory copy of a subtree of the storage, built from the pages of a tree snapshot.
+ * Once built, this object can be read from multiple threads.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class RemoteTree {
+
+    /**
+     * Root of the subtree
+     */
+    private GBFile root;
+
+    /**
+     * Files by id
+     */
+    private final Map<Long, GBFile> files = new HashMap<>();
+
+    /**
+     * Children by father id and name
+     */
+    private final Map<Long, Map<String, GBFile>> children = new HashMap<>();
+
+    /**
+     * Content hashes by id
+     */
+    private final Map<Long, String> hashes = new HashMap<>();
+
+    /**
+     * Read the snapshot of the subtree from the source
+     * @param source Source of the snapshot
+     * @param root Root of the subtree to read
+     * @return The subtree
+     * @throws ClientException Exception while reading the snapshot
+     */
+    public static RemoteTree load (TreeSnapshotSource source, GBFile root) throws ClientException {
+        RemoteTree tree = new RemoteTree();
+        source.getTreeSnapshot(root, TreeSnapshotSource.DEFAULT_PAGE_SIZE, (page, hashes) -> {
+            for (GBFile file : page) {
+                tree.add(file);
+            }
+            tree.hashes.putAll(hashes);
+        });
+        return tree;
+    }
+
+    private void add (GBFile file) {
+        if (root == null) {
+            root = file;
+        } else {
+            children.computeIfAbsent(file.getFatherID(), id -> new HashMap<>()).put(file.getName(), file);
+        }
+        files.put(file.getID(), file);
+    }
+
+    /**
+     * Return the root of the subtree
+     * @return Root, null if the root is not in the storage
+     */
+    public GBFile getRoot () {
+        return root;
+    }
+
+    /**
+     * Return the children of the specified folder, by name
+     * @param folder Folder of the subtree
+     * @return Map with the children, empty if the folder has no children
+     */
+    public Map<String, GBFile> getChildren (GBFile folder) {
+        Map<String, GBFile> folderChildren = children.get(folder.getID());
+        return folderChildren == null ? Collections.emptyMap() : folderChildren;
+    }
+
+    /**
+     * Return the content hash of a file of the tree
+     * @param file File of the tree
+     * @return Hash, null if the storage doesn't know it
+     */
+    public String getHash (GBFile file) {
+        return hashes.get(file.getID());
+    }
+
+    /**
+     * Return the number of files in the subtree
+     * @return Number of files, including the root
+     */
+    public int size () {
+        return files.size();
+    }
+
+    /**
+     * Return the local version of a file of the tree.
+     * @param file File of the tree
+     * @param rootFolder Local folder that corresponds to the root of the tree
+     * @return Local file
+     */
+    public File toLocal (GBFile file, File rootFolder) {
+        if (file == root)
+            return rootFolder;
+
+        GBFile father = files.get(file.getFatherID());
+        return new File(toLocal(father, rootFolder), file.getName());
+    }
+}
@@ -0,0 +1,113 @@
+package it.simonedegiacomi.sync;
+
+import it.simonedegiacomi.goboxapi.client.ClientException;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Queue of the folders to scan again because their events were lost. The folders are scanned one at a time,
+ * and a folder is not queued if one of its parents is already waiting, because the scan of the parent
+ * includes it. The scans wait until {@link #start()}: before the first synchronization a folder may change
+ * after the reconciler saw it.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class RescanQueue {
+
+    /**
+     * Logger of the class
+     */
+    private static final Logger log = Logger.getLogger(RescanQueue.class);
+
+    /**
+     * Scanner of a folder
+     */
+    public interface Scanner {
+
+        void scan (File folder) throws IOException, ClientException;
+    }
+
+    private final Scanner scanner;
+
+    /**
+     * Folders waiting to be scanned
+     */
+    private final Set<File> pending = new HashSet<>();
+
+    /**
+     * Executor that scans the folders, null until the queue is started
+     */
+    private ExecutorService executor;
+
+    public RescanQueue (Scanner scanner) {
+        this.scanner = scanner;
+    }
+
+    /**
+     * Queue the scan of a folder
+     * @param folder Folder to scan
+     */
+    public void add (File folder) {
+        synchronized (pending) {
+            for (File waiting : pending) {
+                if (folder.toPath().startsWith(waiting.toPath()))
+                    return;
+            }
+
+            // The scan of the folder includes the pending scans of its children
+            pending.removeIf(waiting -> waiting.toPath().startsWith(folder.toPath()));
+            pending.add(folder);
+
+            if (executor != null) {
+                submit(folder);
+            }
+        }
+    }
+
+    /**
+     * Start scanning the queued folders, and the next ones as soon as they are added
+     */
+    public void start () {
+        synchronized (pending) {
+            executor = Executors.newSingleThreadExecutor();
+            for (File folder : pending) {
+                submit(folder);
+            }
+        }
+    }
+
+    /**
+     * Stop the scans. The scan in progress is interrupted and the queued ones are dropped
+     */
+    public void shutdown () {
+        synchronized (pending) {
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+        }
+    }
+
+    private void submit (File folder) {
+        executor.execute(() -> {
+
+            // The folder may have been included in the scan of a parent
+            synchronized (pending) {
+                if (!pending.remove(folder))
+                    return;
+            }
+            try {
+                scanner.scan(folder);
+            } catch (IOException | ClientException ex) {
+                log.warn("Cannot scan again " + folder, ex);
+            }
+        });
+    }
+}
@@ -0,0 +1,255 @@
+package it.simonedegiacomi.sync;
+
+import it.simonedegiacomi.goboxapi.GBFile;
+import it.simonedegiacomi.storage.utils.ContentHash;
+import it.simonedegiacomi.storage.utils.MyFileUtils;
+import it.simonedegiacomi.sync.fs.MyFileSystemWatcher;
+import it.simonedegiacomi.utils.Bandwidth;
+import org.apache.log4j.Logger;
+
+import javax.net.ssl.HttpsURLConnection;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The SegmentedDownloader downloads big files with more concurrent range requests to the direct download
+ * url of the storage, so a single tcp connection doesn't limit the transfer on the links with an high latency.
+ * The segments are written with positional writes into a preallocated temporary file, that replaces the
+ * local file only when all the segments have been received. The storage sends the hash of the file as ETag:
+ * all the segments must have the same one, and the temporary file must match it, so a file replaced in the
+ * storage during the download is not stitched from two versions.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class SegmentedDownloader {
+
+    /**
+     * Logger of the class
+     */
+    private static final Logger log = Logger.getLogger(SegmentedDownloader.class);
+
+    /**
+     * Default number of concurrent segments of a download
+     */
+    public static final int DEFAULT_SEGMENTS = 4;
+
+    /**
+     * Default minimum size of the files downloaded in segments
+     */
+    public static final long DEFAULT_MIN_SIZE = 32 * 1024 * 1024;
+
+    /**
+     * Times a segment is requested again, from where it stopped, before failing the download
+     */
+    private static final int SEGMENT_ATTEMPTS = 3;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Storage connected directly to the client
+     */
+    private final DirectStorage storage;
+
+    /**
+     * Watcher that has to ignore the temporary files
+     */
+    private final MyFileSystemWatcher watcher;
+
+    private final int segments;
+
+    private final long minSize;
+
+    /**
+     * Threads that download the segments
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Set when the storage doesn't serve the ranges
+     */
+    private volatile boolean unsupported;
+
+    public SegmentedDownloader (DirectStorage storage, MyFileSystemWatcher watcher, int segments, long minSize) {
+        this.storage = storage;
+        this.watcher = watcher;
+        this.segments = Math.max(1, segments);
+        this.minSize = minSize;
+        AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "Segment-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Download the file in segments
+     * @param file File to download, with the ID of the storage
+     * @param size Size of the file in the storage
+     * @return Hash of the downloaded file, null if the file can't be downloaded in segments and need to be
+     * downloaded with a single request
+     * @throws IOException Download failed
+     */
+    public String download (GBFile file, long size) throws IOException {
+        if (unsupported || segments < 2 || size < minSize || file.getID() == GBFile.UNKNOWN_ID)
+            return null;
+
+        String base = storage.baseUrl(file);
+        if (base == null)
+            return null;
+        String url = base + "/fromStorage?ID=" + file.getID();
+
+        // ETag of the first response, empty if the storage doesn't send it
+        AtomicReference<String> version = new AtomicReference<>();
+
+        File local = file.toFile();
+        File temp = new File(local.getParentFile(), '.' + local.getName() + ".download");
+        String hash;
+        local.getParentFile().mkdirs();
+        watcher.startIgnoring(temp);
+        try {
+            try (RandomAccessFile raf = new RandomAccessFile(temp, "rw")) {
+
+                // Preallocate the file
+                raf.setLength(size);
+                FileChannel channel = raf.getChannel();
+
+                // Download the segments, as a single transfer for the bandwidth limits
+                Bandwidth.Transfer transfer = Bandwidth.getInstance().newTransfer(Bandwidth.Direction.DOWNLOAD);
+                long segmentSize = (size + segments - 1) / segments;
+                List<Future<Boolean>> results = new ArrayList<>(segments);
+                for (long start = 0; start < size; start += segmentSize) {
+                    long segmentStart = start;
+                    long segmentEnd = Math.min(start + segmentSize, size);
+                    results.add(executor.submit(() -> downloadSegment(url, version, transfer, channel, segmentStart, segmentEnd, size)));
+                }
+
+                boolean served = true;
+                for (Future<Boolean> result : results) {
+                    served &= waitSegment(result, results);
+                }
+                if (!served) {
+                    log.info("The storage doesn't serve the ranges, segmented downloads disabled");
+                    unsupported = true;
+                    return null;
+                }
+
+                // Verify the download
+                channel.force(false);
+                if (channel.size() != size)
+                    throw new IOException("Downloaded file has a wrong size");
+            }
+
+            // Check the content against the hash of the storage
+            hash = ContentHash.getInstance().hash(temp);
+            String expected = version.get().replace("\"", "");
+            if (!expected.isEmpty() && !expected.equals(hash))
+                throw new IOException("Downloaded file doesn't match the hash of the storage");
+
+            // Replace the local file
+            MyFileUtils.replace(temp, local);
+        } finally {
+            temp.delete();
+            watcher.stopIgnoring(temp);
+        }
+
+        log.info("Segmented download of " + local + " completed");
+        return hash;
+    }
+
+    private boolean waitSegment (Future<Boolean> result, List<Future<Boolean>> all) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            all.forEach(future -> future.cancel(true));
+            throw new IOException("Download interrupted");
+        } catch (ExecutionException ex) {
+            all.forEach(future -> future.cancel(true));
+            throw ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException(ex.getCause());
+        }
+    }
+
+    /**
+     * Download a segment of the file. If the connection breaks, the segment is requested again from the
+     * last received byte
+     * @param version ETag of the first response of the download, set by the first response
+     * @return False if the storage doesn't serve the range
+     * @throws IOException Segment not downloaded
+     */
+    private boolean downloadSegment (String url, AtomicReference<String> version, Bandwidth.Transfer transfer, FileChannel channel, long start, long end, long size) throws IOException {
+        long position = start;
+        IOException last = null;
+        for (int attempt = 0; attempt < SEGMENT_ATTEMPTS && position < end; attempt++) {
+            HttpsURLConnection conn = storage.open(url, "GET");
+            conn.setRequestProperty("Range", "bytes=" + position + "-" + (end - 1));
+            try {
+                int code = conn.getResponseCode();
+                if (code == 200)
+                    return false;
+                if (code != 206)
+                    throw new IOException("Segment request failed: " + code);
+
+                // The file must be the same that the sync expects
+                String contentRange = conn.getHeaderField("Content-Range");
+                if (contentRange == null || !contentRange.equals("bytes " + position + "-" + (end - 1) + "/" + size))
+                    throw new IOException("File changed in the storage: " + contentRange);
+
+                // And the same version of the other segments
+                String etag = conn.getHeaderField("ETag");
+                if (etag == null) {
+                    etag = "";
+                }
+                if (!version.compareAndSet(null, etag) && !version.get().equals(etag))
+                    throw new IOException("File changed in the storage: " + etag);
+
+                position = write(transfer.limit(conn.getInputStream()), channel, position, end);
+            } catch (IOException ex) {
+                log.warn("Segment of " + url + " interrupted at " + position, ex);
+                last = ex;
+            } finally {
+                conn.disconnect();
+            }
+        }
+        if (position < end)
+            throw last != null ? last : new IOException("Segment not completed");
+        return true;
+    }
+
+    /**
+     * Write the stream to the file with positional writes
+     * @return Position after the last written byte
+     */
+    private long write (InputStream in, FileChannel channel, long position, long end) throws IOException {
+        byte[] bytes = new byte[BUFFER_SIZE];
+        try (InputStream from = in) {
+            while (position < end) {
+                int read = from.read(bytes, 0, (int) Math.min(bytes.length, end - position));
+                if (read < 0)
+                    break;
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, read);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Stop the download threads
+     */
+    public void shutdown () {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,176 @@
+package it.simonedegiacomi.sync;
+
+import it.simonedegiacomi.utils.TimerWheel;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * The SettleWindow delays the upload of the files that are still being written. A file is passed to the listener
+ * only when his size and last modified date didn't change for the duration of the window.
+ * Every new modification of the file restarts the window.
+ *
+ * The windows are tracked with a {@link TimerWheel}, so there is only one thread for all the files.
+ * This class is thread-safe.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class SettleWindow {
+
+    /**
+     * Logger of the class
+     */
+    private static final Logger log = Logger.getLogger(SettleWindow.class);
+
+    /**
+     * Default duration of the window in milliseconds
+     */
+    public static final long DEFAULT_WINDOW = 2000;
+
+    /**
+     * Duration of a tick of the wheel in milliseconds
+     */
+    private static final long TICK = 100;
+
+    /**
+     * Number of buckets of the wheel
+     */
+    private static final int WHEEL_SIZE = 512;
+
+    /**
+     * Wheel that tracks the windows
+     */
+    private final TimerWheel wheel;
+
+    /**
+     * Files that are not settled yet
+     */
+    private final Map<File, Pending> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Listener called when a file is settled
+     */
+    private final Consumer<File> listener;
+
+    /**
+     * Duration of the window in milliseconds
+     */
+    private final long window;
+
+    /**
+     * Create a new settle window
+     * @param window Duration of the window in milliseconds. If zero, the files are passed to the listener immediately
+     * @param listener Listener called with the settled files
+     */
+    public SettleWindow (long window, Consumer<File> listener) {
+        this.window = Math.max(0, window);
+        this.listener = listener;
+        this.wheel = this.window > 0 ? new TimerWheel("SettleWindow", TICK, TimeUnit.MILLISECONDS, WHEEL_SIZE) : null;
+    }
+
+    /**
+     * Notify that the file was created or modified. The window of the file (re)starts now
+     * @param file Modified file
+     */
+    public void touch (File file) {
+        if (wheel == null) {
+            listener.accept(file);
+            return;
+        }
+
+        pending.compute(file, (f, old) -> {
+            if (old != null)
+                old.timeout.cancel();
+            return schedule(f);
+        });
+    }
+
+    /**
+     * Forget a file that is not settled yet, for example because it was deleted
+     * @param file File to forget
+     * @return True if the file was not settled
+     */
+    public boolean cancel (File file) {
+        Pending old = pending.remove(file);
+        if (old == null)
+            return false;
+        old.timeout.cancel();
+        return true;
+    }
+
+    /**
+     * Return the number of files that are not settled yet
+     * @return Number of files in the window
+     */
+    public int size () {
+        return pending.size();
+    }
+
+    /**
+     * Stop the window. The files not settled are discarded
+     */
+    public void shutdown () {
+        if (wheel != null)
+            wheel.shutdown();
+        pending.clear();
+    }
+
+    /**
+     * Read the current state of the file and start a new window
+     * @param file File
+     * @return Pending state of the file
+     */
+    private Pending schedule (File file) {
+        Pending state = new Pending(file.length(), file.lastModified());
+        state.timeout = wheel.schedule(() -> check(file, state), window, TimeUnit.MILLISECONDS);
+        return state;
+    }
+
+    /**
+     * Called at the end of the window of a file
+     * @param file File
+     * @param state State of the file at the start of the window
+     */
+    private void check (File file, Pending state) {
+
+        // The file is deleted, there is nothing to upload
+        if (!file.exists()) {
+            pending.remove(file, state);
+            return;
+        }
+
+        // If the file is still changing, start a new window
+        if (file.length() != state.size || file.lastModified() != state.lastModified) {
+            pending.computeIfPresent(file, (f, current) -> current == state ? schedule(f) : current);
+            return;
+        }
+
+        // The file is stable
+        if (pending.remove(file, state)) {
+            log.info("File settled " + file);
+            listener.accept(file);
+        }
+    }
+
+    /**
+     * State of a file at the start of his window
+     */
+    private static class Pending {
+
+        private final long size;
+
+        private final long lastModified;
+
+        private TimerWheel.Timeout timeout;
+
+        private Pending (long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
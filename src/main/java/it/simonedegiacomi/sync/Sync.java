@@ -8,14 +8,15 @@ import it.simonedegiacomi.goboxapi.client.SyncEvent;
 import it.simonedegiacomi.goboxapi.client.SyncEventListener;
 import it.simonedegiacomi.goboxclient.GoBoxEnvironment;
 import it.simonedegiacomi.goboxclient.GoBoxFacade;
-import it.simonedegiacomi.storage.utils.MyFileUtils;
+import it.simonedegiacomi.sync.fs.EventBatcher;
 import it.simonedegiacomi.sync.fs.MyFileSystemWatcher;
 import org.apache.log4j.Logger;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A Sync object work with an implementation of the Client interface, and manage
@@ -53,11 +54,53 @@ public class Sync {
      */
     private MyFileSystemWatcher watcher;
 
+    /**
+     * Batcher that merges the events of the watcher and passes them to the listener of this class on its
+     * own thread, so the requests made by the listener don't slow down the watcher
+     */
+    private EventBatcher eventBatcher;
+
     /**
      * Path of the files folder
      */
     private final String PATH = config.getFolder("path", "files/").getAbsolutePath();
 
+    /**
+     * Interval between two automatic saves of the sync index
+     */
+    private static final long INDEX_SAVE_INTERVAL = 30;
+
+    /**
+     * Index with the state of the files at the last synchronization
+     */
+    private final SyncIndex index = new SyncIndex(new File(PATH), new File(config.getProperty("syncIndex", SyncIndex.DEFAULT_INDEX_FILE)));
+
+    /**
+     * Window that delays the uploads of the files that are still being written
+     */
+    private final SettleWindow settleWindow;
+
+    /**
+     * Executor that periodically saves the sync index
+     */
+    private ScheduledExecutorService indexSaver;
+
+    /**
+     * Reconciler used to scan again the folders whose events were lost
+     */
+    private Reconciler reconciler;
+
+    /**
+     * Source of the snapshots of the storage tree. The internal client reads them from the database, the
+     * other clients only when they are connected directly to the storage
+     */
+    private final TreeSnapshotSource treeSnapshots;
+
+    /**
+     * Folders to scan again because their events were lost
+     */
+    private final RescanQueue rescans;
+
     private volatile boolean syncState;
 
     /**
@@ -69,6 +112,23 @@ public class Sync {
     public Sync (GoBoxEnvironment env) {
         this.client = env.getClient();
         this.watcher = env.getFileSystemWatcher();
+        this.treeSnapshots = client instanceof TreeSnapshotSource ? (TreeSnapshotSource) client
+                : new DirectTreeSnapshot(new DirectStorage(client, config.getAuth()));
+
+        // Load the state of the last synchronization
+        try {
+            index.load();
+        } catch (IOException ex) {
+            log.warn("Cannot load the sync index", ex);
+            index.clear();
+        }
+
+        // Upload the modified files only when they are stable
+        long window = Long.parseLong(config.getProperty("settleWindow", String.valueOf(SettleWindow.DEFAULT_WINDOW)));
+        settleWindow = new SettleWindow(window, file -> this.workManager.addWork(new Work(new GBFile(file, PATH), Work.WorkKind.UPLOAD)));
+
+        // Scan again the folders whose events were lost, after the first synchronization
+        rescans = new RescanQueue(folder -> reconciler.rescan(folder, this.workManager));
 
         // Add listener to watcher
         prepareWatcher();
@@ -85,17 +145,21 @@ public class Sync {
      * @throws IOException
      */
     private void prepareWatcher () {
-        watcher.addListener(new MyFileSystemWatcher.FileSystemEventListener() {
+        long delay = Long.parseLong(config.getProperty("eventBatchDelay", String.valueOf(EventBatcher.DEFAULT_DELAY)));
+        eventBatcher = new EventBatcher(new MyFileSystemWatcher.FileSystemEventListener() {
 
             @Override
             public void onFileCreated(File newFile) {
                 log.info("new file created " + newFile);
 
-                // Wrap the java File into a GoBoxFile
-                GBFile wrappedFile = new GBFile(newFile, PATH);
+                // The folders are created immediately
+                if (newFile.isDirectory()) {
+                    workManager.addWork(new Work(new GBFile(newFile, PATH), Work.WorkKind.UPLOAD));
+                    return;
+                }
 
-                // Add the work
-                workManager.addWork(new Work(wrappedFile, Work.WorkKind.UPLOAD));
+                // Wait until the file is stable
+                settleWindow.touch(newFile);
             }
 
             @Override
@@ -105,17 +169,22 @@ public class Sync {
                 // Wrap the java File into a GoBoxFile
                 GBFile wrappedFile = new GBFile(modifiedFile, PATH);
 
-                if (wrappedFile.isDirectory()) {
-                    try {
-                        GBFile detailed = client.getInfo(wrappedFile);
-                        if (detailed != null && detailed.equals(modifiedFile)) {
-                            // Fake event
-                            log.info("Ignore modified folder event");
-                            return;
-                        }
-                    } catch (ClientException ex) {
-                        log.warn(ex.toString(), ex);
+                if (!wrappedFile.isDirectory()) {
+
+                    // Wait until the file is stable
+                    settleWindow.touch(modifiedFile);
+                    return;
+                }
+
+                try {
+                    GBFile detailed = client.getInfo(wrappedFile);
+                    if (detailed != null && detailed.equals(modifiedFile)) {
+                        // Fake event
+                        log.info("Ignore modified folder event");
+                        return;
                     }
+                } catch (ClientException ex) {
+                    log.warn(ex.toString(), ex);
                 }
 
                 // Create the new work
@@ -126,6 +195,10 @@ public class Sync {
             public void onFileDeleted(File deletedFile) {
                 log.info("file deleted " + deletedFile);
 
+                // If the file was never uploaded there is nothing to remove
+                if (settleWindow.cancel(deletedFile) && index.get(deletedFile) == null)
+                    return;
+
                 // Wrap the file
                 GBFile wrappedFile = new GBFile(deletedFile, PATH);
 
@@ -137,6 +210,13 @@ public class Sync {
             public void onFileMoved(File before, File movedFile) {
                 log.info("file moved from " + before + " to " + movedFile);
 
+                // If the file was still being written, upload it with the new name when it's stable
+                if (settleWindow.cancel(before)) {
+                    settleWindow.touch(movedFile);
+                    if (index.get(before) == null)
+                        return;
+                }
+
                 // Create the work
                 Work work = new Work(new GBFile(movedFile, PATH), Work.WorkKind.MOVE_IN_STORAGE);
                 work.setBefore(new GBFile(before, PATH));
@@ -144,7 +224,14 @@ public class Sync {
                 // And do it
                 workManager.addWork(work);
             }
-        });
+
+            @Override
+            public void onOverflow(File folder) {
+                log.warn("events lost in " + folder);
+                rescans.add(folder);
+            }
+        }, delay, EventBatcher.DEFAULT_MAX_SIZE);
+        watcher.addListener(eventBatcher);
     }
 
     /**
@@ -159,83 +246,24 @@ public class Sync {
         // Change sync flag
         syncState = true;
 
-        // Check the root and all the subfolder
-        checkR(GBFile.ROOT_FILE);
-        log.info("sync completed");
+        // Resume the works not completed before the last shutdown
+        workManager.resume();
 
-        // And listen for event's from the storage
-        assignSyncEventFromStorage();
-    }
-
-    /**
-     * Check the file passed as argument recursively
-     * @param file File to compare with the storage
-     * @throws IOException
-     * @throws ClientException
-     */
-    private void checkR (GBFile file) throws IOException, ClientException {
-
-        // Get details about this file
-        GBFile detailedFile = client.getInfo(file);
-
-        // If the storage doesn't know anything about this file
-        if(detailedFile == null) {
-
-            // Upload it
-            workManager.addWork(new Work(file, Work.WorkKind.UPLOAD));
-            return;
-        }
-
-        detailedFile.setPrefix(PATH);
-
-        // Check if i have this file
-        if (!detailedFile.toFile().exists()) {
-            workManager.addWork(new Work(detailedFile, Work.WorkKind.DOWNLOAD));
-            return;
-        }
-
-        MyFileUtils.loadFileAttributes(detailedFile);
-
-        // If it's a directory
-        if(detailedFile.isDirectory()) {
-
-            // Create a map with the name of the file as key and the GBFile
-            // as value. These files are the children of the folder
-            Map<String, GBFile> storageFiles = new HashMap<>();
-            for (GBFile child : detailedFile.getChildren())
-                storageFiles.put(child.getName(), child);
-
-            // Check every children (in the fs)
-            for (File child : detailedFile.toFile().listFiles()) {
-
-                // Check
-                checkR(new GBFile(child, PATH));
-
-                // And then remove from the map
-                storageFiles.remove(child.getName());
-            }
-
-            // Wait! and the remaining files in the map?
-            // This client doesn't have these file!
-            for (Map.Entry<String, GBFile> entry : storageFiles.entrySet()) {
-                checkR(entry.getValue());
-            }
-
-            // Empty the map
-            storageFiles.clear();
-        } else {
+        // Compare the file system with the storage
+        int threads = Integer.parseInt(config.getProperty("syncThreads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        reconciler = new Reconciler(client, treeSnapshots, index, PATH, threads);
+        reconciler.reconcile(workManager);
+        log.info("sync completed");
 
-            System.out.println("Local copy: " + detailedFile.toFile().lastModified() + " Remote copy: " + detailedFile.getLastUpdateDate());
+        // Scan the folders whose events were lost until now
+        rescans.start();
 
-            if (detailedFile.getLastUpdateDate() == detailedFile.toFile().lastModified()) {
-                // Already up to date
-                return;
-            }
+        // Save periodically the index
+        indexSaver = Executors.newSingleThreadScheduledExecutor();
+        indexSaver.scheduleWithFixedDelay(this::saveIndex, INDEX_SAVE_INTERVAL, INDEX_SAVE_INTERVAL, TimeUnit.SECONDS);
 
-            // If it's not a directory but it's a file check who have the latest version
-            Work.WorkKind action = detailedFile.getLastUpdateDate() > detailedFile.toFile().lastModified() ? Work.WorkKind.UPLOAD : Work.WorkKind.DOWNLOAD;
-            workManager.addWork(new Work(detailedFile, action));
-        }
+        // And listen for event's from the storage
+        assignSyncEventFromStorage();
     }
 
     /**
@@ -271,7 +299,25 @@ public class Sync {
     public void shutdown () throws InterruptedException {
         syncState = false;
         watcher.shutdown();
+        eventBatcher.shutdown();
+        settleWindow.shutdown();
         workManager.shutdown();
+        if (indexSaver != null) {
+            indexSaver.shutdownNow();
+        }
+        rescans.shutdown();
+        saveIndex();
+    }
+
+    /**
+     * Save the sync index if changed
+     */
+    private void saveIndex () {
+        try {
+            index.saveIfDirty();
+        } catch (IOException ex) {
+            log.warn("Cannot save the sync index", ex);
+        }
     }
 
     public MyFileSystemWatcher getFileSystemWatcher () {
@@ -280,6 +326,12 @@ public class Sync {
 
     public WorkManager getWorkManager() { return workManager; }
 
+    public SyncIndex getIndex() { return index; }
+
+    public SettleWindow getSettleWindow() { return settleWindow; }
+
+    public TreeSnapshotSource getTreeSnapshots() { return treeSnapshots; }
+
     public void setSyncing(boolean newState) throws InterruptedException, ClientException, IOException {
         if (newState == syncState)
             return;
@@ -0,0 +1,477 @@
+package it.simonedegiacomi.sync;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import it.simonedegiacomi.goboxapi.GBFile;
+import it.simonedegiacomi.storage.utils.ContentHash;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The SyncIndex keeps the state of every file at the time of its last successful synchronization
+ * (size, last modification date, ID in the storage and content hash). The index is saved on the
+ * disk, next to the configuration, so at the next start the sync can compare the local file system
+ * with the index and ask to the storage only the files that are changed.
+ *
+ * The keys of the index are the paths of the files relative to the sync folder, separated by '/'.
+ * The root folder has an empty path.
+ *
+ * This class is thread-safe.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class SyncIndex {
+
+    /**
+     * Logger of the class
+     */
+    private static final Logger log = Logger.getLogger(SyncIndex.class);
+
+    /**
+     * Default location of the index file
+     */
+    public static final String DEFAULT_INDEX_FILE = "config/sync.index";
+
+    /**
+     * Root of the synchronized folder
+     */
+    private final File root;
+
+    /**
+     * File where the index is saved
+     */
+    private final File indexFile;
+
+    /**
+     * Entries of the index, sorted by path. The order is used to find all the children of a folder
+     * with a range query
+     */
+    private final ConcurrentSkipListMap<String, Entry> entries = new ConcurrentSkipListMap<>();
+
+    /**
+     * Flag that indicates if the index was changed after the last save
+     */
+    private volatile boolean dirty;
+
+    /**
+     * Create a new index for the specified folder
+     * @param root Synchronized folder
+     * @param indexFile File where the index is stored
+     */
+    public SyncIndex (File root, File indexFile) {
+        this.root = root.getAbsoluteFile();
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * Load the index from the disk. If the file doesn't exist the index remains empty
+     * @throws IOException Exception while reading the index file
+     */
+    public void load () throws IOException {
+        entries.clear();
+
+        if (!indexFile.exists()) {
+            log.info("Sync index not found, a full synchronization is needed");
+            return;
+        }
+
+        JsonReader reader = new JsonReader(new InputStreamReader(new BufferedInputStream(new FileInputStream(indexFile)), StandardCharsets.UTF_8));
+        try {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                String path = null;
+                Entry entry = new Entry();
+
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if (reader.peek() == JsonToken.NULL) {
+                        reader.nextNull();
+                        continue;
+                    }
+                    switch (name) {
+                        case "path":
+                            path = reader.nextString();
+                            break;
+                        case "directory":
+                            entry.directory = reader.nextBoolean();
+                            break;
+                        case "size":
+                            entry.size = reader.nextLong();
+                            break;
+                        case "lastModified":
+                            entry.lastModified = reader.nextLong();
+                            break;
+                        case "ID":
+                            entry.remoteID = reader.nextLong();
+                            break;
+                        case "hash":
+                            entry.hash = reader.nextString();
+                            break;
+                        case "remoteLastUpdate":
+                            entry.remoteLastUpdate = reader.nextLong();
+                            break;
+                        default:
+                            reader.skipValue();
+                            break;
+                    }
+                }
+                reader.endObject();
+
+                if (path != null) {
+                    entries.put(path, entry);
+                }
+            }
+            reader.endArray();
+        } catch (IllegalStateException ex) {
+
+            // A corrupted index is not a problem, the sync just makes a full synchronization
+            log.warn("Sync index corrupted, ignoring it", ex);
+            entries.clear();
+        } finally {
+            reader.close();
+        }
+
+        dirty = false;
+        log.info("Sync index loaded with " + entries.size() + " entries");
+    }
+
+    /**
+     * Save the index to the disk. The index is first written to a temporary file that then
+     * replaces the old one, so a crash while saving doesn't corrupt the index
+     * @throws IOException Exception while writing the file
+     */
+    public synchronized void save () throws IOException {
+
+        // Clear the flag before the write, so changes made during the write are not lost
+        dirty = false;
+
+        if (indexFile.getAbsoluteFile().getParentFile() != null) {
+            indexFile.getAbsoluteFile().getParentFile().mkdirs();
+        }
+
+        File temp = new File(indexFile.getPath() + ".tmp");
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(temp)), StandardCharsets.UTF_8));
+        try {
+            writer.beginArray();
+            for (java.util.Map.Entry<String, Entry> pair : entries.entrySet()) {
+                Entry entry = pair.getValue();
+                writer.beginObject();
+                writer.name("path").value(pair.getKey());
+                writer.name("directory").value(entry.directory);
+                writer.name("size").value(entry.size);
+                writer.name("lastModified").value(entry.lastModified);
+                writer.name("ID").value(entry.remoteID);
+                if (entry.hash != null) {
+                    writer.name("hash").value(entry.hash);
+                }
+                if (entry.remoteLastUpdate != 0) {
+                    writer.name("remoteLastUpdate").value(entry.remoteLastUpdate);
+                }
+                writer.endObject();
+            }
+            writer.endArray();
+        } finally {
+            writer.close();
+        }
+
+        Files.move(temp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Save the index only if it was changed after the last save
+     * @throws IOException Exception while writing the file
+     */
+    public void saveIfDirty () throws IOException {
+        if (dirty) {
+            save();
+        }
+    }
+
+    /**
+     * Check if the index is empty. An empty index means that the folder was never synchronized
+     * @return True if the index doesn't contain any entry
+     */
+    public boolean isEmpty () {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Return the path of the file relative to the synchronized folder
+     * @param file File
+     * @return Relative path, used as key of the index
+     */
+    public String pathOf (File file) {
+        String path = root.toPath().relativize(file.getAbsoluteFile().toPath()).toString();
+        return path.replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Return the entry of the specified file
+     * @param file Local file
+     * @return Entry of the file or null if the file is not in the index
+     */
+    public Entry get (File file) {
+        return entries.get(pathOf(file));
+    }
+
+    /**
+     * Return the entry at the specified path
+     * @param path Relative path
+     * @return Entry or null if not found
+     */
+    public Entry get (String path) {
+        return entries.get(path);
+    }
+
+    /**
+     * Check if the local file is unchanged since the last synchronization. Size and last modification
+     * dates are compared, so this method doesn't need to read the file
+     * @param file Local file
+     * @return True if the file is still the same of the one in the index
+     */
+    public boolean isUnchanged (File file) {
+        Entry entry = get(file);
+        if (entry == null || !file.exists() || entry.directory != file.isDirectory())
+            return false;
+        return entry.lastModified == file.lastModified() && (entry.directory || entry.size == file.length());
+    }
+
+    /**
+     * Update the entry of the file reading the attributes from the local file system.
+     * @param file Synchronized file. If the file knows his id, it is saved too
+     */
+    public void update (GBFile file) {
+        update(file, 0);
+    }
+
+    /**
+     * Update the entry of the file reading the attributes from the local file system, and remember the
+     * last update date of the same version in the storage
+     * @param file Synchronized file. If the file knows his id, it is saved too
+     * @param remoteLastUpdate Last update date of the file in the storage, 0 if not known
+     */
+    public void update (GBFile file, long remoteLastUpdate) {
+        update(file, remoteLastUpdate, null);
+    }
+
+    /**
+     * Update the entry of the file reading the attributes from the local file system, and remember the
+     * last update date of the same version in the storage. The file is read only if the hash is not
+     * given and the size or the last modification date changed since the last update
+     * @param file Synchronized file. If the file knows his id, it is saved too
+     * @param remoteLastUpdate Last update date of the file in the storage, 0 if not known
+     * @param hash Hash of the current content of the file, null if not known
+     */
+    public void update (GBFile file, long remoteLastUpdate, String hash) {
+        File local = file.toFile();
+        if (!local.exists()) {
+            remove(local);
+            return;
+        }
+
+        Entry entry = new Entry();
+        entry.directory = local.isDirectory();
+        entry.size = entry.directory ? 0 : local.length();
+        entry.lastModified = local.lastModified();
+        entry.remoteID = file.getID();
+        entry.remoteLastUpdate = remoteLastUpdate;
+
+        // Keep the old id if the file doesn't know it
+        Entry old = entries.get(pathOf(local));
+        if (old != null && entry.remoteID == GBFile.UNKNOWN_ID) {
+            entry.remoteID = old.remoteID;
+        }
+
+        // Keep the old hash if the file didn't change
+        if (!entry.directory) {
+            if (hash == null && old != null && !old.directory && old.size == entry.size
+                    && old.lastModified == entry.lastModified) {
+                hash = old.hash;
+            }
+            entry.hash = hash != null ? hash : hashOf(local);
+        }
+
+        entries.put(pathOf(local), entry);
+        dirty = true;
+    }
+
+    /**
+     * Return the content hash of a local file
+     * @param file Local file, not a directory
+     * @return Hash of the file, null if the file can't be read
+     */
+    public static String hashOf (File file) {
+        try {
+            return ContentHash.getInstance().hash(file);
+        } catch (IOException ex) {
+            log.warn("Cannot compute the hash of " + file, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Check if the content of the local file is the same of the one at the last synchronization, even if
+     * the last modified date changed. The file is read only if the size didn't change
+     * @param file Local file
+     * @return True if the content is unchanged
+     */
+    public boolean isContentUnchanged (File file) {
+        Entry entry = get(file);
+        if (entry == null || entry.hash == null || entry.directory || !file.isFile() || entry.size != file.length())
+            return false;
+        return entry.hash.equals(hashOf(file));
+    }
+
+    /**
+     * Remove the file from the index. If the file is a folder all his children are removed too
+     * @param file File to remove
+     */
+    public void remove (File file) {
+        String path = pathOf(file);
+        entries.remove(path);
+        descendants(path).clear();
+        dirty = true;
+    }
+
+    /**
+     * Move the entry of a file (and of all his children) to a new path
+     * @param before Old location of the file
+     * @param after New location of the file
+     */
+    public void move (File before, File after) {
+        String from = pathOf(before);
+        String to = pathOf(after);
+
+        Entry entry = entries.remove(from);
+        if (entry != null) {
+            entries.put(to, entry);
+        }
+
+        NavigableMap<String, Entry> children = descendants(from);
+        for (java.util.Map.Entry<String, Entry> child : children.entrySet()) {
+            entries.put(to + child.getKey().substring(from.length()), child.getValue());
+        }
+        children.clear();
+        dirty = true;
+    }
+
+    /**
+     * Return a view of all the descendants of the specified folder. The view is backed by the index
+     * @param path Path of the folder
+     * @return Descendant entries
+     */
+    public NavigableMap<String, Entry> descendants (String path) {
+        if (path.isEmpty()) {
+            return entries.tailMap("", false);
+        }
+
+        // '0' is the character that follows '/'
+        return entries.subMap(path + '/', true, path + '0', false);
+    }
+
+    /**
+     * Return the direct children of the specified folder. The descendants of each child are skipped with
+     * a range query, so the cost doesn't depend on the size of the subtrees
+     * @param path Path of the folder
+     * @return Entries of the children, by name
+     */
+    public Map<String, Entry> children (String path) {
+        String prefix = path.isEmpty() ? "" : path + '/';
+        NavigableMap<String, Entry> descendants = descendants(path);
+        Map<String, Entry> children = new HashMap<>();
+
+        String key = descendants.isEmpty() ? null : descendants.firstKey();
+        while (key != null) {
+            String rest = key.substring(prefix.length());
+            int slash = rest.indexOf('/');
+            String name = slash < 0 ? rest : rest.substring(0, slash);
+            Entry child = entries.get(prefix + name);
+            if (child != null) {
+                children.put(name, child);
+            }
+
+            // '0' is the character that follows '/'
+            key = slash < 0 ? descendants.higherKey(key) : descendants.ceilingKey(prefix + name + '0');
+        }
+        return children;
+    }
+
+    /**
+     * Remove all the entries from the index
+     */
+    public void clear () {
+        entries.clear();
+        dirty = true;
+    }
+
+    /**
+     * State of a file at the time of the last synchronization
+     */
+    public static class Entry {
+
+        /**
+         * Is the file a directory
+         */
+        private boolean directory;
+
+        /**
+         * Size of the file
+         */
+        private long size;
+
+        /**
+         * Last modification date of the local file
+         */
+        private long lastModified;
+
+        /**
+         * ID of the file in the storage
+         */
+        private long remoteID = GBFile.UNKNOWN_ID;
+
+        /**
+         * Content hash of the file. Can be null
+         */
+        private String hash;
+
+        /**
+         * Last update date of the version of the file in the storage, 0 if not known
+         */
+        private long remoteLastUpdate;
+
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public long getRemoteID() {
+            return remoteID;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public long getRemoteLastUpdate() {
+            return remoteLastUpdate;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package it.simonedegiacomi.sync;
+
+import it.simonedegiacomi.goboxapi.GBFile;
+import it.simonedegiacomi.goboxapi.client.ClientException;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A client that implements this interface can read a whole subtree of the storage with few requests
+ * (see the 'treeSnapshot' query of the storage). The sync uses it to compare the file system with the
+ * storage without asking the information of every folder.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public interface TreeSnapshotSource {
+
+    /**
+     * Default number of files in a page
+     */
+    int DEFAULT_PAGE_SIZE = 1000;
+
+    /**
+     * Read the subtree of the specified file. The pages are passed to the listener in order and the root is
+     * the first file of the first page. The files don't have the path and the children, but they know their id
+     * and the id of their father. With every page the listener receives also the content hashes of the files
+     * of the page that the storage knows.
+     * @param root Root of the subtree
+     * @param pageSize Maximum number of files in a page
+     * @param listener Listener that receives the pages
+     * @throws ClientException Exception while reading the snapshot
+     */
+    void getTreeSnapshot (GBFile root, int pageSize, PageListener listener) throws ClientException;
+
+    interface PageListener {
+
+        /**
+         * Called for each page of the snapshot
+         * @param files Files of the page
+         * @param hashes Content hashes of the files, by id. Files with an unknown hash are not in the map
+         */
+        void onPage (List<GBFile> files, Map<Long, String> hashes);
+    }
+}
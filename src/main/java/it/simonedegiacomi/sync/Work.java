@@ -72,6 +72,11 @@ public class Work {
         FAILED
     }
 
+    /**
+     * Id of the work in the journal, zero if the work is not in the journal
+     */
+    private long id;
+
     /**
      * Kind of this work
      */
@@ -82,6 +87,16 @@ public class Work {
      */
     private WorkState state = WorkState.QUEUE;
 
+    /**
+     * Number of failed attempts
+     */
+    private int attempts;
+
+    /**
+     * Exception of the last failed attempt
+     */
+    private Exception error;
+
     /**
      * Used with the MOVE work
      */
@@ -165,6 +180,32 @@ public class Work {
 
     public void setState (WorkState state) { this.state = state; }
 
+    public long getID() {
+        return id;
+    }
+
+    public void setID(long id) {
+        this.id = id;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Record a failed attempt of the work
+     * @param error Exception of the attempt
+     * @return Number of failed attempts
+     */
+    public int failed(Exception error) {
+        this.error = error;
+        return ++attempts;
+    }
+
+    public Exception getError() {
+        return error;
+    }
+
     public WorkKind getKind() {
         return kind;
     }
@@ -0,0 +1,169 @@
+package it.simonedegiacomi.sync;
+
+import it.simonedegiacomi.goboxapi.GBFile;
+
+/**
+ * The WorkCoalescer decides how a new work merges with a work of the same file that is still in the queue,
+ * so only the net effect of many events reaches the network. For example:
+ * - UPLOAD + UPLOAD = one UPLOAD;
+ * - UPLOAD of a never synchronized file + REMOVE_IN_STORAGE = nothing;
+ * - MOVE_IN_STORAGE a to b + MOVE_IN_STORAGE b to c = MOVE_IN_STORAGE a to c.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class WorkCoalescer {
+
+    /**
+     * Possible results of a merge
+     */
+    public enum Outcome {
+
+        /**
+         * The queued work already does what the new work asks, drop the new one
+         */
+        KEEP_QUEUED,
+
+        /**
+         * The queued work must be replaced with the result work
+         */
+        REPLACE,
+
+        /**
+         * The two works cancel each other, drop both
+         */
+        CANCEL_BOTH,
+
+        /**
+         * The works can't be merged, the new work must be queued after the queued one
+         */
+        APPEND
+    }
+
+    /**
+     * Index used to know if a file was ever synchronized
+     */
+    private final SyncIndex index;
+
+    public WorkCoalescer (SyncIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * Merge a new work with a queued work of the same file
+     * @param queued Work in the queue, not started yet
+     * @param incoming New work
+     * @return Result of the merge
+     */
+    public Merge merge (Work queued, Work incoming) {
+        Work.WorkKind queuedKind = queued.getKind();
+        Work.WorkKind incomingKind = incoming.getKind();
+
+        // Moves chain: a -> b followed by b -> c
+        if (isMove(queuedKind) && queuedKind == incomingKind && incoming.getBefore() != null
+                && samePath(queued.getFile(), incoming.getBefore())) {
+
+            // a -> b -> a is nothing
+            if (samePath(queued.getBefore(), incoming.getFile()))
+                return new Merge(Outcome.CANCEL_BOTH, null);
+
+            Work chained = new Work(incoming.getFile(), queuedKind);
+            chained.setBefore(queued.getBefore());
+            return new Merge(Outcome.REPLACE, chained);
+        }
+
+        // The other rules are about the same file
+        if (isMove(queuedKind) || isMove(incomingKind) || !samePath(queued.getFile(), incoming.getFile()))
+            return new Merge(Outcome.APPEND, null);
+
+        // Same work twice
+        if (queuedKind == incomingKind)
+            return new Merge(Outcome.KEEP_QUEUED, null);
+
+        boolean neverSynced = index == null || index.get(incoming.getFile().toFile()) == null;
+
+        switch (incomingKind) {
+            case REMOVE_IN_STORAGE:
+
+                // Created and deleted before the upload
+                if (queuedKind == Work.WorkKind.UPLOAD)
+                    return neverSynced ? new Merge(Outcome.CANCEL_BOTH, null) : new Merge(Outcome.REPLACE, incoming);
+                break;
+
+            case REMOVE_IN_CLIENT:
+
+                // Created and deleted in the storage before the download
+                if (queuedKind == Work.WorkKind.DOWNLOAD)
+                    return neverSynced ? new Merge(Outcome.CANCEL_BOTH, null) : new Merge(Outcome.REPLACE, incoming);
+                break;
+
+            case UPLOAD:
+
+                // Deleted and created again, the upload replaces the old version
+                if (queuedKind == Work.WorkKind.REMOVE_IN_STORAGE
+                        && regularFiles(incoming.getFile(), incoming.getFile().toFile().isDirectory()))
+                    return new Merge(Outcome.REPLACE, incoming);
+                break;
+
+            case DOWNLOAD:
+
+                // Deleted and created again in the storage
+                if (queuedKind == Work.WorkKind.REMOVE_IN_CLIENT
+                        && regularFiles(incoming.getFile(), incoming.getFile().isDirectory()))
+                    return new Merge(Outcome.REPLACE, incoming);
+                break;
+        }
+
+        return new Merge(Outcome.APPEND, null);
+    }
+
+    /**
+     * Check if the synchronized version and the new version of the file are both regular files. Only a file
+     * can be replaced: the transfer of a folder doesn't remove the children of the old folder, and a file
+     * replaced by a folder (or vice versa) must be removed first
+     * @param file File deleted and created again
+     * @param directory True if the new version is a folder
+     * @return True if the new version can replace the removal
+     */
+    private boolean regularFiles (GBFile file, boolean directory) {
+        SyncIndex.Entry synced = index == null ? null : index.get(file.toFile());
+        return synced != null && !synced.isDirectory() && !directory;
+    }
+
+    private static boolean isMove (Work.WorkKind kind) {
+        return kind == Work.WorkKind.MOVE_IN_STORAGE || kind == Work.WorkKind.MOVE_IN_CLIENT;
+    }
+
+    private static boolean samePath (GBFile a, GBFile b) {
+        if (a == null || b == null)
+            return false;
+        return WorkScheduler.pathOf(a).equals(WorkScheduler.pathOf(b));
+    }
+
+    /**
+     * Result of a merge
+     */
+    public static class Merge {
+
+        private final Outcome outcome;
+
+        private final Work result;
+
+        public Merge (Outcome outcome, Work result) {
+            this.outcome = outcome;
+            this.result = result;
+        }
+
+        public Outcome getOutcome() {
+            return outcome;
+        }
+
+        /**
+         * Return the work that replaces the queued one. Not null only if the outcome is {@link Outcome#REPLACE}
+         * @return Work that replaces the queued one
+         */
+        public Work getResult() {
+            return result;
+        }
+    }
+}
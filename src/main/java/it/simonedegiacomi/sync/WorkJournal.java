@@ -0,0 +1,295 @@
+package it.simonedegiacomi.sync;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import it.simonedegiacomi.goboxapi.GBFile;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The WorkJournal is an append-only log of the works added to the queue and of the works completed.
+ * When the client restarts (or crashes) the journal is replayed, and the works that were not completed are
+ * queued again, without the need of a full comparison with the storage.
+ *
+ * Each line of the journal is a JSON object. The 'ADD' records contain the work, the 'DONE' records contain only the
+ * id of the completed work. The records are written in a buffer and flushed on the disk (with a fsync) in batches,
+ * every {@link #FLUSH_INTERVAL} milliseconds. A crash can lose only the records of the last batch, and a lost
+ * record means only that a work is done twice or found again by the reconciliation.
+ *
+ * The works added while the journal is not open (before {@link #open()} or after {@link #close()}) are kept in
+ * memory and written when the journal is opened, so the works queued by the watcher before the first
+ * synchronization are not lost.
+ *
+ * This class is thread-safe.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class WorkJournal {
+
+    /**
+     * Logger of the class
+     */
+    private static final Logger log = Logger.getLogger(WorkJournal.class);
+
+    /**
+     * Default location of the journal
+     */
+    public static final String DEFAULT_JOURNAL_FILE = "config/works.journal";
+
+    /**
+     * Interval between two flushes of the journal, in milliseconds
+     */
+    public static final long FLUSH_INTERVAL = 200;
+
+    /**
+     * Root of the synchronized folder
+     */
+    private final File root;
+
+    /**
+     * Prefix of the GBFiles
+     */
+    private final String prefix;
+
+    /**
+     * File of the journal
+     */
+    private final File journalFile;
+
+    /**
+     * Next id of the works
+     */
+    private final AtomicLong nextID = new AtomicLong(1);
+
+    /**
+     * Stream of the journal file, used to force the data on the disk
+     */
+    private FileOutputStream out;
+
+    /**
+     * Buffered writer on the journal file
+     */
+    private Writer writer;
+
+    /**
+     * Flag that indicates if there are records not yet flushed
+     */
+    private boolean dirty;
+
+    /**
+     * Executor that flushes the journal
+     */
+    private ScheduledExecutorService flusher;
+
+    /**
+     * Works added while the journal was not open, in the order they were added
+     */
+    private final Set<Work> waiting = new LinkedHashSet<>();
+
+    /**
+     * Create a new journal
+     * @param root Synchronized folder
+     * @param prefix Prefix of the GBFiles of the works
+     * @param journalFile File of the journal
+     */
+    public WorkJournal (File root, String prefix, File journalFile) {
+        this.root = root.getAbsoluteFile();
+        this.prefix = prefix;
+        this.journalFile = journalFile;
+    }
+
+    /**
+     * Read the journal and return the works that were not completed, in the order they were added.
+     * The journal is then compacted, keeping only these works, and opened to append the new records.
+     * @return Works not completed
+     * @throws IOException Exception while reading or writing the journal
+     */
+    public synchronized List<Work> open () throws IOException {
+        Map<Long, JsonObject> pending = new LinkedHashMap<>();
+
+        if (journalFile.exists()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), StandardCharsets.UTF_8));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    JsonObject record;
+                    try {
+                        record = new JsonParser().parse(line).getAsJsonObject();
+                    } catch (JsonParseException | IllegalStateException ex) {
+
+                        // The last record can be truncated by a crash
+                        log.warn("Invalid record in the work journal: " + line);
+                        continue;
+                    }
+
+                    long id = record.get("id").getAsLong();
+                    nextID.set(Math.max(nextID.get(), id + 1));
+                    if ("ADD".equals(record.get("op").getAsString())) {
+                        pending.put(id, record);
+                    } else {
+                        pending.remove(id);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        // Compact the journal
+        File temp = new File(journalFile.getPath() + ".tmp");
+        if (journalFile.getParentFile() != null)
+            journalFile.getParentFile().mkdirs();
+        Writer compacted = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8));
+        try {
+            for (JsonObject record : pending.values()) {
+                compacted.write(record.toString());
+                compacted.write('\n');
+            }
+        } finally {
+            compacted.close();
+        }
+        Files.move(temp.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // Open the journal in append mode
+        out = new FileOutputStream(journalFile, true);
+        writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        flusher = Executors.newSingleThreadScheduledExecutor();
+        flusher.scheduleWithFixedDelay(this::flushQuietly, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+
+        // Write the works added while the journal was closed. They get the id now, so they can't take the id
+        // of a work read from the file
+        for (Work work : waiting) {
+            work.setID(nextID.getAndIncrement());
+            write(toRecord(work));
+        }
+        waiting.clear();
+
+        List<Work> works = new ArrayList<>(pending.size());
+        for (JsonObject record : pending.values()) {
+            works.add(fromRecord(record));
+        }
+        log.info("Work journal opened, " + works.size() + " works to resume");
+        return works;
+    }
+
+    /**
+     * Append a new work to the journal. If the work is already in the journal this method does nothing
+     * @param work New work
+     */
+    public synchronized void append (Work work) {
+        if (work.getID() != 0)
+            return;
+        if (writer == null) {
+            waiting.add(work);
+            return;
+        }
+        work.setID(nextID.getAndIncrement());
+        write(toRecord(work));
+    }
+
+    /**
+     * Mark the work as completed. The work will not be resumed at the next start
+     * @param work Completed work
+     */
+    public synchronized void complete (Work work) {
+        if (work.getID() == 0) {
+
+            // Completed before the journal was opened, there is nothing to write
+            waiting.remove(work);
+            return;
+        }
+        JsonObject record = new JsonObject();
+        record.addProperty("op", "DONE");
+        record.addProperty("id", work.getID());
+        write(record);
+    }
+
+    /**
+     * Flush the journal and close it
+     */
+    public synchronized void close () {
+        if (writer == null)
+            return;
+        flusher.shutdownNow();
+        flushQuietly();
+        try {
+            writer.close();
+        } catch (IOException ex) {
+            log.warn("Cannot close the work journal", ex);
+        }
+        writer = null;
+    }
+
+    private synchronized void write (JsonObject record) {
+        if (writer == null)
+            return;
+        try {
+            writer.write(record.toString());
+            writer.write('\n');
+            dirty = true;
+        } catch (IOException ex) {
+            log.warn("Cannot write the work journal", ex);
+        }
+    }
+
+    /**
+     * Write the buffered records and force them on the disk
+     */
+    private synchronized void flushQuietly () {
+        if (!dirty || writer == null)
+            return;
+        try {
+            writer.flush();
+            out.getFD().sync();
+            dirty = false;
+        } catch (IOException ex) {
+            log.warn("Cannot flush the work journal", ex);
+        }
+    }
+
+    private JsonObject toRecord (Work work) {
+        JsonObject record = new JsonObject();
+        record.addProperty("op", "ADD");
+        record.addProperty("id", work.getID());
+        record.addProperty("kind", work.getKind().name());
+        record.add("file", toJson(work.getFile()));
+        if (work.getBefore() != null)
+            record.add("before", toJson(work.getBefore()));
+        return record;
+    }
+
+    private JsonObject toJson (GBFile file) {
+        JsonObject json = new JsonObject();
+        json.addProperty("path", root.toPath().relativize(file.toFile().getAbsoluteFile().toPath()).toString().replace(File.separatorChar, '/'));
+        json.addProperty("ID", file.getID());
+        json.addProperty("size", file.getSize());
+        return json;
+    }
+
+    private Work fromRecord (JsonObject record) {
+        Work work = new Work(fromJson(record.getAsJsonObject("file")), Work.WorkKind.valueOf(record.get("kind").getAsString()));
+        work.setID(record.get("id").getAsLong());
+        if (record.has("before"))
+            work.setBefore(fromJson(record.getAsJsonObject("before")));
+        return work;
+    }
+
+    private GBFile fromJson (JsonObject json) {
+        String path = json.get("path").getAsString();
+        GBFile file = new GBFile(path.isEmpty() ? root : new File(root, path), prefix);
+        file.setID(json.get("ID").getAsLong());
+        file.setSize(json.get("size").getAsLong());
+        return file;
+    }
+}
@@ -1,17 +1,21 @@
 package it.simonedegiacomi.sync;
 
+import it.simonedegiacomi.configuration.Config;
+import it.simonedegiacomi.goboxapi.client.ClientException;
 import it.simonedegiacomi.goboxapi.client.GBClient;
 import it.simonedegiacomi.goboxclient.GoBoxEnvironment;
 import it.simonedegiacomi.goboxclient.GoBoxFacade;
+import it.simonedegiacomi.utils.TimerWheel;
 import org.apache.log4j.Logger;
 
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Degiacomi Simone
@@ -30,10 +34,50 @@ public class WorkManager {
     public final static int DEFAULT_THREADS = 4;
 
     /**
-     * Real java executor.
-     * (yes, this is just another wrapper...)
+     * Default number of attempts of a work before it's moved to the dead works
      */
-    private final ThreadPoolExecutor executor;
+    public final static int DEFAULT_MAX_ATTEMPTS = 8;
+
+    /**
+     * Maximum number of dead works kept in memory
+     */
+    private final static int MAX_DEAD_WORKS = 1000;
+
+    /**
+     * Scheduler that runs the works by priority
+     */
+    private final WorkScheduler scheduler;
+
+    /**
+     * Journal of the queued works, used to resume the works after a restart
+     */
+    private final WorkJournal journal;
+
+    /**
+     * Wheel used to retry the failed works
+     */
+    private final TimerWheel retryWheel = new TimerWheel("WorkRetry", 100, TimeUnit.MILLISECONDS, 512);
+
+    /**
+     * Delays of the retries
+     */
+    private final Backoff backoff;
+
+    /**
+     * Circuit breaker that stops the works when the storage is unreachable
+     */
+    private final CircuitBreaker breaker;
+
+    /**
+     * Maximum number of attempts of a work
+     */
+    private final int maxAttempts;
+
+    /**
+     * Works that failed too many times. These works are still in the journal, so they are tried again
+     * at the next start
+     */
+    private final ConcurrentLinkedDeque<Work> deadWorks = new ConcurrentLinkedDeque<>();
 
     private WorkStateListener workStateListener;
 
@@ -43,8 +87,52 @@ public class WorkManager {
     private final Employee employee;
 
     public WorkManager(GoBoxEnvironment env, int threads){
-        executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(threads);
         employee = new Employee(env.getClient(), env.getSync(), this);
+        scheduler = new WorkScheduler(threads, this::doWork);
+
+        // Merge the works of the same file that are still in the queue
+        scheduler.setCoalescer(new WorkCoalescer(env.getSync().getIndex()));
+
+        // Configure the scheduler
+        Config config = Config.getInstance();
+        File path = config.getFolder("path", "files/");
+        journal = new WorkJournal(path, path.getAbsolutePath(), new File(config.getProperty("workJournal", WorkJournal.DEFAULT_JOURNAL_FILE)));
+        scheduler.setQueueListener(new WorkScheduler.QueueListener() {
+
+            @Override
+            public void onQueued(Work work) {
+                journal.append(work);
+            }
+
+            @Override
+            public void onDiscarded(Work work) {
+                journal.complete(work);
+            }
+        });
+
+        scheduler.setSmallFileSize(Long.parseLong(config.getProperty("smallFileSize", String.valueOf(WorkScheduler.DEFAULT_SMALL_FILE_SIZE))));
+        scheduler.setAgingInterval(Long.parseLong(config.getProperty("workAgingInterval", String.valueOf(WorkScheduler.DEFAULT_AGING_INTERVAL))));
+        int bulkTransfers = Integer.parseInt(config.getProperty("bulkTransfers", String.valueOf(Math.max(1, threads / 2))));
+        scheduler.setLaneLimit(WorkScheduler.Lane.BULK_UPLOAD, bulkTransfers);
+        scheduler.setLaneLimit(WorkScheduler.Lane.BULK_DOWNLOAD, bulkTransfers);
+
+        // Configure the retries
+        maxAttempts = Integer.parseInt(config.getProperty("retryMaxAttempts", String.valueOf(DEFAULT_MAX_ATTEMPTS)));
+        backoff = new Backoff(Long.parseLong(config.getProperty("retryBaseDelay", String.valueOf(Backoff.DEFAULT_BASE_DELAY))),
+                Long.parseLong(config.getProperty("retryMaxDelay", String.valueOf(Backoff.DEFAULT_MAX_DELAY))));
+        breaker = new CircuitBreaker(Integer.parseInt(config.getProperty("breakerThreshold", String.valueOf(CircuitBreaker.DEFAULT_THRESHOLD))),
+                Long.parseLong(config.getProperty("breakerOpenTime", String.valueOf(CircuitBreaker.DEFAULT_OPEN_TIME))));
+    }
+
+    /**
+     * Open the journal and queue again the works that were not completed before the last shutdown
+     * @throws IOException Exception while reading the journal
+     */
+    public void resume () throws IOException {
+        for (Work work : journal.open()) {
+            log.info("Resuming work " + work);
+            addWork(work);
+        }
     }
 
     /**
@@ -52,28 +140,144 @@ public class WorkManager {
      * @param newWork Work to add
      */
     public void addWork(Work newWork) {
-        executor.submit(() -> {
-            log.info("running work " + newWork);
+        scheduler.submit(newWork);
+    }
+
+    /**
+     * Do a work, calling the listener. If the work fails it's scheduled again after a delay, and after too many
+     * attempts it's moved to the dead works
+     * @param work Work to do
+     */
+    private void doWork (Work work) {
+
+        // If the storage is unreachable, wait until the circuit breaker let the works go
+        boolean needsStorage = needsStorage(work);
+        if (needsStorage && !breaker.allowRequest()) {
+            retryLater(work, Math.max(breaker.getRemainingOpenTime(), Backoff.DEFAULT_BASE_DELAY));
+            return;
+        }
 
-            // Call the listener
-            workStateListener.onStartWork(newWork);
+        log.info("running work " + work);
 
-            if (!employee.submit(newWork)) {
-                log.warn("work failed " + newWork);
-                workStateListener.onFailWork(newWork);
+        // Call the listener
+        if (workStateListener != null)
+            workStateListener.onStartWork(work);
+
+        if (employee.submit(work)) {
+            if (needsStorage)
+                breaker.onSuccess();
+
+            // The work will not be resumed
+            journal.complete(work);
+        } else {
+            log.warn("work failed " + work);
+            if (workStateListener != null)
+                workStateListener.onFailWork(work);
+
+            // Tell the circuit breaker if the storage was not reachable
+            boolean storageError = needsStorage && isStorageError(work.getError());
+            if (storageError) {
+                breaker.onFailure();
+            } else if (needsStorage) {
+                breaker.onSuccess();
             }
 
-            // Call the listener
-            log.info("work completed " + newWork);
-            workStateListener.onCompleteWork(newWork);
-        });
+            if (work.getAttempts() < maxAttempts && (storageError || !isPermanentError(work.getError()))) {
+                retryLater(work, backoff.delay(work.getAttempts()));
+            } else {
+                log.warn("work dead after " + work.getAttempts() + " attempts " + work);
+                deadWorks.add(work);
+                if (deadWorks.size() > MAX_DEAD_WORKS)
+                    deadWorks.poll();
+            }
+        }
+
+        // Call the listener
+        log.info("work completed " + work);
+        if (workStateListener != null)
+            workStateListener.onCompleteWork(work);
+    }
+
+    /**
+     * Add again the work to the queue after the specified delay
+     * @param work Work to retry
+     * @param delay Delay in milliseconds
+     */
+    private void retryLater (Work work, long delay) {
+        log.info("retry of " + work + " in " + delay + "ms");
+        retryWheel.schedule(() -> {
+            work.setState(Work.WorkState.QUEUE);
+            addWork(work);
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private static boolean needsStorage (Work work) {
+        return work.getKind() != Work.WorkKind.MOVE_IN_CLIENT && work.getKind() != Work.WorkKind.REMOVE_IN_CLIENT;
+    }
+
+    /**
+     * Check if the error means that the storage is not reachable
+     * @param error Error of the work
+     * @return True if the storage is not reachable
+     */
+    private static boolean isStorageError (Exception error) {
+        return error instanceof ClientException || (error instanceof IOException && !isPermanentError(error));
+    }
+
+    /**
+     * Check if the error can't be solved retrying the work, for example because the file doesn't exist anymore
+     * @param error Error of the work
+     * @return True if the work should not be retried
+     */
+    private static boolean isPermanentError (Exception error) {
+        return error instanceof FileNotFoundException || error instanceof FileSystemException;
+    }
+
+    /**
+     * Return the works that failed too many times
+     * @return Dead works, the oldest first
+     */
+    public List<Work> getDeadWorks () {
+        return new ArrayList<>(deadWorks);
+    }
+
+    /**
+     * Add again all the dead works to the queue
+     * @return Number of works added to the queue
+     */
+    public int retryDeadWorks () {
+        int count = 0;
+        Work work;
+        while ((work = deadWorks.poll()) != null) {
+            work.setState(Work.WorkState.QUEUE);
+            addWork(work);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Forget all the dead works. These works will not be tried again at the next start
+     * @return Number of forgotten works
+     */
+    public int clearDeadWorks () {
+        int count = 0;
+        Work work;
+        while ((work = deadWorks.poll()) != null) {
+            journal.complete(work);
+            count++;
+        }
+        return count;
     }
 
     /**
      * Stop all the works immediately
      */
     public void shutdown () {
-        executor.shutdownNow();
+        retryWheel.shutdown();
+        scheduler.shutdown();
+        employee.shutdown();
+        journal.close();
     }
 
     /**
@@ -81,7 +285,7 @@ public class WorkManager {
      * @return Number of queued works
      */
     public int getQueueSize () {
-        return executor.getQueue().size();
+        return scheduler.size();
     }
 
     public void setWorkStateListener(WorkStateListener workStateListener) {
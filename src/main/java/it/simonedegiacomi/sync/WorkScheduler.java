@@ -0,0 +1,584 @@
+package it.simonedegiacomi.sync;
+
+import org.apache.log4j.Logger;
+
+import it.simonedegiacomi.goboxapi.GBFile;
+
+import java.util.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The WorkScheduler runs the works on a fixed set of threads. Works are divided in lanes by kind and size:
+ * metadata works (move and remove) go before the small transfers, that go before the bulk transfers.
+ * Every lane has a limit of concurrent works, so the big transfers can't take all the threads.
+ * Works that wait in the queue gain priority with the time (aging), so the bulk transfers are never starved.
+ *
+ * The queued works are also indexed by path: a new work of a file that has a work still in the queue is merged
+ * with it using the {@link WorkCoalescer}, and the works of the same file always run in the order they were added.
+ *
+ * This class is thread-safe.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class WorkScheduler {
+
+    /**
+     * Logger of the class
+     */
+    private static final Logger log = Logger.getLogger(WorkScheduler.class);
+
+    /**
+     * Default size under which a transfer is considered small
+     */
+    public static final long DEFAULT_SMALL_FILE_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * Default time a work must wait to gain one priority level
+     */
+    public static final long DEFAULT_AGING_INTERVAL = 30 * 1000;
+
+    /**
+     * Maximum number of works of a lane checked when the first ones are waiting for other works of the same file
+     */
+    private static final int MAX_LOOKAHEAD = 16;
+
+    /**
+     * Lanes of the scheduler. Lower priority value means that the works of the lane are run first
+     */
+    public enum Lane {
+
+        /**
+         * Move works
+         */
+        MOVE(0),
+
+        /**
+         * Remove works
+         */
+        REMOVE(0),
+
+        /**
+         * Uploads of small files
+         */
+        SMALL_UPLOAD(1),
+
+        /**
+         * Downloads of small files
+         */
+        SMALL_DOWNLOAD(1),
+
+        /**
+         * Uploads of big files
+         */
+        BULK_UPLOAD(2),
+
+        /**
+         * Downloads of big files
+         */
+        BULK_DOWNLOAD(2);
+
+        private final int priority;
+
+        Lane (int priority) {
+            this.priority = priority;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+    }
+
+    /**
+     * Object that does the works
+     */
+    public interface Runner {
+        void run (Work work);
+    }
+
+    /**
+     * Listener of the works that enter and leave the queue without running
+     */
+    public interface QueueListener {
+
+        /**
+         * Called when a work is added to the queue
+         * @param work Queued work
+         */
+        void onQueued (Work work);
+
+        /**
+         * Called when a work is removed from the queue because merged with another work
+         * @param work Discarded work
+         */
+        void onDiscarded (Work work);
+    }
+
+    /**
+     * Lock that protects all the lanes
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Signaled when a new work is available or a lane has a free slot
+     */
+    private final Condition available = lock.newCondition();
+
+    /**
+     * Queued works of each lane
+     */
+    private final Map<Lane, LinkedList<QueuedWork>> queues = new EnumMap<>(Lane.class);
+
+    /**
+     * Number of running works of each lane
+     */
+    private final Map<Lane, Integer> running = new EnumMap<>(Lane.class);
+
+    /**
+     * Maximum number of concurrent works of each lane
+     */
+    private final Map<Lane, Integer> limits = new EnumMap<>(Lane.class);
+
+    /**
+     * Queued works of each path, in the order they were added. A work is indexed with the path of his file and,
+     * if it is a move, with the path of the 'before' file
+     */
+    private final Map<String, LinkedList<QueuedWork>> queuedByPath = new HashMap<>();
+
+    /**
+     * Number of running works of each path
+     */
+    private final Map<String, Integer> runningPaths = new HashMap<>();
+
+    /**
+     * Number of queued works not cancelled
+     */
+    private int queuedCount;
+
+    /**
+     * Object that merges the works of the same file. If null, works are not merged
+     */
+    private volatile WorkCoalescer coalescer;
+
+    /**
+     * Listener of the queue, may be null
+     */
+    private volatile QueueListener queueListener;
+
+    /**
+     * Threads that run the works
+     */
+    private final List<Thread> workers = new ArrayList<>();
+
+    /**
+     * Object that does the works
+     */
+    private final Runner runner;
+
+    /**
+     * Size under which a transfer is considered small
+     */
+    private volatile long smallFileSize = DEFAULT_SMALL_FILE_SIZE;
+
+    /**
+     * Time a work must wait to gain one priority level
+     */
+    private volatile long agingInterval = DEFAULT_AGING_INTERVAL;
+
+    /**
+     * Sequence number, used to keep the fifo order of works with the same priority
+     */
+    private long sequence;
+
+    private volatile boolean shutdown;
+
+    /**
+     * Create and start a new scheduler.
+     * @param threads Number of threads
+     * @param runner Object that does the works
+     */
+    public WorkScheduler (int threads, Runner runner) {
+        this.runner = runner;
+
+        for (Lane lane : Lane.values()) {
+            queues.put(lane, new LinkedList<>());
+            running.put(lane, 0);
+            limits.put(lane, threads);
+        }
+
+        // By default a bulk lane can use only half of the threads
+        limits.put(Lane.BULK_UPLOAD, Math.max(1, threads / 2));
+        limits.put(Lane.BULK_DOWNLOAD, Math.max(1, threads / 2));
+
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(this::workLoop);
+            worker.setName("WorkScheduler-" + i);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Set the maximum number of concurrent works of a lane
+     * @param lane Lane
+     * @param limit Maximum number of concurrent works, at least one
+     */
+    public void setLaneLimit (Lane lane, int limit) {
+        lock.lock();
+        try {
+            limits.put(lane, Math.max(1, limit));
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setCoalescer (WorkCoalescer coalescer) {
+        this.coalescer = coalescer;
+    }
+
+    public void setQueueListener (QueueListener queueListener) {
+        this.queueListener = queueListener;
+    }
+
+    public void setSmallFileSize (long smallFileSize) {
+        this.smallFileSize = smallFileSize;
+    }
+
+    public void setAgingInterval (long agingInterval) {
+        this.agingInterval = Math.max(1, agingInterval);
+    }
+
+    /**
+     * Find the lane of a work
+     * @param work Work
+     * @return Lane of the work
+     */
+    public Lane laneOf (Work work) {
+        switch (work.getKind()) {
+            case MOVE_IN_CLIENT:
+            case MOVE_IN_STORAGE:
+                return Lane.MOVE;
+            case REMOVE_IN_CLIENT:
+            case REMOVE_IN_STORAGE:
+                return Lane.REMOVE;
+            case UPLOAD:
+                return work.getFile().toFile().length() > smallFileSize ? Lane.BULK_UPLOAD : Lane.SMALL_UPLOAD;
+            default:
+                return work.getFile().getSize() > smallFileSize ? Lane.BULK_DOWNLOAD : Lane.SMALL_DOWNLOAD;
+        }
+    }
+
+    /**
+     * Return the path used to index the works of a file
+     * @param file File of the work
+     * @return Absolute path of the file
+     */
+    public static String pathOf (GBFile file) {
+        return file.toFile().getAbsolutePath();
+    }
+
+    /**
+     * Add a new work to the queue of his lane. If a work of the same file is still in the queue, the two works
+     * are merged
+     * @param work Work to schedule
+     */
+    public void submit (Work work) {
+        if (shutdown)
+            throw new IllegalStateException("Scheduler is shutdown");
+
+        Lane lane = laneOf(work);
+        lock.lock();
+        try {
+            WorkCoalescer coalescer = this.coalescer;
+            if (coalescer != null) {
+
+                // Find the last queued work of the same file. For moves, look also at the source
+                QueuedWork queued = null;
+                if (work.getBefore() != null)
+                    queued = lastQueued(pathOf(work.getBefore()));
+                if (queued == null)
+                    queued = lastQueued(pathOf(work.getFile()));
+
+                if (queued != null) {
+                    WorkCoalescer.Merge merge = coalescer.merge(queued.work, work);
+                    switch (merge.getOutcome()) {
+                        case KEEP_QUEUED:
+                            log.info("Work " + work + " merged with " + queued.work);
+                            discarded(work);
+                            return;
+                        case CANCEL_BOTH:
+                            log.info("Work " + work + " cancels " + queued.work);
+                            cancel(queued);
+                            discarded(work);
+                            return;
+                        case REPLACE:
+                            log.info("Work " + queued.work + " replaced with " + merge.getResult());
+                            cancel(queued);
+                            if (merge.getResult() != work)
+                                discarded(work);
+                            enqueue(new QueuedWork(merge.getResult(), laneOf(merge.getResult()), sequence++, queued.queuedAt));
+                            return;
+                    }
+                }
+            }
+
+            enqueue(new QueuedWork(work, lane, sequence++, System.currentTimeMillis()));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return the number of works waiting in the queues
+     * @return Number of queued works
+     */
+    public int size () {
+        lock.lock();
+        try {
+            return queuedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Add the work to his lane and to the path index. Must be called with the lock
+     * @param queued Work to add
+     */
+    private void enqueue (QueuedWork queued) {
+        QueueListener listener = queueListener;
+        if (listener != null)
+            listener.onQueued(queued.work);
+
+        queues.get(queued.lane).add(queued);
+        for (String path : queued.paths) {
+            queuedByPath.computeIfAbsent(path, p -> new LinkedList<>()).add(queued);
+        }
+        queuedCount++;
+        available.signal();
+    }
+
+    /**
+     * Remove a work from the path index and mark it as cancelled. The lane removes it lazily.
+     * Must be called with the lock
+     * @param queued Work to cancel
+     */
+    private void cancel (QueuedWork queued) {
+        queued.cancelled = true;
+        unindex(queued);
+        queuedCount--;
+        discarded(queued.work);
+    }
+
+    private void discarded (Work work) {
+        QueueListener listener = queueListener;
+        if (listener != null)
+            listener.onDiscarded(work);
+    }
+
+    /**
+     * Remove the work from the path index. Must be called with the lock
+     * @param queued Work to remove
+     */
+    private void unindex (QueuedWork queued) {
+        for (String path : queued.paths) {
+            LinkedList<QueuedWork> works = queuedByPath.get(path);
+            if (works != null) {
+                works.remove(queued);
+                if (works.isEmpty())
+                    queuedByPath.remove(path);
+            }
+        }
+    }
+
+    /**
+     * Return the last queued work of a path. Must be called with the lock
+     * @param path Path
+     * @return Last queued work, null if there are no works of the path in the queue
+     */
+    private QueuedWork lastQueued (String path) {
+        LinkedList<QueuedWork> works = queuedByPath.get(path);
+        return works == null ? null : works.peekLast();
+    }
+
+    /**
+     * Stop the threads and discard the queued works
+     */
+    public void shutdown () {
+        shutdown = true;
+        lock.lock();
+        try {
+            for (LinkedList<QueuedWork> queue : queues.values())
+                queue.clear();
+            queuedByPath.clear();
+            queuedCount = 0;
+        } finally {
+            lock.unlock();
+        }
+        for (Thread worker : workers)
+            worker.interrupt();
+    }
+
+    /**
+     * Loop of each worker thread
+     */
+    private void workLoop () {
+        while (!shutdown) {
+            QueuedWork next;
+            try {
+                next = take();
+            } catch (InterruptedException ex) {
+                continue;
+            }
+
+            try {
+                runner.run(next.work);
+            } catch (Exception ex) {
+                log.warn(ex.toString(), ex);
+            } finally {
+                release(next);
+            }
+        }
+    }
+
+    /**
+     * Wait and remove the next work to run
+     * @return Next work
+     * @throws InterruptedException
+     */
+    private QueuedWork take () throws InterruptedException {
+        lock.lock();
+        try {
+            QueuedWork next;
+            while ((next = selectNext()) == null) {
+                available.await();
+            }
+
+            // Remove the work from the queues
+            queues.get(next.lane).remove(next);
+            unindex(next);
+            queuedCount--;
+
+            // And mark it as running
+            running.put(next.lane, running.get(next.lane) + 1);
+            for (String path : next.paths) {
+                runningPaths.merge(path, 1, Integer::sum);
+            }
+            return next;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Release the slot of the lane and the paths of a completed work
+     * @param completed Completed work
+     */
+    private void release (QueuedWork completed) {
+        lock.lock();
+        try {
+            running.put(completed.lane, running.get(completed.lane) - 1);
+            for (String path : completed.paths) {
+                if (runningPaths.merge(path, -1, Integer::sum) <= 0)
+                    runningPaths.remove(path);
+            }
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Find the work that should run now, looking at the first works of every lane that has a free slot.
+     * Must be called with the lock.
+     * @return Best work, null if no work can run now
+     */
+    private QueuedWork selectNext () {
+        long now = System.currentTimeMillis();
+        QueuedWork best = null;
+        long bestScore = 0;
+
+        for (Lane lane : Lane.values()) {
+            if (running.get(lane) >= limits.get(lane))
+                continue;
+
+            QueuedWork candidate = firstRunnable(queues.get(lane));
+            if (candidate == null)
+                continue;
+
+            // Every aging interval of wait is worth one priority level
+            long score = lane.getPriority() * agingInterval - (now - candidate.queuedAt);
+            if (best == null || score < bestScore || (score == bestScore && candidate.sequence < best.sequence)) {
+                best = candidate;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Return the first work of the lane that can run now. A work can run if no other work of the same file is running
+     * and if it is the first queued work of his file. Only the first works of the lane are checked.
+     * Must be called with the lock
+     * @param queue Queue of the lane
+     * @return First work that can run, null if none
+     */
+    private QueuedWork firstRunnable (LinkedList<QueuedWork> queue) {
+
+        // Drop the cancelled works at the head
+        while (!queue.isEmpty() && queue.peek().cancelled) {
+            queue.poll();
+        }
+
+        int checked = 0;
+        for (QueuedWork queued : queue) {
+            if (checked++ >= MAX_LOOKAHEAD)
+                break;
+            if (!queued.cancelled && canRun(queued))
+                return queued;
+        }
+        return null;
+    }
+
+    private boolean canRun (QueuedWork queued) {
+        for (String path : queued.paths) {
+            if (runningPaths.containsKey(path) || queuedByPath.get(path).peekFirst() != queued)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Work waiting in a lane
+     */
+    private static class QueuedWork {
+
+        private final Work work;
+
+        private final Lane lane;
+
+        private final long sequence;
+
+        private final long queuedAt;
+
+        /**
+         * Paths used to index the work
+         */
+        private final List<String> paths = new ArrayList<>(2);
+
+        private boolean cancelled;
+
+        private QueuedWork (Work work, Lane lane, long sequence, long queuedAt) {
+            this.work = work;
+            this.lane = lane;
+            this.sequence = sequence;
+            this.queuedAt = queuedAt;
+
+            paths.add(pathOf(work.getFile()));
+            if (work.getBefore() != null && !paths.contains(pathOf(work.getBefore())))
+                paths.add(pathOf(work.getBefore()));
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package it.simonedegiacomi.sync.fs;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The EventBatcher stands between a watcher and a slow listener. The watcher thread only queues the events,
+ * so it goes back immediately to read the events of the file system; another thread collects the queued
+ * events in batches, that end when the delay after the first event expires or when the batch is full,
+ * merges the events of the same file and calls the listener with what remains. For example:
+ * - CREATED + MODIFIED = CREATED;
+ * - MODIFIED + MODIFIED = MODIFIED;
+ * - CREATED + DELETED = nothing.
+ * A file deleted and created again is not merged, because the new file can be a folder (or vice versa) and the
+ * type of the deleted file is not known anymore: the DELETED and the CREATED events are both delivered, in order.
+ * The moves and the overflows are never merged: the events before them are delivered first.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class EventBatcher implements MyFileSystemWatcher.FileSystemEventListener {
+
+    /**
+     * Logger of the class
+     */
+    private static final Logger log = Logger.getLogger(EventBatcher.class);
+
+    /**
+     * Default time in milliseconds that a batch waits for other events after the first one
+     */
+    public static final long DEFAULT_DELAY = 100;
+
+    /**
+     * Default maximum number of events of a batch
+     */
+    public static final int DEFAULT_MAX_SIZE = 1000;
+
+    private enum Kind { CREATED, MODIFIED, DELETED, MOVED, OVERFLOW }
+
+    /**
+     * Events not collected in a batch yet
+     */
+    private final BlockingQueue<Event> queue = new LinkedBlockingQueue<>();
+
+    /**
+     * Listener that receives the merged events
+     */
+    private final MyFileSystemWatcher.FileSystemEventListener listener;
+
+    private final long delay;
+
+    private final int maxSize;
+
+    private final Thread dispatcher;
+
+    public EventBatcher (MyFileSystemWatcher.FileSystemEventListener listener) {
+        this(listener, DEFAULT_DELAY, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Create a new batcher and start its thread
+     * @param listener Listener that receives the merged events
+     * @param delay Time in milliseconds that a batch waits for other events after the first one
+     * @param maxSize Maximum number of events of a batch
+     */
+    public EventBatcher (MyFileSystemWatcher.FileSystemEventListener listener, long delay, int maxSize) {
+        this.listener = listener;
+        this.delay = Math.max(0, delay);
+        this.maxSize = Math.max(1, maxSize);
+
+        dispatcher = new Thread(this::dispatch, "FileSystemEvents");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Stop the thread of the batcher. The events still in the queue are dropped
+     * @throws InterruptedException
+     */
+    public void shutdown () throws InterruptedException {
+        dispatcher.interrupt();
+        dispatcher.join();
+    }
+
+    @Override
+    public void onFileCreated (File newFile) {
+        queue.add(new Event(Kind.CREATED, null, newFile));
+    }
+
+    @Override
+    public void onFileModified (File modifiedFile) {
+        queue.add(new Event(Kind.MODIFIED, null, modifiedFile));
+    }
+
+    @Override
+    public void onFileDeleted (File deletedFile) {
+        queue.add(new Event(Kind.DELETED, null, deletedFile));
+    }
+
+    @Override
+    public void onFileMoved (File before, File movedFile) {
+        queue.add(new Event(Kind.MOVED, before, movedFile));
+    }
+
+    @Override
+    public void onOverflow (File folder) {
+        queue.add(new Event(Kind.OVERFLOW, null, folder));
+    }
+
+    private void dispatch () {
+        List<Event> batch = new ArrayList<>();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+
+                // Wait for the first event, then for the others until the batch is closed
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+                while (batch.size() < maxSize) {
+                    Event next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                    queue.drainTo(batch, maxSize - batch.size());
+                }
+
+                List<Event> merged = merge(batch);
+                log.info("Batch of " + batch.size() + " events, " + merged.size() + " after the merge");
+                batch.clear();
+                for (Event event : merged) {
+                    deliver(event);
+                }
+            }
+        } catch (InterruptedException ex) {
+            log.info("Event batcher stopped");
+        }
+    }
+
+    private void deliver (Event event) {
+        try {
+            switch (event.kind) {
+                case CREATED:
+                    listener.onFileCreated(event.file);
+                    break;
+                case MODIFIED:
+                    listener.onFileModified(event.file);
+                    break;
+                case DELETED:
+                    listener.onFileDeleted(event.file);
+                    break;
+                case MOVED:
+                    listener.onFileMoved(event.before, event.file);
+                    break;
+                case OVERFLOW:
+                    listener.onOverflow(event.file);
+                    break;
+            }
+        } catch (RuntimeException ex) {
+
+            // A broken event must not stop the delivery of the others
+            log.warn("Listener failed on " + event.kind + " " + event.file, ex);
+        }
+    }
+
+    /**
+     * Merge the events of the same file. A merged event keeps the position of the first event of the file,
+     * so a folder is still notified before its children
+     * @param events Events in the order they happened
+     * @return Merged events
+     */
+    private static List<Event> merge (List<Event> events) {
+        List<Event> merged = new ArrayList<>();
+        Map<File, Event> pending = new LinkedHashMap<>();
+        for (Event event : events) {
+            if (event.kind == Kind.MOVED || event.kind == Kind.OVERFLOW) {
+                merged.addAll(pending.values());
+                pending.clear();
+                merged.add(event);
+                continue;
+            }
+
+            Event previous = pending.get(event.file);
+
+            // The deletion is delivered before the new file
+            if (previous != null && previous.kind == Kind.DELETED && event.kind != Kind.DELETED) {
+                merged.addAll(pending.values());
+                pending.clear();
+                pending.put(event.file, event);
+                continue;
+            }
+
+            Kind kind = previous == null ? event.kind : merge(previous.kind, event.kind);
+            if (kind == null) {
+                pending.remove(event.file);
+            } else {
+                pending.put(event.file, new Event(kind, null, event.file));
+            }
+        }
+        merged.addAll(pending.values());
+        return merged;
+    }
+
+    /**
+     * Merge two events of the same file
+     * @return Kind of the merged event, null if the events cancel each other
+     */
+    private static Kind merge (Kind previous, Kind next) {
+        if (next == Kind.DELETED)
+            return previous == Kind.CREATED ? null : Kind.DELETED;
+        return previous == Kind.CREATED ? Kind.CREATED : Kind.MODIFIED;
+    }
+
+    private static class Event {
+
+        private final Kind kind;
+
+        /**
+         * Path before the move, only for the moves
+         */
+        private final File before;
+
+        private final File file;
+
+        private Event (Kind kind, File before, File file) {
+            this.kind = kind;
+            this.before = before;
+            this.file = file;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package it.simonedegiacomi.sync.fs;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the files whose events the watcher has to ignore. The paths are kept in a trie with a node
+ * for each piece of the path, so checking an event costs a map lookup for each level of the path, whatever
+ * the number of ignored files.
+ * An ignored file hides the events of its children and, while it's ignored, the events of its folders
+ * (creating a file also modifies the folder).
+ *
+ * The checks don't take any lock: the children of the nodes are concurrent maps and the entries are
+ * volatile. The changes of the registry are serialized.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class IgnoreRegistry {
+
+    /**
+     * Time after which the entries of the stopped files and the entries of the single events are dropped,
+     * even if no event used them
+     */
+    public static final long RETENTION = 60 * 1000;
+
+    /**
+     * The modifications of a stopped file made until this time after the stop are still ignored
+     */
+    private static final long STOP_DELAY = 25;
+
+    private final Node root = new Node(null, null);
+
+    /**
+     * Last time the expired entries were dropped
+     */
+    private long lastSweep = System.currentTimeMillis();
+
+    /**
+     * Ignore all the events of the file and its children, until {@link #stop(File)} is called
+     * @param file File to ignore
+     */
+    public void ignore (File file) {
+        put(file, new Entry(Entry.UNTIL_STOPPED, 0, Long.MAX_VALUE));
+    }
+
+    /**
+     * Stop ignoring the file. The events of the versions of the file written before the stop are still ignored
+     * @param file File to stop ignoring
+     */
+    public void stop (File file) {
+        long now = System.currentTimeMillis();
+        put(file, new Entry(Entry.MODIFIED_BEFORE, now + STOP_DELAY, now + RETENTION));
+    }
+
+    /**
+     * Ignore only the next event of the file
+     * @param file File
+     */
+    public void once (File file) {
+        put(file, new Entry(Entry.ONCE, 0, System.currentTimeMillis() + RETENTION));
+    }
+
+    /**
+     * Check if the event of a file should be ignored
+     * @param file File of the event
+     * @return True if the event should be ignored
+     */
+    public boolean shouldIgnore (File file) {
+        long now = System.currentTimeMillis();
+        Node node = root;
+        for (String piece : pieces(file)) {
+            node = node.children.get(piece);
+            if (node == null)
+                return false;
+
+            // The file or one of its folders is ignored
+            Entry entry = node.entry;
+            if (entry != null && matches(node, entry, file, now))
+                return true;
+        }
+
+        // A child of the folder is being written
+        return node.ignoredChildren > 0;
+    }
+
+    private boolean matches (Node node, Entry entry, File file, long now) {
+        if (entry.expiration < now) {
+            remove(node, entry);
+            return false;
+        }
+
+        switch (entry.kind) {
+            case Entry.ONCE:
+
+                // Only the thread that consumes the entry ignores the event
+                return remove(node, entry);
+            case Entry.MODIFIED_BEFORE:
+                if (entry.time >= file.lastModified())
+                    return true;
+                remove(node, entry);
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Split the absolute path of the file
+     */
+    private static List<String> pieces (File file) {
+        String path = file.getAbsolutePath();
+        List<String> pieces = new ArrayList<>();
+        int start = 0;
+        while (start <= path.length()) {
+            int end = path.indexOf(File.separatorChar, start);
+            if (end < 0) {
+                end = path.length();
+            }
+            if (end > start) {
+                pieces.add(path.substring(start, end));
+            }
+            start = end + 1;
+        }
+        return pieces;
+    }
+
+    private synchronized void put (File file, Entry entry) {
+        Node node = root;
+        for (String piece : pieces(file)) {
+            Node parent = node;
+            node = parent.children.computeIfAbsent(piece, name -> new Node(parent, name));
+        }
+
+        Entry old = node.entry;
+        node.entry = entry;
+        countIgnored(node, (entry.kind == Entry.UNTIL_STOPPED ? 1 : 0) - (old != null && old.kind == Entry.UNTIL_STOPPED ? 1 : 0));
+
+        sweep();
+    }
+
+    /**
+     * Remove an entry
+     * @return True if the entry was still in the registry
+     */
+    private synchronized boolean remove (Node node, Entry entry) {
+        if (node.entry != entry)
+            return false;
+        node.entry = null;
+        if (entry.kind == Entry.UNTIL_STOPPED) {
+            countIgnored(node, -1);
+        }
+
+        // Drop the nodes that don't lead to any entry
+        while (node != root && node.entry == null && node.children.isEmpty()) {
+            node.parent.children.remove(node.name, node);
+            node = node.parent;
+        }
+        return true;
+    }
+
+    private void countIgnored (Node node, int delta) {
+        if (delta == 0)
+            return;
+        for (Node folder = node.parent; folder != null; folder = folder.parent) {
+            folder.ignoredChildren += delta;
+        }
+    }
+
+    /**
+     * Drop the expired entries that no event used
+     */
+    private void sweep () {
+        long now = System.currentTimeMillis();
+        if (now - lastSweep < RETENTION)
+            return;
+        lastSweep = now;
+        sweep(root, now);
+    }
+
+    private void sweep (Node node, long now) {
+        for (Node child : node.children.values()) {
+            sweep(child, now);
+        }
+        Entry entry = node.entry;
+        if (entry != null && entry.expiration < now) {
+            remove(node, entry);
+        }
+    }
+
+    private static class Node {
+
+        private final Node parent;
+
+        private final String name;
+
+        private final ConcurrentHashMap<String, Node> children = new ConcurrentHashMap<>();
+
+        private volatile Entry entry;
+
+        /**
+         * Number of files ignored until stopped in the subtree of this node
+         */
+        private volatile int ignoredChildren;
+
+        private Node (Node parent, String name) {
+            this.parent = parent;
+            this.name = name;
+        }
+    }
+
+    private static class Entry {
+
+        private static final int UNTIL_STOPPED = 0;
+
+        private static final int MODIFIED_BEFORE = 1;
+
+        private static final int ONCE = 2;
+
+        private final int kind;
+
+        /**
+         * For the stopped files, last modified date until which the events are ignored
+         */
+        private final long time;
+
+        private final long expiration;
+
+        private Entry (int kind, long time, long expiration) {
+            this.kind = kind;
+            this.time = time;
+            this.expiration = expiration;
+        }
+    }
+}
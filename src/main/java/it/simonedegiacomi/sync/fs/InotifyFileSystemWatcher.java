@@ -0,0 +1,483 @@
+package it.simonedegiacomi.sync.fs;
+
+import com.sun.jna.LastErrorException;
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Structure;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Watcher that uses the inotify api of Linux directly. The events are read in batches from the inotify
+ * descriptor, and the renames are recognized pairing the IN_MOVED_FROM and IN_MOVED_TO events with the
+ * same cookie, so a moved file or folder is always notified as a move.
+ * Like the {@link JavaFileSystemWatcher}, only the root is watched by the constructor, the sub folders are
+ * registered in background.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class InotifyFileSystemWatcher extends MyFileSystemWatcher {
+
+    private static final Logger log = Logger.getLogger(InotifyFileSystemWatcher.class);
+
+    private static final int IN_CLOSE_WRITE = 0x00000008;
+    private static final int IN_MOVED_FROM = 0x00000040;
+    private static final int IN_MOVED_TO = 0x00000080;
+    private static final int IN_CREATE = 0x00000100;
+    private static final int IN_DELETE = 0x00000200;
+    private static final int IN_Q_OVERFLOW = 0x00004000;
+    private static final int IN_IGNORED = 0x00008000;
+    private static final int IN_ONLYDIR = 0x01000000;
+    private static final int IN_DONT_FOLLOW = 0x02000000;
+    private static final int IN_EXCL_UNLINK = 0x04000000;
+    private static final int IN_ISDIR = 0x40000000;
+
+    private static final int O_CLOEXEC = 0x80000;
+
+    private static final short POLLIN = 0x0001;
+
+    private static final int EINTR = 4;
+
+    /**
+     * Events requested for each folder. The modifications are notified when the file is closed, instead of
+     * at every write
+     */
+    private static final int MASK = IN_CLOSE_WRITE | IN_MOVED_FROM | IN_MOVED_TO | IN_CREATE | IN_DELETE
+            | IN_ONLYDIR | IN_DONT_FOLLOW | IN_EXCL_UNLINK;
+
+    /**
+     * Size of the buffer of a read, that can contain hundreds of events
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Time to wait for the second half of a rename, when a batch ends with an IN_MOVED_FROM
+     */
+    private static final long MOVE_WAIT = 10;
+
+    /**
+     * Functions of the C library
+     */
+    private interface LibC extends Library {
+
+        int inotify_init1 (int flags) throws LastErrorException;
+
+        int pipe2 (int[] fds, int flags) throws LastErrorException;
+
+        int inotify_add_watch (int fd, String path, int mask) throws LastErrorException;
+
+        int inotify_rm_watch (int fd, int wd) throws LastErrorException;
+
+        NativeLong read (int fd, byte[] buffer, NativeLong count) throws LastErrorException;
+
+        NativeLong write (int fd, byte[] buffer, NativeLong count) throws LastErrorException;
+
+        int poll (PollFd[] fds, int count, int timeout) throws LastErrorException;
+
+        int close (int fd) throws LastErrorException;
+    }
+
+    /**
+     * Descriptor watched by poll, with the events requested and received
+     */
+    public static class PollFd extends Structure {
+
+        public int fd;
+
+        public short events;
+
+        public short revents;
+
+        @Override
+        protected List<String> getFieldOrder () {
+            return Arrays.asList("fd", "events", "revents");
+        }
+    }
+
+    private static LibC libc;
+
+    /**
+     * Watched folder
+     */
+    private final Path root;
+
+    /**
+     * Descriptor of the inotify instance
+     */
+    private final int fd;
+
+    /**
+     * Pipe written by {@link #shutdown()} to wake up the reading thread, that may be waiting for events
+     * that never arrive (for example when the watched folder is deleted)
+     */
+    private final int[] wakeUp = new int[2];
+
+    /**
+     * Watched folders, by watch descriptor
+     */
+    private final Map<Integer, Path> watches = new ConcurrentHashMap<>();
+
+    /**
+     * Renames whose destination has not been read yet, by cookie
+     */
+    private final Map<Integer, Path> pendingMoves = new LinkedHashMap<>();
+
+    private volatile boolean running = true;
+
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    /**
+     * Check if this watcher can be used on this system
+     * @return True on Linux, if the C library can be loaded
+     */
+    public static synchronized boolean isSupported () {
+        if (!System.getProperty("os.name", "").toLowerCase(Locale.ROOT).startsWith("linux"))
+            return false;
+        if (libc == null) {
+            try {
+                libc = (LibC) Native.loadLibrary("c", LibC.class);
+            } catch (UnsatisfiedLinkError | NoClassDefFoundError ex) {
+                log.info("inotify not available: " + ex);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public InotifyFileSystemWatcher (String path) throws IOException {
+        if (!isSupported())
+            throw new IOException("inotify not supported");
+        try {
+            fd = libc.inotify_init1(O_CLOEXEC);
+        } catch (LastErrorException ex) {
+            throw new IOException("Can't create the inotify instance: " + ex.getMessage());
+        }
+        try {
+            libc.pipe2(wakeUp, O_CLOEXEC);
+        } catch (LastErrorException ex) {
+            close(fd);
+            throw new IOException("Can't create the wake up pipe: " + ex.getMessage());
+        }
+
+        // Watch the root now, the sub folders are registered in background
+        root = new File(path).getAbsoluteFile().toPath();
+        long start = System.currentTimeMillis();
+        if (!addWatch(root)) {
+            close(fd);
+            close(wakeUp[0]);
+            close(wakeUp[1]);
+            throw new IOException("Can't watch " + root);
+        }
+
+        Thread thread = new Thread(this::readEvents, "InotifyListener");
+        thread.setDaemon(true);
+        thread.start();
+
+        registerTreeInBackground(root, start, "InotifyRegistration");
+    }
+
+    /**
+     * Add the watch of a single folder
+     * @param folder Folder to watch
+     * @return False if the folder can't be watched
+     */
+    private boolean addWatch (Path folder) {
+        try {
+            watches.put(libc.inotify_add_watch(fd, folder.toString(), MASK), folder);
+            return true;
+        } catch (LastErrorException ex) {
+            log.warn("Can't watch " + folder + ": " + ex.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    protected void register (Path folder) throws IOException {
+        if (!addWatch(folder))
+            throw new IOException("Can't watch " + folder);
+    }
+
+    @Override
+    protected boolean isStopped () {
+        return !running;
+    }
+
+    /**
+     * Watch the folder and all its sub folders
+     * @param folder Folder to watch
+     * @throws IOException
+     */
+    private void watch (Path folder) throws IOException {
+        Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory (Path dir, BasicFileAttributes attrs) throws IOException {
+                if (!addWatch(dir)) {
+
+                    // Usually the limit of the watches, the changes of the subtree can be found only scanning it
+                    for (FileSystemEventListener listener : listeners) {
+                        listener.onOverflow(dir.toFile());
+                    }
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed (Path file, IOException ex) {
+
+                // The folder was deleted while it was visited
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Override
+    public void shutdown () throws InterruptedException {
+        running = false;
+        try {
+            libc.write(wakeUp[1], new byte[1], new NativeLong(1));
+        } catch (LastErrorException ex) {
+            // Already stopped
+        }
+        stopped.await();
+    }
+
+    private void readEvents () {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            while (running) {
+                if (!awaitEvents(-1))
+                    continue;
+
+                int read;
+                try {
+                    read = libc.read(fd, buffer, new NativeLong(buffer.length)).intValue();
+                } catch (LastErrorException ex) {
+                    if (ex.getErrorCode() == EINTR)
+                        continue;
+                    log.warn("inotify read failed", ex);
+                    return;
+                }
+                if (!running)
+                    return;
+                handleBatch(ByteBuffer.wrap(buffer, 0, read).order(ByteOrder.nativeOrder()));
+
+                // A rename can be split between two reads
+                if (!pendingMoves.isEmpty() && !awaitEvents((int) MOVE_WAIT) && running) {
+                    flushPendingMoves();
+                }
+            }
+        } finally {
+            close(fd);
+            close(wakeUp[0]);
+            close(wakeUp[1]);
+            stopped.countDown();
+        }
+    }
+
+    /**
+     * Wait until there are events to read or the watcher is stopped
+     * @param timeout Maximum time to wait in milliseconds, -1 to wait forever
+     * @return True if there are events to read
+     */
+    private boolean awaitEvents (int timeout) {
+        PollFd[] fds = (PollFd[]) new PollFd().toArray(2);
+        fds[0].fd = fd;
+        fds[0].events = POLLIN;
+        fds[1].fd = wakeUp[0];
+        fds[1].events = POLLIN;
+        while (running) {
+            try {
+                return libc.poll(fds, fds.length, timeout) > 0 && running && (fds[0].revents & POLLIN) != 0;
+            } catch (LastErrorException ex) {
+                if (ex.getErrorCode() != EINTR) {
+                    log.warn("inotify poll failed", ex);
+                    running = false;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void close (int descriptor) {
+        try {
+            libc.close(descriptor);
+        } catch (LastErrorException ex) {
+            log.warn("Can't close the descriptor " + descriptor, ex);
+        }
+    }
+
+    /**
+     * Handle the events of a read. Package private for the tests
+     * @param events Buffer with the events, in the native order
+     */
+    void handleBatch (ByteBuffer events) {
+        while (events.remaining() >= 16) {
+            int wd = events.getInt();
+            int mask = events.getInt();
+            int cookie = events.getInt();
+            int length = events.getInt();
+            String name = readName(events, length);
+
+            if ((mask & IN_Q_OVERFLOW) != 0) {
+                overflow();
+                continue;
+            }
+
+            Path folder = watches.get(wd);
+            if ((mask & IN_IGNORED) != 0) {
+                watches.remove(wd);
+                continue;
+            }
+            if (folder == null || name.isEmpty())
+                continue;
+
+            handleEvent(folder.resolve(name), mask, cookie);
+        }
+    }
+
+    /**
+     * The queue of the events is shared by all the watches, so the lost events can be of any folder
+     */
+    private void overflow () {
+        log.warn("inotify queue overflow, the whole folder will be scanned again");
+
+        // The folders created during the lost events may not be watched yet
+        watchNewFolder(root);
+
+        for (FileSystemEventListener listener : listeners) {
+            listener.onOverflow(root.toFile());
+        }
+    }
+
+    private static String readName (ByteBuffer events, int length) {
+        byte[] bytes = new byte[length];
+        events.get(bytes);
+
+        // The name is padded with zeros
+        int end = 0;
+        while (end < length && bytes[end] != 0) {
+            end++;
+        }
+        return new String(bytes, 0, end, StandardCharsets.UTF_8);
+    }
+
+    private void handleEvent (Path path, int mask, int cookie) {
+        boolean directory = (mask & IN_ISDIR) != 0;
+
+        if ((mask & IN_MOVED_FROM) != 0) {
+            pendingMoves.put(cookie, path);
+            return;
+        }
+
+        if ((mask & IN_MOVED_TO) != 0) {
+            Path before = pendingMoves.remove(cookie);
+            if (directory) {
+                if (before != null) {
+                    renameWatches(before, path);
+                } else {
+                    watchNewFolder(path);
+                }
+            }
+
+            if (before == null) {
+
+                // Moved from outside the watched folder
+                created(path);
+            } else if (!shouldIgnore(before.toFile()) && !shouldIgnore(path.toFile())) {
+                for (FileSystemEventListener listener : listeners) {
+                    listener.onFileMoved(before.toFile(), path.toFile());
+                }
+            }
+            return;
+        }
+
+        if ((mask & IN_CREATE) != 0) {
+            if (directory) {
+                watchNewFolder(path);
+            }
+            created(path);
+            return;
+        }
+
+        if ((mask & IN_DELETE) != 0) {
+            deleted(path);
+            return;
+        }
+
+        if ((mask & IN_CLOSE_WRITE) != 0 && !shouldIgnore(path.toFile())) {
+            for (FileSystemEventListener listener : listeners) {
+                listener.onFileModified(path.toFile());
+            }
+        }
+    }
+
+    private void created (Path path) {
+        if (shouldIgnore(path.toFile()))
+            return;
+        for (FileSystemEventListener listener : listeners) {
+            listener.onFileCreated(path.toFile());
+        }
+    }
+
+    private void deleted (Path path) {
+        if (shouldIgnore(path.toFile()))
+            return;
+        for (FileSystemEventListener listener : listeners) {
+            listener.onFileDeleted(path.toFile());
+        }
+    }
+
+    private void watchNewFolder (Path folder) {
+        try {
+            watch(folder);
+        } catch (IOException ex) {
+            log.warn("Can't start watching the new folder " + folder + ", possible loss of events", ex);
+        }
+    }
+
+    /**
+     * Update the paths of the watches of a moved folder. The watches follow the folders, so only the
+     * paths need to change
+     */
+    private void renameWatches (Path before, Path after) {
+        for (Map.Entry<Integer, Path> watch : watches.entrySet()) {
+            if (watch.getValue().startsWith(before)) {
+                watch.setValue(after.resolve(before.relativize(watch.getValue())));
+            }
+        }
+    }
+
+    /**
+     * The files moved out of the watched folder are deleted, for the sync. The watches of the moved folders
+     * are removed, the IN_IGNORED events will drop them from the map
+     */
+    private void flushPendingMoves () {
+        for (Path moved : pendingMoves.values()) {
+            for (Map.Entry<Integer, Path> watch : watches.entrySet()) {
+                if (watch.getValue().startsWith(moved)) {
+                    try {
+                        libc.inotify_rm_watch(fd, watch.getKey());
+                    } catch (LastErrorException ex) {
+                        // Already removed
+                    }
+                }
+            }
+            deleted(moved);
+        }
+        pendingMoves.clear();
+    }
+}
@@ -8,6 +8,7 @@ import java.io.IOException;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 
 
@@ -36,12 +37,12 @@ public class JavaFileSystemWatcher extends MyFileSystemWatcher {
      */
     private final Map<WatchKey, Path> keys;
 
+    private final CountDownLatch shutdown = new CountDownLatch(2);
+
     /**
-     * Set of listeners
+     * Thread that reads the events of the watch service
      */
-    private Set<FileSystemEventListener> listeners = new HashSet<>();
-
-    private final CountDownLatch shutdown = new CountDownLatch(2);
+    private Thread listenerThread;
 
     public JavaFileSystemWatcher(String path) throws IOException {
 
@@ -49,11 +50,36 @@ public class JavaFileSystemWatcher extends MyFileSystemWatcher {
         watchService = FileSystems.getDefault().newWatchService();
 
         // Create a new map for the keys (key -> path)
-        keys = new HashMap<>();
+        keys = new ConcurrentHashMap<>();
 
-        watch(new File(path).toPath());
+        // Watch the root now, the sub folders are registered in background
+        Path root = new File(path).toPath();
+        long start = System.currentTimeMillis();
+        register(root);
 
         startWatching();
+
+        registerTreeInBackground(root, start, "FileSystemRegistration");
+    }
+
+    /**
+     * Register a folder in the watch service
+     * @param folder Folder to register
+     * @throws IOException
+     */
+    @Override
+    protected void register(Path folder) throws IOException {
+
+        // Get the watch key of the file
+        WatchKey pathKey;
+        try {
+            pathKey = folder.register(watchService, watcherKinds, SensitivityWatchEventModifier.HIGH);
+        } catch (ClosedWatchServiceException ex) {
+            throw new IOException("Watcher stopped");
+        }
+
+        // add the key to the map
+        keys.put(pathKey, folder);
     }
 
     /**
@@ -66,12 +92,7 @@ public class JavaFileSystemWatcher extends MyFileSystemWatcher {
         Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
             @Override
             public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes basicFileAttributes) throws IOException {
-
-                // Get the watch key of the file
-                WatchKey pathKey = path.register(watchService, watcherKinds, SensitivityWatchEventModifier.HIGH);
-
-                // add the key to the map
-                keys.put(pathKey, path);
+                register(path);
 
                 logger.info("Start watching " + path);
 
@@ -98,12 +119,22 @@ public class JavaFileSystemWatcher extends MyFileSystemWatcher {
     @Override
     public void shutdown() throws InterruptedException {
         shutdown.countDown();
-        shutdown.await();
+
+        // Closing the service wakes up the listener thread
+        try {
+            watchService.close();
+        } catch (IOException ex) {
+            logger.warn("Can't close the watch service", ex);
+        }
+
+        // A listener can stop the watcher, the thread ends after the event
+        if (Thread.currentThread() != listenerThread)
+            shutdown.await();
     }
 
     @Override
-    public void addListener(FileSystemEventListener newListener) {
-        listeners.add(newListener);
+    protected boolean isStopped() {
+        return shutdown.getCount() < 2;
     }
 
     /**
@@ -111,7 +142,7 @@ public class JavaFileSystemWatcher extends MyFileSystemWatcher {
      */
     private void startWatching() {
 
-        Thread listenerThread = new Thread(() -> {
+        listenerThread = new Thread(() -> {
             while (shutdown.getCount() >= 2) {
 
                 // find the key for the changed file
@@ -120,6 +151,8 @@ public class JavaFileSystemWatcher extends MyFileSystemWatcher {
                     currentKey = watchService.take();
                 } catch (InterruptedException ex) {
                     continue;
+                } catch (ClosedWatchServiceException ex) {
+                    break;
                 }
 
                 List<WatchEvent<?>> events = currentKey.pollEvents();
@@ -139,7 +172,19 @@ public class JavaFileSystemWatcher extends MyFileSystemWatcher {
                     WatchEvent.Kind kind = event.kind();
 
                     if (kind == StandardWatchEventKinds.OVERFLOW) {
-                        logger.warn("Event overflow! possible lost of events!");
+                        Path folder = keys.get(currentKey);
+                        logger.warn("Event overflow in " + folder + ", the folder will be scanned again");
+
+                        // The folders created during the lost events may not be watched yet
+                        try {
+                            watch(folder);
+                        } catch (IOException ex) {
+                            logger.warn("Can't start watching the folders of " + folder + "! possible lost of events!");
+                        }
+
+                        for (FileSystemEventListener listener : listeners) {
+                            listener.onOverflow(folder.toFile());
+                        }
                         continue;
                     }
 
@@ -210,8 +255,9 @@ public class JavaFileSystemWatcher extends MyFileSystemWatcher {
                     logger.warn("Invalid watch key");
                 }
             }
+            shutdown.countDown();
         });
         listenerThread.setName("FileSystemListener");
         listenerThread.start();
     }
-}
\ No newline at end of file
+}
@@ -1,87 +1,142 @@
 package it.simonedegiacomi.sync.fs;
 
+import org.apache.log4j.Logger;
+
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public abstract class MyFileSystemWatcher {
 
-    public final static long CONTINUE_IGNORE_TIME = -1;
-
-    public final static long FORESEE_FAKE_TIME = -2;
+    private static final Logger log = Logger.getLogger(MyFileSystemWatcher.class);
 
     /**
-     * Map of files to ignore
+     * Number of threads that register the folders of the tree
      */
-    protected final Map<String, Long> filesToIgnore = new HashMap<>();
-
-    public static MyFileSystemWatcher getDefault(String pathToWatch) throws IOException {
-        return new JavaFileSystemWatcher(pathToWatch);
-        //return new JNotifyFileSystemWatcher(pathToWatch);
-    }
-
-    public abstract void shutdown () throws InterruptedException;
-
-    public abstract void addListener (FileSystemEventListener newListener);
+    private static final int REGISTRATION_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
 
     /**
-     * Check if a event relative to this file should be ignored or not
-     * @param file File to check
-     * @return Ignore or not
+     * Granularity of the last modified dates of some file systems. The files modified in this time before
+     * the start of the registration are considered modified during the registration
      */
-    protected final boolean shouldIgnore (File file) {
+    private static final long DATE_GRANULARITY = 1000;
 
-        // Get the path of the file
-        String[] path = file.getAbsolutePath().split("/");
-
-        // Iterate every file to ignore
-        for (Map.Entry<String, Long> toIgnore : filesToIgnore.entrySet()) {
+    /**
+     * Files to ignore
+     */
+    protected final IgnoreRegistry filesToIgnore = new IgnoreRegistry();
 
-            // Get the path if the file to ignore
-            String[] pathToIgnore = toIgnore.getKey().split("/");
+    /**
+     * Set of listeners
+     */
+    protected final Set<FileSystemEventListener> listeners = new CopyOnWriteArraySet<>();
 
-            // Default ignore the file
-            boolean ignore = true;
+    /**
+     * Released when all the folders of the tree are registered and the changed ones are notified
+     */
+    private final CountDownLatch registered = new CountDownLatch(1);
 
-            // Iterate each piece
-            for(int i = 0;i < pathToIgnore.length && i < path.length; i++) {
+    /**
+     * Folders that changed before the registration reached them, or that can't be registered
+     */
+    private final Set<Path> changedFolders = ConcurrentHashMap.newKeySet();
 
-                // If a piece is different
-                if (!pathToIgnore[i].equals(path[i])) {
+    public static MyFileSystemWatcher getDefault(String pathToWatch) throws IOException {
+        if (InotifyFileSystemWatcher.isSupported())
+            return new InotifyFileSystemWatcher(pathToWatch);
+        return new JavaFileSystemWatcher(pathToWatch);
+    }
 
-                    // Ignore this file check, go to the next
-                    ignore = false;
-                    break;
-                }
-            }
+    public abstract void shutdown () throws InterruptedException;
 
-            // If the file is present in the map, check if should continue to ignore
-            if (ignore) {
+    public void addListener (FileSystemEventListener newListener) {
+        listeners.add(newListener);
+    }
 
-                // Get the time
-                long time = toIgnore.getValue();
+    /**
+     * Start watching a single folder, without its sub folders. Registering a folder twice must not fail
+     * @param folder Folder to watch
+     * @throws IOException If the folder can't be watched
+     */
+    protected abstract void register (Path folder) throws IOException;
 
-                if (time == FORESEE_FAKE_TIME) {
+    /**
+     * Check if the watcher was stopped, so the registration can end early
+     * @return True after the shutdown
+     */
+    protected abstract boolean isStopped ();
 
-                    // Ignore ONLY this time
-                    filesToIgnore.remove(toIgnore);
-                    return true;
-                }
+    /**
+     * Register the sub folders of the root in parallel, in a background thread. The new folders found by the
+     * events while the tree is walked are registered by the watcher too, so {@link #register(Path)} can be
+     * called twice for the same folder. When the walk ends the folders that changed before they were
+     * registered are notified as overflowed, so their lost events are recovered
+     * @param root Root of the tree, already registered
+     * @param start Time before the registration of the root
+     * @param threadName Name of the registration thread
+     */
+    protected final void registerTreeInBackground (Path root, long start, String threadName) {
+        Thread registration = new Thread(() -> registerTree(root, start - DATE_GRANULARITY), threadName);
+        registration.setDaemon(true);
+        registration.start();
+    }
 
-                // If the file was ignored before the file event, ignore it
-                if (time < 0 || time >= file.lastModified()) {
-                    return true;
-                } else {
+    private void registerTree (Path root, long since) {
+        ForkJoinPool pool = new ForkJoinPool(REGISTRATION_THREADS);
+        try {
+            pool.invoke(new RegisterTask(root, since, false));
+            if (isStopped())
+                return;
 
-                    // Otherwise remove the file from the map
-                    filesToIgnore.remove(toIgnore);
+            // Notify only the highest changed folders, their scan includes the children
+            List<Path> changed = new ArrayList<>(changedFolders);
+            Collections.sort(changed);
+            Path last = null;
+            for (Path folder : changed) {
+                if (last != null && folder.startsWith(last))
+                    continue;
+                last = folder;
+                log.warn("Folder " + folder + " changed while it was registered");
+                for (FileSystemEventListener listener : listeners) {
+                    listener.onOverflow(folder.toFile());
                 }
             }
+        } finally {
+            pool.shutdown();
+            registered.countDown();
         }
+    }
 
-        // Don't ignore the file
-        return false;
+    /**
+     * Wait until all the folders that existed when the watcher was created are watched, and the folders that
+     * changed before they were watched are notified as overflowed. The events of the folders are notified
+     * even before, as soon as each folder is watched
+     * @throws InterruptedException
+     */
+    public void awaitRegistration () throws InterruptedException {
+        registered.await();
+    }
+
+    /**
+     * Check if a event relative to this file should be ignored or not
+     * @param file File to check
+     * @return Ignore or not
+     */
+    protected final boolean shouldIgnore (File file) {
+        return filesToIgnore.shouldIgnore(file);
     }
 
     /**
@@ -90,7 +145,7 @@ public abstract class MyFileSystemWatcher {
      * @param file File to ignore
      */
     public void startIgnoring (File file) {
-        filesToIgnore.put(file.getAbsolutePath(), CONTINUE_IGNORE_TIME);
+        filesToIgnore.ignore(file);
     }
 
     /**
@@ -101,7 +156,7 @@ public abstract class MyFileSystemWatcher {
      * @param file File to stop ignoring
      */
     public void stopIgnoring (File file) {
-        filesToIgnore.put(file.getPath(), System.currentTimeMillis() + 25);
+        filesToIgnore.stop(file);
     }
 
     /**
@@ -110,7 +165,7 @@ public abstract class MyFileSystemWatcher {
      * @param file File to which ignore ONLY the first event
      */
     public void foresee (File file) {
-        filesToIgnore.put(file.getPath(), FORESEE_FAKE_TIME);
+        filesToIgnore.once(file);
     }
 
     public interface FileSystemEventListener {
@@ -122,5 +177,81 @@ public abstract class MyFileSystemWatcher {
         void onFileDeleted(File deletedFile);
 
         void onFileMoved(File before, File movedFile);
+
+        /**
+         * Some events of the folder or of its subtree were lost (the queue of the events overflowed), so the
+         * subtree must be compared again with its last known state
+         * @param folder Folder whose events were lost
+         */
+        default void onOverflow(File folder) { }
+    }
+
+    /**
+     * Task that registers a folder, then forks a task for each sub folder. The folder is registered before
+     * its children are listed, so a child is either listed or notified by an event
+     */
+    private class RegisterTask extends RecursiveAction {
+
+        private final Path folder;
+
+        private final long since;
+
+        private final boolean registerFolder;
+
+        private RegisterTask (Path folder, long since, boolean registerFolder) {
+            this.folder = folder;
+            this.since = since;
+            this.registerFolder = registerFolder;
+        }
+
+        @Override
+        protected void compute () {
+            if (isStopped())
+                return;
+            try {
+                if (registerFolder) {
+                    try {
+                        register(folder);
+                    } catch (IOException ex) {
+
+                        // The changes of a folder that can't be watched can be found only scanning it
+                        log.warn("Can't start watching " + folder + ": " + ex);
+                        changedFolders.add(Files.isDirectory(folder, LinkOption.NOFOLLOW_LINKS) ? folder : folder.getParent());
+                        return;
+                    }
+
+                    // Files created, deleted or renamed in the folder
+                    if (Files.getLastModifiedTime(folder).toMillis() >= since)
+                        changedFolders.add(folder);
+                }
+
+                List<RegisterTask> subtasks = new ArrayList<>();
+                try (DirectoryStream<Path> children = Files.newDirectoryStream(folder)) {
+                    for (Path child : children) {
+                        BasicFileAttributes attributes;
+                        try {
+                            attributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                        } catch (IOException ex) {
+
+                            // Deleted after the listing
+                            changedFolders.add(folder);
+                            continue;
+                        }
+                        if (attributes.isDirectory()) {
+                            subtasks.add(new RegisterTask(child, since, true));
+                        } else if (registerFolder && attributes.lastModifiedTime().toMillis() >= since) {
+                            changedFolders.add(folder);
+                        }
+                    }
+                }
+                invokeAll(subtasks);
+            } catch (IOException ex) {
+
+                // The folder was deleted or moved during the walk, the events of the parent tell it
+                log.warn("Can't list " + folder + ": " + ex);
+                if (registerFolder)
+                    changedFolders.add(folder.getParent());
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,237 @@
+package it.simonedegiacomi.utils;
+
+import com.google.common.util.concurrent.RateLimiter;
+import it.simonedegiacomi.configuration.Config;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * This class limits the bandwidth used by the transfers with token buckets. There is a global limit, a limit
+ * for each direction and a limit for every single transfer: a byte is sent or received only when all the
+ * buckets with a limit give a token for it.
+ * The limits are in bytes per second (0 means unlimited) and can be changed while the transfers are running.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class Bandwidth {
+
+    private static final Logger log = Logger.getLogger(Bandwidth.class);
+
+    /**
+     * Maximum number of bytes that a transfer can move with a single token request, so the transfers
+     * that share a bucket take turns
+     */
+    private static final int MAX_PERMITS = 8 * 1024;
+
+    private static final Bandwidth instance = new Bandwidth();
+
+    /**
+     * Direction of a transfer, from the point of view of this machine
+     */
+    public enum Direction { UPLOAD, DOWNLOAD }
+
+    /**
+     * Limits that can be set
+     */
+    public enum Limit {
+
+        TOTAL("bandwidthLimit"), UPLOAD("uploadLimit"), DOWNLOAD("downloadLimit"), TRANSFER("transferLimit");
+
+        /**
+         * Key of the limit in the config, in KB per second
+         */
+        private final String key;
+
+        Limit (String key) {
+            this.key = key;
+        }
+
+        public String getKey() {
+            return key;
+        }
+    }
+
+    private final Map<Limit, Bucket> buckets = new EnumMap<>(Limit.class);
+
+    private Bandwidth () {
+        for (Limit limit : Limit.values()) {
+            buckets.put(limit, new Bucket());
+        }
+    }
+
+    public static Bandwidth getInstance() {
+        return instance;
+    }
+
+    /**
+     * Apply the limits of the config
+     * @param config Config with the limits in KB per second
+     */
+    public void configure (Config config) {
+        for (Limit limit : Limit.values()) {
+            try {
+                setLimit(limit, Long.parseLong(config.getProperty(limit.getKey(), "0")) * 1024);
+            } catch (NumberFormatException ex) {
+                log.warn("Invalid bandwidth limit " + limit.getKey());
+            }
+        }
+    }
+
+    /**
+     * Change a limit. The running transfers use the new limit from their next read or write
+     * @param limit Limit to change
+     * @param bytesPerSecond New limit, 0 to remove it
+     */
+    public void setLimit (Limit limit, long bytesPerSecond) {
+        buckets.get(limit).setRate(bytesPerSecond);
+    }
+
+    /**
+     * Return a limit
+     * @param limit Limit
+     * @return Bytes per second, 0 if there is no limit
+     */
+    public long getLimit (Limit limit) {
+        return buckets.get(limit).rate;
+    }
+
+    /**
+     * Check if a transfer in the direction would be limited now
+     * @param direction Direction of the transfer
+     * @return True if at least one limit applies to the transfer
+     */
+    public boolean isLimited (Direction direction) {
+        return getLimit(Limit.TOTAL) > 0 || getLimit(Limit.TRANSFER) > 0 || getLimit(bucketOf(direction)) > 0;
+    }
+
+    /**
+     * Start a new transfer, that can use more streams (for example the segments of a download)
+     * @param direction Direction of the transfer
+     * @return Transfer
+     */
+    public Transfer newTransfer (Direction direction) {
+        return new Transfer(buckets.get(bucketOf(direction)));
+    }
+
+    public InputStream limit (InputStream in, Direction direction) {
+        return newTransfer(direction).limit(in);
+    }
+
+    public OutputStream limit (OutputStream out, Direction direction) {
+        return newTransfer(direction).limit(out);
+    }
+
+    private static Limit bucketOf (Direction direction) {
+        return direction == Direction.UPLOAD ? Limit.UPLOAD : Limit.DOWNLOAD;
+    }
+
+    /**
+     * Token bucket, empty when there is no limit
+     */
+    private static class Bucket {
+
+        private volatile long rate;
+
+        private volatile RateLimiter limiter;
+
+        private synchronized void setRate (long bytesPerSecond) {
+            rate = Math.max(0, bytesPerSecond);
+            if (rate == 0) {
+                limiter = null;
+            } else if (limiter == null) {
+                limiter = RateLimiter.create(rate);
+            } else {
+                limiter.setRate(rate);
+            }
+        }
+
+        private void acquire (int bytes) {
+            RateLimiter current = limiter;
+            if (current != null) {
+                current.acquire(bytes);
+            }
+        }
+    }
+
+    /**
+     * A transfer, with its own bucket
+     */
+    public class Transfer {
+
+        private final Bucket direction;
+
+        private final Bucket own = new Bucket();
+
+        private Transfer (Bucket direction) {
+            this.direction = direction;
+        }
+
+        /**
+         * Wait until the limits allow to move the bytes
+         * @param bytes Number of bytes, not more than {@link #MAX_PERMITS}
+         */
+        private void acquire (int bytes) {
+
+            // Follow the changes of the per transfer limit
+            long transferLimit = getLimit(Limit.TRANSFER);
+            if (own.rate != transferLimit) {
+                own.setRate(transferLimit);
+            }
+
+            buckets.get(Limit.TOTAL).acquire(bytes);
+            direction.acquire(bytes);
+            own.acquire(bytes);
+        }
+
+        public InputStream limit (InputStream in) {
+            return new FilterInputStream(in) {
+
+                @Override
+                public int read () throws IOException {
+                    int read = super.read();
+                    if (read >= 0) {
+                        acquire(1);
+                    }
+                    return read;
+                }
+
+                @Override
+                public int read (byte[] b, int off, int len) throws IOException {
+
+                    // The tokens are taken after the read, so a slow reader slows down the sender too
+                    int read = super.read(b, off, Math.min(len, MAX_PERMITS));
+                    if (read > 0) {
+                        acquire(read);
+                    }
+                    return read;
+                }
+            };
+        }
+
+        public OutputStream limit (OutputStream out) {
+            return new FilterOutputStream(out) {
+
+                @Override
+                public void write (int b) throws IOException {
+                    acquire(1);
+                    out.write(b);
+                }
+
+                @Override
+                public void write (byte[] b, int off, int len) throws IOException {
+                    while (len > 0) {
+                        int piece = Math.min(len, MAX_PERMITS);
+                        acquire(piece);
+                        out.write(b, off, piece);
+                        off += piece;
+                        len -= piece;
+                    }
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package it.simonedegiacomi.utils;
+
+import org.apache.log4j.Logger;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timer wheel. The TimerWheel runs a lot of short timeouts with only one thread: the timeouts are put in
+ * a ring of buckets, and every tick the thread runs the expired timeouts of the current bucket.
+ * Scheduling and cancelling a timeout cost O(1), so this class can handle thousands of timeouts that are
+ * often rescheduled. The precision of the timeouts is the duration of one tick.
+ *
+ * The tasks run in the thread of the wheel, so they must be quick.
+ * This class is thread-safe.
+ *
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class TimerWheel {
+
+    /**
+     * Logger of the class
+     */
+    private static final Logger log = Logger.getLogger(TimerWheel.class);
+
+    /**
+     * Buckets of the wheel. Accessed only by the thread of the wheel
+     */
+    private final LinkedList<Timeout>[] wheel;
+
+    /**
+     * Timeouts scheduled but not yet put in the wheel
+     */
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Duration of a tick in nanoseconds
+     */
+    private final long tickDuration;
+
+    /**
+     * Thread of the wheel
+     */
+    private final Thread worker;
+
+    /**
+     * Time when the wheel started, in nanoseconds
+     */
+    private final long startTime;
+
+    /**
+     * Number of ticks since the start. Accessed only by the thread of the wheel
+     */
+    private long tick;
+
+    private volatile boolean shutdown;
+
+    /**
+     * Create and start a new timer wheel
+     * @param name Name of the thread of the wheel
+     * @param tickDuration Duration of a tick
+     * @param unit Unit of the tick duration
+     * @param wheelSize Number of buckets of the wheel
+     */
+    @SuppressWarnings("unchecked")
+    public TimerWheel (String name, long tickDuration, TimeUnit unit, int wheelSize) {
+        if (tickDuration <= 0 || wheelSize <= 0)
+            throw new IllegalArgumentException("Invalid tick duration or wheel size");
+
+        this.tickDuration = unit.toNanos(tickDuration);
+        this.wheel = new LinkedList[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            wheel[i] = new LinkedList<>();
+        }
+
+        startTime = System.nanoTime();
+        worker = new Thread(this::run);
+        worker.setName(name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Schedule a new task
+     * @param task Task to run
+     * @param delay Delay
+     * @param unit Unit of the delay
+     * @return Timeout that can be used to cancel the task
+     */
+    public Timeout schedule (Runnable task, long delay, TimeUnit unit) {
+        if (shutdown)
+            throw new IllegalStateException("Timer wheel is shutdown");
+
+        Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(Math.max(0, delay)));
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stop the wheel. The tasks not yet run are discarded
+     */
+    public void shutdown () {
+        shutdown = true;
+        worker.interrupt();
+    }
+
+    /**
+     * Loop of the thread of the wheel
+     */
+    private void run () {
+        while (!shutdown) {
+
+            // Wait the end of the current tick
+            long sleep = startTime + (tick + 1) * tickDuration - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException ex) {
+                    continue;
+                }
+            }
+
+            transferPending();
+            expire(wheel[(int) (tick % wheel.length)]);
+            tick++;
+        }
+    }
+
+    /**
+     * Put the new timeouts in their bucket
+     */
+    private void transferPending () {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled)
+                continue;
+
+            // Ticks from the start to the deadline, never in the past
+            long deadlineTick = Math.max(tick, (timeout.deadline - startTime + tickDuration - 1) / tickDuration);
+            timeout.rounds = (deadlineTick - tick) / wheel.length;
+            wheel[(int) (deadlineTick % wheel.length)].add(timeout);
+        }
+    }
+
+    /**
+     * Run the expired timeouts of the bucket
+     * @param bucket Bucket of the current tick
+     */
+    private void expire (LinkedList<Timeout> bucket) {
+        Iterator<Timeout> it = bucket.iterator();
+        while (it.hasNext()) {
+            Timeout timeout = it.next();
+            if (timeout.cancelled) {
+                it.remove();
+            } else if (timeout.rounds <= 0) {
+                it.remove();
+                timeout.expired = true;
+                try {
+                    timeout.task.run();
+                } catch (Exception ex) {
+                    log.warn(ex.toString(), ex);
+                }
+            } else {
+                timeout.rounds--;
+            }
+        }
+    }
+
+    /**
+     * Task scheduled in the wheel
+     */
+    public static class Timeout {
+
+        private final Runnable task;
+
+        /**
+         * Time when the task should run, in nanoseconds
+         */
+        private final long deadline;
+
+        /**
+         * Number of rounds of the wheel before the task runs
+         */
+        private long rounds;
+
+        private volatile boolean cancelled;
+
+        private volatile boolean expired;
+
+        private Timeout (Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the task. If the task is already run this method does nothing
+         * @return True if the task was cancelled before running
+         */
+        public boolean cancel () {
+            if (expired)
+                return false;
+            cancelled = true;
+            return true;
+        }
+
+        public boolean isCancelled () {
+            return cancelled;
+        }
+
+        public boolean isExpired () {
+            return expired;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package it.simonedegiacomi.storage.components.core.utils;
+
+import com.google.common.io.Files;
+import it.simonedegiacomi.goboxapi.GBFile;
+import it.simonedegiacomi.storage.utils.ContentHash;
+import it.simonedegiacomi.storage.utils.Ingest;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class UploadSessionsTest {
+
+    @Test
+    public void resumeAfterRestart () throws IOException {
+        File folder = Files.createTempDir();
+        try {
+            UploadSessions sessions = new UploadSessions(folder, UploadSessions.DEFAULT_EXPIRATION);
+            sessions.load();
+
+            UploadSession session = sessions.create(new GBFile("file.bin", GBFile.ROOT_ID, false), 6);
+            assertEquals(3, session.append(0, new ByteArrayInputStream(new byte[] { 1, 2, 3 })));
+
+            // The storage restarts
+            UploadSessions reloaded = new UploadSessions(folder, UploadSessions.DEFAULT_EXPIRATION);
+            reloaded.load();
+            UploadSession resumed = reloaded.get(session.getID());
+            assertNotNull(resumed);
+            assertEquals(3, resumed.getOffset());
+            assertEquals("file.bin", resumed.getFile().getName());
+
+            // The bytes received before the restart are not hashed
+            assertNull(resumed.getIngest());
+
+            // A chunk with the wrong offset is refused
+            try {
+                resumed.append(0, new ByteArrayInputStream(new byte[] { 1, 2, 3 }));
+                fail();
+            } catch (IllegalStateException ex) {
+                assertEquals(3, resumed.getOffset());
+            }
+
+            resumed.append(3, new ByteArrayInputStream(new byte[] { 4, 5, 6 }));
+            assertTrue(resumed.isComplete());
+
+            File part = reloaded.commit(resumed);
+            assertArrayEquals(new byte[] { 1, 2, 3, 4, 5, 6 }, Files.toByteArray(part));
+            assertNull(reloaded.commit(resumed));
+            assertNull(reloaded.get(session.getID()));
+        } finally {
+            for (File file : folder.listFiles()) {
+                file.delete();
+            }
+            folder.delete();
+        }
+    }
+
+    @Test
+    public void hashWhileReceiving () throws IOException {
+        File folder = Files.createTempDir();
+        try {
+            UploadSessions sessions = new UploadSessions(folder, UploadSessions.DEFAULT_EXPIRATION);
+            sessions.load();
+
+            UploadSession session = sessions.create(new GBFile("file.bin", GBFile.ROOT_ID, false), 6);
+            session.append(0, new ByteArrayInputStream(new byte[] { 1, 2, 3 }));
+            session.append(3, new ByteArrayInputStream(new byte[] { 4, 5, 6 }));
+
+            Ingest ingest = session.getIngest();
+            assertNotNull(ingest);
+            assertEquals(6, ingest.getSize());
+            assertEquals(ContentHash.getInstance().hash(session.getPart()), ingest.getHash());
+        } finally {
+            for (File file : folder.listFiles()) {
+                file.delete();
+            }
+            folder.delete();
+        }
+    }
+}
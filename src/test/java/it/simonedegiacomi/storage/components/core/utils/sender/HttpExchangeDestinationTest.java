@@ -0,0 +1,157 @@
+package it.simonedegiacomi.storage.components.core.utils.sender;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class HttpExchangeDestinationTest {
+
+    /**
+     * Exchange that records the length passed with the response headers
+     */
+    private static class RecordingExchange extends HttpExchange {
+
+        private final Headers responseHeaders = new Headers();
+
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        private int code;
+
+        private long length;
+
+        @Override
+        public void sendResponseHeaders (int rCode, long responseLength) {
+            code = rCode;
+            length = responseLength;
+        }
+
+        @Override
+        public Headers getResponseHeaders () {
+            return responseHeaders;
+        }
+
+        @Override
+        public OutputStream getResponseBody () {
+            return body;
+        }
+
+        @Override
+        public Headers getRequestHeaders () {
+            return new Headers();
+        }
+
+        @Override
+        public URI getRequestURI () {
+            return URI.create("/fromStorage");
+        }
+
+        @Override
+        public String getRequestMethod () {
+            return "GET";
+        }
+
+        @Override
+        public HttpContext getHttpContext () {
+            return null;
+        }
+
+        @Override
+        public void close () { }
+
+        @Override
+        public InputStream getRequestBody () {
+            return null;
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress () {
+            return null;
+        }
+
+        @Override
+        public int getResponseCode () {
+            return code;
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress () {
+            return null;
+        }
+
+        @Override
+        public String getProtocol () {
+            return "HTTP/1.1";
+        }
+
+        @Override
+        public Object getAttribute (String name) {
+            return null;
+        }
+
+        @Override
+        public void setAttribute (String name, Object value) { }
+
+        @Override
+        public void setStreams (InputStream i, OutputStream o) { }
+
+        @Override
+        public HttpPrincipal getPrincipal () {
+            return null;
+        }
+    }
+
+    @Test
+    public void emptyBodyIsNotChunked () throws IOException {
+        RecordingExchange exchange = new RecordingExchange();
+        HttpExchangeDestination dst = new HttpExchangeDestination(exchange);
+        dst.setHeader("Content-Length", "0");
+        dst.sendHeaders(200);
+
+        assertEquals(200, exchange.code);
+        assertEquals(-1, exchange.length);
+    }
+
+    @Test
+    public void knownLengthIsSent () throws IOException {
+        RecordingExchange exchange = new RecordingExchange();
+        HttpExchangeDestination dst = new HttpExchangeDestination(exchange);
+        dst.setHeader("Content-Length", "1234");
+        dst.setHeader("Content-Type", "text/plain");
+        dst.sendHeaders(206);
+
+        assertEquals(206, exchange.code);
+        assertEquals(1234, exchange.length);
+        assertEquals("text/plain", exchange.getResponseHeaders().getFirst("Content-Type"));
+
+        // The server writes the length by itself
+        assertEquals(null, exchange.getResponseHeaders().getFirst("Content-Length"));
+    }
+
+    @Test
+    public void unknownLengthIsChunked () throws IOException {
+        RecordingExchange exchange = new RecordingExchange();
+        HttpExchangeDestination dst = new HttpExchangeDestination(exchange);
+
+        // The body without headers sends a 200
+        dst.getOutputStream().write(1);
+
+        assertEquals(200, exchange.code);
+        assertEquals(0, exchange.length);
+        assertEquals(1, exchange.body.size());
+    }
+}
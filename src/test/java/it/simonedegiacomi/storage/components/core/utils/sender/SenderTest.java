@@ -0,0 +1,152 @@
+package it.simonedegiacomi.storage.components.core.utils.sender;
+
+import it.simonedegiacomi.goboxapi.GBFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class SenderTest {
+
+    /**
+     * Destination that keeps the response in memory
+     */
+    private static class MemoryDestination implements SenderDestination {
+
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        private final Map<String, String> headers = new HashMap<>();
+
+        /**
+         * True to expose a channel, like a socket
+         */
+        private final boolean withChannel;
+
+        private int code;
+
+        private MemoryDestination (boolean withChannel) {
+            this.withChannel = withChannel;
+        }
+
+        @Override
+        public OutputStream getOutputStream () {
+            return body;
+        }
+
+        @Override
+        public WritableByteChannel getChannel () {
+            return withChannel ? Channels.newChannel(body) : null;
+        }
+
+        @Override
+        public void setHeader (String headerName, String headerValue) {
+            headers.put(headerName, headerValue);
+        }
+
+        @Override
+        public void sendHeaders (int httpCode) {
+            code = httpCode;
+        }
+    }
+
+    /**
+     * Bigger than the buffer of the sender, so the copy needs more reads
+     */
+    private final byte[] content = new byte[600 * 1024];
+
+    private final Sender sender = new Sender();
+
+    private File file;
+
+    private GBFile gbFile;
+
+    @Before
+    public void init () throws IOException {
+        new Random(42).nextBytes(content);
+        file = File.createTempFile("sender", ".bin");
+        Files.write(file.toPath(), content);
+        gbFile = new GBFile(file, file.getParent());
+    }
+
+    @After
+    public void end () {
+        sender.shutdown();
+        file.delete();
+    }
+
+    @Test
+    public void wholeFile () throws IOException {
+        for (boolean withChannel : new boolean[] { false, true }) {
+            MemoryDestination dst = new MemoryDestination(withChannel);
+            sender.sendFile(gbFile, dst, null);
+
+            assertEquals(200, dst.code);
+            assertEquals(String.valueOf(content.length), dst.headers.get("Content-Length"));
+            assertArrayEquals(content, dst.body.toByteArray());
+        }
+    }
+
+    @Test
+    public void singleRange () throws IOException {
+        for (boolean withChannel : new boolean[] { false, true }) {
+            MemoryDestination dst = new MemoryDestination(withChannel);
+            sender.sendFile(gbFile, dst, "bytes=1000-500999");
+
+            assertEquals(206, dst.code);
+            assertEquals("500000", dst.headers.get("Content-Length"));
+            assertEquals("bytes 1000-500999/" + content.length, dst.headers.get("Content-Range"));
+            assertArrayEquals(Arrays.copyOfRange(content, 1000, 501000), dst.body.toByteArray());
+        }
+    }
+
+    @Test
+    public void multipleRanges () throws IOException {
+        MemoryDestination dst = new MemoryDestination(false);
+        sender.sendFile(gbFile, dst, "bytes=0-9,100-119");
+
+        assertEquals(206, dst.code);
+        assertTrue(dst.headers.get("Content-Type").startsWith("multipart/byteranges; boundary="));
+        byte[] body = dst.body.toByteArray();
+        assertEquals(String.valueOf(body.length), dst.headers.get("Content-Length"));
+
+        // Every part has his range and his bytes
+        String boundary = dst.headers.get("Content-Type").substring("multipart/byteranges; boundary=".length());
+        String text = new String(body, StandardCharsets.ISO_8859_1);
+        int first = text.indexOf("Content-Range: bytes 0-9/" + content.length + "\r\n\r\n");
+        int second = text.indexOf("Content-Range: bytes 100-119/" + content.length + "\r\n\r\n");
+        assertTrue(first > 0 && second > first);
+        assertEquals(new String(content, 0, 10, StandardCharsets.ISO_8859_1),
+                text.substring(text.indexOf("\r\n\r\n", first) + 4, text.indexOf("\r\n\r\n", first) + 14));
+        assertEquals(new String(content, 100, 20, StandardCharsets.ISO_8859_1),
+                text.substring(text.indexOf("\r\n\r\n", second) + 4, text.indexOf("\r\n\r\n", second) + 24));
+        assertTrue(text.endsWith("\r\n--" + boundary + "--\r\n"));
+    }
+
+    @Test
+    public void unsatisfiableRange () throws IOException {
+        MemoryDestination dst = new MemoryDestination(false);
+        sender.sendFile(gbFile, dst, "bytes=" + content.length + "-");
+
+        assertEquals(416, dst.code);
+        assertEquals("bytes */" + content.length, dst.headers.get("Content-Range"));
+        assertEquals(0, dst.body.size());
+    }
+}
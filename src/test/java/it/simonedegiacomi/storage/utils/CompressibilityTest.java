@@ -0,0 +1,43 @@
+package it.simonedegiacomi.storage.utils;
+
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class CompressibilityTest {
+
+    @Test
+    public void sampleDecidesForUnknownTypes () throws IOException {
+        File text = File.createTempFile("text", ".dat");
+        File random = File.createTempFile("random", ".dat");
+        try {
+            StringBuilder log = new StringBuilder();
+            for (int i = 0; log.length() < 200 * 1024; i++) {
+                log.append("2016-05-26 12:00:").append(i % 60).append(" INFO request served\n");
+            }
+            Files.write(log.toString().getBytes(), text);
+
+            byte[] noise = new byte[200 * 1024];
+            new Random(1).nextBytes(noise);
+            Files.write(noise, random);
+
+            assertTrue(Compressibility.isWorthCompressing(text, null));
+            assertFalse(Compressibility.isWorthCompressing(random, null));
+
+            // The mime of a compressed format wins over the sample
+            assertFalse(Compressibility.isWorthCompressing(text, "video/mp4"));
+        } finally {
+            text.delete();
+            random.delete();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package it.simonedegiacomi.storage.utils;
+
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class DeltaEncoderTest {
+
+    @Test
+    public void rebuildModifiedFile () throws IOException {
+        Random random = new Random(42);
+        byte[] oldContent = new byte[300 * 1024 + 123];
+        random.nextBytes(oldContent);
+
+        // Insert some bytes in the middle and change the end
+        byte[] newContent = new byte[oldContent.length + 1000];
+        System.arraycopy(oldContent, 0, newContent, 0, 100 * 1024);
+        byte[] inserted = new byte[1000];
+        random.nextBytes(inserted);
+        System.arraycopy(inserted, 0, newContent, 100 * 1024, inserted.length);
+        System.arraycopy(oldContent, 100 * 1024, newContent, 100 * 1024 + 1000, oldContent.length - 100 * 1024);
+        newContent[newContent.length - 10] ^= 1;
+
+        File oldFile = File.createTempFile("old", "");
+        File newFile = File.createTempFile("new", "");
+        try {
+            Files.write(oldFile.toPath(), oldContent);
+            Files.write(newFile.toPath(), newContent);
+
+            BlockSignature signature = BlockSignature.compute(oldFile, BlockSignature.blockSizeFor(oldFile.length()));
+
+            // The signature survives the transfer
+            ByteArrayOutputStream signatureBytes = new ByteArrayOutputStream();
+            signature.write(signatureBytes);
+            signature = BlockSignature.read(new ByteArrayInputStream(signatureBytes.toByteArray()));
+
+            ByteArrayOutputStream delta = new ByteArrayOutputStream();
+            long literal = new DeltaEncoder(signature).encode(newFile, delta);
+
+            // Only the changed blocks are sent
+            assertTrue(literal < 4 * signature.getBlockSize() + 1000);
+            assertTrue(delta.size() < newContent.length / 10);
+
+            DeltaPatcher.patch(oldFile, signature.getBlockSize(), new ByteArrayInputStream(delta.toByteArray()));
+            assertArrayEquals(newContent, Files.readAllBytes(oldFile.toPath()));
+        } finally {
+            oldFile.delete();
+            newFile.delete();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package it.simonedegiacomi.storage.utils;
+
+import com.google.common.collect.Range;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class MyRangeTest {
+
+    @Test
+    public void singleRanges () {
+        assertEquals(Collections.singletonList(Range.closedOpen(0L, 100L)), MyRange.parse("bytes=0-99", 1000));
+        assertEquals(Collections.singletonList(Range.closedOpen(500L, 1000L)), MyRange.parse("bytes=500-", 1000));
+        assertEquals(Collections.singletonList(Range.closedOpen(900L, 1000L)), MyRange.parse("bytes=-100", 1000));
+        assertEquals(Collections.singletonList(Range.closedOpen(0L, 1000L)), MyRange.parse("bytes=-5000", 1000));
+        assertEquals(Collections.singletonList(Range.closedOpen(990L, 1000L)), MyRange.parse("bytes=990-2000", 1000));
+        assertEquals("bytes 0-99/1000", MyRange.contentRange(Range.closedOpen(0L, 100L), 1000));
+    }
+
+    @Test
+    public void multipleRanges () {
+        List<Range<Long>> ranges = MyRange.parse("bytes=500-599, 0-99", 1000);
+        assertEquals(Arrays.asList(Range.closedOpen(500L, 600L), Range.closedOpen(0L, 100L)), ranges);
+
+        // Overlapping and adjacent ranges are merged
+        ranges = MyRange.parse("bytes=50-149,0-99,150-199", 1000);
+        assertEquals(Collections.singletonList(Range.closedOpen(0L, 200L)), ranges);
+    }
+
+    @Test
+    public void invalidAndUnsatisfiable () {
+        assertEquals(Collections.emptyList(), MyRange.parse("bytes=1000-", 1000));
+        assertEquals(Collections.emptyList(), MyRange.parse("bytes=-0", 1000));
+        assertNull(MyRange.parse("bytes=100-50", 1000));
+        assertNull(MyRange.parse("bytes=abc", 1000));
+        assertNull(MyRange.parse("items=0-10", 1000));
+        assertNull(MyRange.parse(null, 1000));
+    }
+}
@@ -0,0 +1,77 @@
+package it.simonedegiacomi.storage.utils;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class MyZipTest {
+
+    @Test
+    public void parallelArchive () throws IOException {
+        File folder = Files.createTempDir();
+        ExecutorService compressors = Executors.newFixedThreadPool(4);
+        try {
+            Map<String, byte[]> files = new HashMap<>();
+
+            // A text file of more blocks, a small one, an empty one and a random one stored as it is
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; text.length() < 1024 * 1024; i++) {
+                text.append("line ").append(i).append(" of the text file\n");
+            }
+            files.put("text.txt", text.toString().getBytes());
+            files.put("small.txt", "hello".getBytes());
+            files.put("empty.txt", new byte[0]);
+            byte[] random = new byte[300 * 1024];
+            new Random(1).nextBytes(random);
+            files.put("sub/random.jpg", random);
+
+            for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                File dst = new File(folder, file.getKey());
+                dst.getParentFile().mkdirs();
+                Files.write(file.getValue(), dst);
+            }
+
+            ByteArrayOutputStream archive = new ByteArrayOutputStream();
+            MyZip.zipFolder(folder, archive, Collections.emptyMap(), compressors);
+
+            // Read the archive back
+            int found = 0;
+            try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(archive.toByteArray()))) {
+                ZipEntry entry;
+                while ((entry = zip.getNextEntry()) != null) {
+                    if (entry.isDirectory())
+                        continue;
+                    String path = entry.getName().substring(folder.getName().length() + 1);
+                    assertArrayEquals(path, files.get(path), ByteStreams.toByteArray(zip));
+                    assertEquals(path.endsWith(".jpg") ? ZipEntry.STORED : ZipEntry.DEFLATED, entry.getMethod());
+                    found++;
+                }
+            }
+            assertEquals(files.size(), found);
+        } finally {
+            compressors.shutdownNow();
+            new File(folder, "sub/random.jpg").delete();
+            new File(folder, "sub").delete();
+            for (File file : folder.listFiles()) {
+                file.delete();
+            }
+            folder.delete();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package it.simonedegiacomi.sync;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class CircuitBreakerTest {
+
+    @Test
+    public void openAfterThresholdAndProbe () throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(2, 50);
+
+        breaker.onFailure();
+        assertTrue(breaker.allowRequest());
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+
+        // After the open time only one work can try
+        Thread.sleep(100);
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+
+        // The storage is still unreachable
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertTrue(breaker.getRemainingOpenTime() > 50);
+
+        // Then it comes back
+        Thread.sleep(150);
+        assertTrue(breaker.allowRequest());
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+}
@@ -0,0 +1,222 @@
+package it.simonedegiacomi.sync;
+
+import com.google.common.io.Files;
+import it.simonedegiacomi.goboxapi.GBFile;
+import it.simonedegiacomi.goboxapi.client.*;
+import it.simonedegiacomi.storage.utils.MyFileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class ReconcilerTest {
+
+    private static final String folder = "temp/reconciler/";
+
+    private File root;
+
+    private StorageClient storage;
+
+    private SyncIndex index;
+
+    private Reconciler reconciler;
+
+    @Before
+    public void init () throws IOException {
+        root = new File(folder).getAbsoluteFile();
+        new File(root, "a").mkdirs();
+        new File(root, "b").mkdirs();
+        Files.touch(new File(root, "a/new.txt"));
+        Files.touch(new File(root, "b/other.txt"));
+
+        // The storage has the two folders, and a file of 'a' deleted locally since the last synchronization
+        storage = new StorageClient();
+        storage.add("", 1, true);
+        storage.add("a", 2, true);
+        storage.add("b", 3, true);
+        storage.add("a/gone.txt", 4, false);
+
+        index = new SyncIndex(root, new File(root, ".index"));
+        File gone = new File(root, "a/gone.txt");
+        Files.touch(gone);
+        GBFile synced = new GBFile(gone, root.getAbsolutePath());
+        synced.setID(4);
+        index.update(synced);
+        gone.delete();
+
+        reconciler = new Reconciler(storage, null, index, root.getAbsolutePath(), 2);
+    }
+
+    @After
+    public void end () {
+        MyFileUtils.delete(root);
+    }
+
+    @Test
+    public void rescanOnlyTheFolder () throws IOException, ClientException {
+        List<String> works = describe(reconciler.rescan(new File(root, "a")));
+
+        Collections.sort(works);
+        assertEquals(Arrays.asList("REMOVE_IN_STORAGE gone.txt", "UPLOAD new.txt"), works);
+
+        // The other folder is not even asked to the storage
+        assertEquals(Collections.singletonList(new File(root, "a")), storage.asked);
+    }
+
+    @Test
+    public void rescanDeletedFolderFromTheParent () throws IOException, ClientException {
+        List<String> works = describe(reconciler.rescan(new File(root, "a/deleted/inner")));
+
+        Collections.sort(works);
+        assertEquals(Arrays.asList("REMOVE_IN_STORAGE gone.txt", "UPLOAD new.txt"), works);
+    }
+
+    @Test
+    public void unchangedFileIsNotRead () throws IOException, ClientException {
+        File same = new File(root, "a/same.txt");
+        Files.write(new byte[16], same);
+        storage.add("a/same.txt", 5, false);
+        storage.files.get("a/same.txt").setSize(same.length());
+
+        // The index and the storage agree on a hash that is not the one of the content, so the file is up to
+        // date only if it's not read
+        GBFile synced = new GBFile(same, root.getAbsolutePath());
+        synced.setID(5);
+        index.update(synced, 0, "synced");
+        storage.hashes.put(5L, "synced");
+
+        // Compare the snapshot of the storage, that has the hashes
+        reconciler = new Reconciler(storage, storage, index, root.getAbsolutePath(), 2);
+        List<String> works = describe(reconciler.reconcile());
+
+        Collections.sort(works);
+        assertEquals(Arrays.asList("REMOVE_IN_STORAGE gone.txt", "UPLOAD new.txt", "UPLOAD other.txt"), works);
+    }
+
+    private static List<String> describe (List<Work> works) {
+        List<String> descriptions = new ArrayList<>();
+        for (Work work : works) {
+            descriptions.add(work.getKind() + " " + work.getFile().getName());
+        }
+        return descriptions;
+    }
+
+    /**
+     * Client that answers with a fixed tree and records the folders that are asked
+     */
+    private class StorageClient extends GBClient implements TreeSnapshotSource {
+
+        private final Map<String, GBFile> files = new LinkedHashMap<>();
+
+        private final Map<Long, String> hashes = new HashMap<>();
+
+        private final Map<String, List<GBFile>> children = new HashMap<>();
+
+        private final List<File> asked = Collections.synchronizedList(new ArrayList<>());
+
+        private void add (String path, long id, boolean directory) {
+            File file = new File(root, path);
+            GBFile remote = new GBFile(file.getName(), GBFile.UNKNOWN_ID, directory);
+            remote.setID(id);
+            files.put(path, remote);
+            children.put(path, new ArrayList<>());
+            if (!path.isEmpty()) {
+                String parent = path.contains("/") ? path.substring(0, path.lastIndexOf('/')) : "";
+                remote.setFatherID(files.get(parent).getID());
+                children.get(parent).add(remote);
+            }
+        }
+
+        @Override
+        public GBFile getInfo (GBFile file) throws ClientException {
+            File local = file.toFile().getAbsoluteFile();
+            asked.add(local);
+            String path = root.toPath().relativize(local.toPath()).toString();
+            GBFile remote = files.get(path);
+            if (remote == null)
+                return null;
+
+            GBFile detailed = new GBFile(local, root.getAbsolutePath());
+            detailed.setID(remote.getID());
+            detailed.setChildren(new ArrayList<>(children.get(path)));
+            return detailed;
+        }
+
+        @Override
+        public void getTreeSnapshot (GBFile root, int pageSize, PageListener listener) {
+            listener.onPage(new ArrayList<>(files.values()), hashes);
+        }
+
+        @Override
+        public boolean init () { return true; }
+
+        @Override
+        public URL getUrl (TransferProfile.Action action, GBFile file, boolean preview) { return null; }
+
+        @Override
+        public void getFile (GBFile file) { }
+
+        @Override
+        public void getFile (GBFile file, OutputStream dst) { }
+
+        @Override
+        public void createDirectory (GBFile newDir) { }
+
+        @Override
+        public void uploadFile (GBFile file, InputStream inputStream) { }
+
+        @Override
+        public void trashFile (GBFile file, boolean trash) { }
+
+        @Override
+        public void removeFile (GBFile file) { }
+
+        @Override
+        public void addSyncEventListener (SyncEventListener listener) { }
+
+        @Override
+        public void removeSyncEventListener (SyncEventListener listener) { }
+
+        @Override
+        public boolean isReady () { return true; }
+
+        @Override
+        public ClientState getState () { return ClientState.READY; }
+
+        @Override
+        public void shutdown () { }
+
+        @Override
+        public List<GBFile> getSharedFiles () { return null; }
+
+        @Override
+        public void share (GBFile file, boolean share) { }
+
+        @Override
+        public List<GBFile> getFilesByFilter (GBFilter filter) { return null; }
+
+        @Override
+        public List<SyncEvent> getRecentFiles (long from, long size) { return null; }
+
+        @Override
+        public List<GBFile> getTrashedFiles () { return null; }
+
+        @Override
+        public void emptyTrash () { }
+
+        @Override
+        public void move (GBFile src, GBFile dst, boolean copy) { }
+    }
+}
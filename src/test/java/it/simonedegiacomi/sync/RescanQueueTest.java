@@ -0,0 +1,93 @@
+package it.simonedegiacomi.sync;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class RescanQueueTest {
+
+    private final List<File> scanned = Collections.synchronizedList(new ArrayList<>());
+
+    private RescanQueue queue;
+
+    @After
+    public void end () {
+        queue.shutdown();
+    }
+
+    @Test
+    public void scansWaitForTheStart () throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        queue = new RescanQueue(folder -> {
+            scanned.add(folder);
+            done.countDown();
+        });
+
+        queue.add(new File("a"));
+        Thread.sleep(100);
+        assertTrue(scanned.isEmpty());
+
+        queue.start();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList(new File("a")), scanned);
+    }
+
+    @Test
+    public void childrenOfQueuedFolderAreNotScanned () throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(2);
+        queue = new RescanQueue(folder -> {
+            scanned.add(folder);
+            done.countDown();
+        });
+
+        queue.add(new File("a/b"));
+        queue.add(new File("a/c"));
+        queue.add(new File("a"));
+        queue.add(new File("a/b/d"));
+        queue.add(new File("e"));
+        queue.start();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(new HashSet<>(Arrays.asList(new File("a"), new File("e"))), new HashSet<>(scanned));
+        assertEquals(2, scanned.size());
+    }
+
+    @Test
+    public void folderChangedDuringItsScanIsScannedAgain () throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(2);
+        queue = new RescanQueue(folder -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                return;
+            }
+            scanned.add(folder);
+            done.countDown();
+        });
+        queue.start();
+
+        // The folder is not pending anymore while it is scanned
+        queue.add(new File("a"));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        queue.add(new File("a"));
+        release.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(new File("a"), new File("a")), scanned);
+    }
+}
@@ -0,0 +1,283 @@
+package it.simonedegiacomi.sync;
+
+import it.simonedegiacomi.goboxapi.GBFile;
+import it.simonedegiacomi.storage.utils.ContentHash;
+import it.simonedegiacomi.sync.fs.MyFileSystemWatcher;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.HttpsURLConnection;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.Certificate;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class SegmentedDownloaderTest {
+
+    private static final String folder = "temp/segmented/";
+
+    /**
+     * Storage that serves the ranges of a file from memory
+     */
+    private static class FakeStorage extends DirectStorage {
+
+        private final byte[] content;
+
+        /**
+         * Range headers of the requests, in the order they arrived
+         */
+        private final List<String> ranges = Collections.synchronizedList(new ArrayList<>());
+
+        /**
+         * If positive, the first response of every segment breaks after this number of bytes
+         */
+        private int breakAfter;
+
+        /**
+         * Size declared in the Content-Range, to simulate a file changed in the storage
+         */
+        private long declaredSize;
+
+        /**
+         * True to ignore the ranges and send the whole file
+         */
+        private boolean ignoreRanges;
+
+        /**
+         * ETag of the responses, null to not send it
+         */
+        private String etag;
+
+        /**
+         * If not null, ETag of the responses of all the segments but the first, to simulate a file replaced
+         * in the storage during the download
+         */
+        private String replacedEtag;
+
+        private FakeStorage (byte[] content) {
+            super(null, null);
+            this.content = content;
+            this.declaredSize = content.length;
+        }
+
+        @Override
+        public String baseUrl (GBFile file) {
+            return "https://storage";
+        }
+
+        @Override
+        public HttpsURLConnection open (String url, String method) throws IOException {
+            return new FakeConnection(this, new URL(url));
+        }
+    }
+
+    private static class FakeConnection extends HttpsURLConnection {
+
+        private final FakeStorage storage;
+
+        private int start;
+
+        private int end;
+
+        private FakeConnection (FakeStorage storage, URL url) {
+            super(url);
+            this.storage = storage;
+        }
+
+        @Override
+        public int getResponseCode () {
+            if (storage.ignoreRanges)
+                return 200;
+
+            // Only the first request of a segment breaks, the segments have different ends
+            String range = getRequestProperty("Range");
+            String segmentEnd = range.substring(range.indexOf('-'));
+            boolean first;
+            synchronized (storage.ranges) {
+                first = storage.ranges.stream().noneMatch(previous -> previous.endsWith(segmentEnd));
+                storage.ranges.add(range);
+            }
+
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            start = Integer.parseInt(bounds[0]);
+            end = Integer.parseInt(bounds[1]) + 1;
+            if (first && storage.breakAfter > 0)
+                end = Math.min(end, start + storage.breakAfter);
+            return 206;
+        }
+
+        @Override
+        public String getHeaderField (String name) {
+            if ("ETag".equals(name))
+                return start > 0 && storage.replacedEtag != null ? storage.replacedEtag : storage.etag;
+            if (!"Content-Range".equals(name))
+                return null;
+            String range = getRequestProperty("Range").substring("bytes=".length());
+            return "bytes " + range + "/" + storage.declaredSize;
+        }
+
+        @Override
+        public InputStream getInputStream () {
+            return new ByteArrayInputStream(storage.content, start, end - start);
+        }
+
+        @Override
+        public void connect () { }
+
+        @Override
+        public void disconnect () { }
+
+        @Override
+        public boolean usingProxy () {
+            return false;
+        }
+
+        @Override
+        public String getCipherSuite () {
+            return null;
+        }
+
+        @Override
+        public Certificate[] getLocalCertificates () {
+            return null;
+        }
+
+        @Override
+        public Certificate[] getServerCertificates () {
+            return null;
+        }
+    }
+
+    private final MyFileSystemWatcher watcher = new MyFileSystemWatcher() {
+
+        @Override
+        public void shutdown () { }
+
+        @Override
+        protected void register (Path folder) { }
+
+        @Override
+        protected boolean isStopped () {
+            return false;
+        }
+    };
+
+    private final byte[] content = new byte[1000];
+
+    private final File local = new File(folder + "big.bin");
+
+    private FakeStorage storage;
+
+    private SegmentedDownloader downloader;
+
+    private GBFile file;
+
+    private String hash;
+
+    @Before
+    public void init () {
+        new Random(42).nextBytes(content);
+        hash = ContentHash.newHasher().putBytes(content).hash().toString();
+        new File(folder).mkdirs();
+        local.delete();
+        storage = new FakeStorage(content);
+        downloader = new SegmentedDownloader(storage, watcher, 4, 0);
+        file = new GBFile(local, folder);
+        file.setID(5);
+        storage.etag = '"' + hash + '"';
+    }
+
+    @After
+    public void end () {
+        downloader.shutdown();
+        local.delete();
+    }
+
+    @Test
+    public void fileIsSplitInSegments () throws IOException {
+        assertEquals(hash, downloader.download(file, content.length));
+        assertArrayEquals(content, Files.readAllBytes(local.toPath()));
+
+        List<String> ranges = new ArrayList<>(storage.ranges);
+        Collections.sort(ranges);
+        assertEquals(Arrays.asList("bytes=0-249", "bytes=250-499", "bytes=500-749", "bytes=750-999"), ranges);
+    }
+
+    @Test
+    public void brokenSegmentsAreResumed () throws IOException {
+        storage.breakAfter = 100;
+
+        assertEquals(hash, downloader.download(file, content.length));
+        assertArrayEquals(content, Files.readAllBytes(local.toPath()));
+
+        // Every segment is requested again from the first byte not received
+        assertTrue(storage.ranges.contains("bytes=100-249"));
+        assertTrue(storage.ranges.contains("bytes=850-999"));
+        assertEquals(8, storage.ranges.size());
+    }
+
+    @Test
+    public void changedFileIsRejected () {
+        storage.declaredSize = content.length + 1;
+
+        assertRejected();
+    }
+
+    @Test
+    public void fileReplacedWithTheSameSizeIsRejected () {
+        storage.replacedEtag = "\"other\"";
+
+        assertRejected();
+    }
+
+    @Test
+    public void contentNotMatchingTheHashIsRejected () {
+        storage.etag = "\"other\"";
+
+        assertRejected();
+    }
+
+    @Test
+    public void storageWithoutHashIsAccepted () throws IOException {
+        storage.etag = null;
+
+        assertEquals(hash, downloader.download(file, content.length));
+        assertArrayEquals(content, Files.readAllBytes(local.toPath()));
+    }
+
+    @Test
+    public void storageWithoutRangesFallsBack () throws IOException {
+        storage.ignoreRanges = true;
+
+        assertNull(downloader.download(file, content.length));
+        assertFalse(local.exists());
+
+        // The segmented downloads are not tried again
+        storage.ignoreRanges = false;
+        assertNull(downloader.download(file, content.length));
+        assertTrue(storage.ranges.isEmpty());
+    }
+
+    private void assertRejected () {
+        try {
+            downloader.download(file, content.length);
+            fail("The download of a changed file must fail");
+        } catch (IOException ex) {
+            // Expected
+        }
+        assertFalse(local.exists());
+        assertFalse(new File(folder + ".big.bin.download").exists());
+    }
+}
@@ -0,0 +1,107 @@
+package it.simonedegiacomi.sync;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class SettleWindowTest {
+
+    private static final String folder = "temp/";
+
+    private static final long WINDOW = 500;
+
+    private final File file = new File(folder + "settle.txt");
+
+    private final List<File> settled = new CopyOnWriteArrayList<>();
+
+    private SettleWindow window;
+
+    @Before
+    public void init () throws IOException {
+        new File(folder).mkdir();
+        write(file, "first");
+        window = new SettleWindow(WINDOW, settled::add);
+    }
+
+    @After
+    public void end () {
+        window.shutdown();
+        file.delete();
+    }
+
+    @Test
+    public void stableFileIsSettled () throws InterruptedException {
+        window.touch(file);
+        assertEquals(1, window.size());
+
+        Thread.sleep(WINDOW * 3);
+        assertEquals(1, settled.size());
+        assertEquals(file, settled.get(0));
+        assertEquals(0, window.size());
+    }
+
+    @Test
+    public void modificationRestartsTheWindow () throws InterruptedException, IOException {
+        window.touch(file);
+
+        // Write again before the end of the window
+        Thread.sleep(WINDOW / 2);
+        write(file, "second version");
+        window.touch(file);
+
+        // The first window would be ended now, but the file changed
+        Thread.sleep(WINDOW * 3 / 4);
+        assertTrue(settled.isEmpty());
+        assertEquals(1, window.size());
+
+        Thread.sleep(WINDOW * 2);
+        assertEquals(1, settled.size());
+    }
+
+    @Test
+    public void cancelledFileIsNotSettled () throws InterruptedException {
+        window.touch(file);
+        assertTrue(window.cancel(file));
+        assertFalse(window.cancel(file));
+        assertEquals(0, window.size());
+
+        Thread.sleep(WINDOW * 3);
+        assertTrue(settled.isEmpty());
+    }
+
+    @Test
+    public void fileDeletedBeforeTheEndIsForgotten () throws InterruptedException {
+        window.touch(file);
+        assertTrue(file.delete());
+
+        Thread.sleep(WINDOW * 3);
+        assertTrue(settled.isEmpty());
+        assertEquals(0, window.size());
+    }
+
+    @Test
+    public void emptyWindowSettlesImmediately () {
+        SettleWindow immediate = new SettleWindow(0, settled::add);
+        immediate.touch(file);
+        immediate.shutdown();
+        assertEquals(1, settled.size());
+    }
+
+    private static void write (File file, String content) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content.getBytes());
+        }
+    }
+}
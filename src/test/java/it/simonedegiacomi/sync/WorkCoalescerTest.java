@@ -0,0 +1,102 @@
+package it.simonedegiacomi.sync;
+
+import it.simonedegiacomi.goboxapi.GBFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class WorkCoalescerTest {
+
+    private static final String folder = "temp/coalescer/";
+
+    private File root;
+
+    private File replaced;
+
+    private File folderReplaced;
+
+    private SyncIndex index;
+
+    @Before
+    public void init () throws IOException {
+        root = new File(folder).getAbsoluteFile();
+        root.mkdirs();
+        replaced = new File(root, "replaced");
+        FileOutputStream out = new FileOutputStream(replaced);
+        out.write(new byte[16]);
+        out.close();
+        folderReplaced = new File(root, "folder");
+        folderReplaced.mkdir();
+
+        // The index knows the file and the folder
+        index = new SyncIndex(root, new File(root, ".index"));
+        index.update(new GBFile(replaced, root.getAbsolutePath()));
+        index.update(new GBFile(folderReplaced, root.getAbsolutePath()));
+    }
+
+    @After
+    public void end () {
+        replaced.delete();
+        folderReplaced.delete();
+        new File(root, ".index").delete();
+        root.delete();
+    }
+
+    @Test
+    public void fileCreatedAgainIsReplaced () {
+        WorkCoalescer coalescer = new WorkCoalescer(index);
+        GBFile file = new GBFile(replaced, root.getAbsolutePath());
+
+        WorkCoalescer.Merge merge = coalescer.merge(new Work(file, Work.WorkKind.REMOVE_IN_STORAGE),
+                new Work(file, Work.WorkKind.UPLOAD));
+        assertEquals(WorkCoalescer.Outcome.REPLACE, merge.getOutcome());
+    }
+
+    @Test
+    public void fileReplacedByFolderIsRemovedFirst () {
+        WorkCoalescer coalescer = new WorkCoalescer(index);
+        replaced.delete();
+        replaced.mkdir();
+        GBFile file = new GBFile(replaced, root.getAbsolutePath());
+
+        WorkCoalescer.Merge merge = coalescer.merge(new Work(file, Work.WorkKind.REMOVE_IN_STORAGE),
+                new Work(file, Work.WorkKind.UPLOAD));
+        assertEquals(WorkCoalescer.Outcome.APPEND, merge.getOutcome());
+    }
+
+    @Test
+    public void folderCreatedAgainIsRemovedFirst () {
+        WorkCoalescer coalescer = new WorkCoalescer(index);
+        GBFile folder = new GBFile(folderReplaced, root.getAbsolutePath());
+
+        // The upload of the new folder doesn't remove the children of the old one
+        WorkCoalescer.Merge merge = coalescer.merge(new Work(folder, Work.WorkKind.REMOVE_IN_STORAGE),
+                new Work(folder, Work.WorkKind.UPLOAD));
+        assertEquals(WorkCoalescer.Outcome.APPEND, merge.getOutcome());
+    }
+
+    @Test
+    public void folderDownloadedAgainIsRemovedFirst () {
+        WorkCoalescer coalescer = new WorkCoalescer(index);
+        GBFile folder = new GBFile(folderReplaced, root.getAbsolutePath());
+
+        WorkCoalescer.Merge merge = coalescer.merge(new Work(folder, Work.WorkKind.REMOVE_IN_CLIENT),
+                new Work(folder, Work.WorkKind.DOWNLOAD));
+        assertEquals(WorkCoalescer.Outcome.APPEND, merge.getOutcome());
+
+        // A file is still replaced
+        GBFile file = new GBFile(replaced, root.getAbsolutePath());
+        merge = coalescer.merge(new Work(file, Work.WorkKind.REMOVE_IN_CLIENT), new Work(file, Work.WorkKind.DOWNLOAD));
+        assertEquals(WorkCoalescer.Outcome.REPLACE, merge.getOutcome());
+    }
+}
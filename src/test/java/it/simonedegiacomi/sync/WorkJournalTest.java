@@ -0,0 +1,100 @@
+package it.simonedegiacomi.sync;
+
+import it.simonedegiacomi.goboxapi.GBFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class WorkJournalTest {
+
+    private static final String folder = "temp/";
+
+    private final File root = new File(folder).getAbsoluteFile();
+
+    private final File journalFile = new File(folder + "works.journal");
+
+    @Before
+    public void init () {
+        root.mkdir();
+        journalFile.delete();
+    }
+
+    @After
+    public void end () {
+        journalFile.delete();
+    }
+
+    @Test
+    public void resumeNotCompletedWorks () throws IOException {
+        WorkJournal journal = new WorkJournal(root, root.getAbsolutePath(), journalFile);
+        assertTrue(journal.open().isEmpty());
+
+        Work upload = new Work(new GBFile(new File(root, "a.txt"), root.getAbsolutePath()), Work.WorkKind.UPLOAD);
+        Work remove = new Work(new GBFile(new File(root, "b.txt"), root.getAbsolutePath()), Work.WorkKind.REMOVE_IN_STORAGE);
+        Work move = new Work(new GBFile(new File(root, "d.txt"), root.getAbsolutePath()), Work.WorkKind.MOVE_IN_STORAGE);
+        move.setBefore(new GBFile(new File(root, "c.txt"), root.getAbsolutePath()));
+
+        journal.append(upload);
+        journal.append(remove);
+        journal.append(move);
+        journal.complete(remove);
+        journal.close();
+
+        // Open the journal again, like after a restart
+        journal = new WorkJournal(root, root.getAbsolutePath(), journalFile);
+        List<Work> works = journal.open();
+        journal.close();
+
+        assertEquals(2, works.size());
+        assertEquals(Work.WorkKind.UPLOAD, works.get(0).getKind());
+        assertEquals(new File(root, "a.txt"), works.get(0).getFile().toFile().getAbsoluteFile());
+        assertEquals(Work.WorkKind.MOVE_IN_STORAGE, works.get(1).getKind());
+        assertEquals(new File(root, "c.txt"), works.get(1).getBefore().toFile().getAbsoluteFile());
+        assertEquals(new File(root, "d.txt"), works.get(1).getFile().toFile().getAbsoluteFile());
+    }
+
+    @Test
+    public void worksAddedBeforeOpenAreNotLost () throws IOException {
+
+        // Journal of the previous session with a work not completed
+        WorkJournal journal = new WorkJournal(root, root.getAbsolutePath(), journalFile);
+        journal.open();
+        Work old = new Work(new GBFile(new File(root, "old.txt"), root.getAbsolutePath()), Work.WorkKind.UPLOAD);
+        journal.append(old);
+        journal.close();
+
+        // The watcher queues works before the journal is opened
+        journal = new WorkJournal(root, root.getAbsolutePath(), journalFile);
+        Work early = new Work(new GBFile(new File(root, "early.txt"), root.getAbsolutePath()), Work.WorkKind.UPLOAD);
+        Work done = new Work(new GBFile(new File(root, "done.txt"), root.getAbsolutePath()), Work.WorkKind.UPLOAD);
+        journal.append(early);
+        journal.append(done);
+        journal.complete(done);
+
+        List<Work> works = journal.open();
+        assertEquals(1, works.size());
+        assertEquals(old.getID(), works.get(0).getID());
+        assertTrue(early.getID() > old.getID());
+        journal.close();
+
+        // After a restart both the works are resumed
+        journal = new WorkJournal(root, root.getAbsolutePath(), journalFile);
+        works = journal.open();
+        journal.close();
+
+        assertEquals(2, works.size());
+        assertEquals(new File(root, "old.txt"), works.get(0).getFile().toFile().getAbsoluteFile());
+        assertEquals(new File(root, "early.txt"), works.get(1).getFile().toFile().getAbsoluteFile());
+    }
+}
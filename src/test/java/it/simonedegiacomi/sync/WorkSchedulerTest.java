@@ -0,0 +1,180 @@
+package it.simonedegiacomi.sync;
+
+import it.simonedegiacomi.goboxapi.GBFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class WorkSchedulerTest {
+
+    private static final String folder = "temp/";
+
+    private final List<Work> done = Collections.synchronizedList(new LinkedList<>());
+
+    private WorkScheduler scheduler;
+
+    private File bigFile;
+
+    @Before
+    public void init () throws IOException {
+        new File(folder).mkdir();
+        bigFile = new File(folder + "big.bin");
+        FileOutputStream out = new FileOutputStream(bigFile);
+        out.write(new byte[2048]);
+        out.close();
+    }
+
+    @After
+    public void end () {
+        scheduler.shutdown();
+        bigFile.delete();
+    }
+
+    @Test
+    public void metadataBeforeBulkTransfers () throws InterruptedException {
+        CountDownLatch firstStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch completed = new CountDownLatch(3);
+
+        scheduler = new WorkScheduler(1, work -> {
+            if (done.isEmpty()) {
+                firstStarted.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+            done.add(work);
+            completed.countDown();
+        });
+        scheduler.setSmallFileSize(1024);
+
+        // Keep the only thread busy
+        Work first = new Work(new GBFile(new File(folder + "first.txt"), folder), Work.WorkKind.REMOVE_IN_STORAGE);
+        scheduler.submit(first);
+        assertTrue(firstStarted.await(1, TimeUnit.SECONDS));
+
+        Work bulk = new Work(new GBFile(bigFile, folder), Work.WorkKind.UPLOAD);
+        Work remove = new Work(new GBFile(new File(folder + "removed.txt"), folder), Work.WorkKind.REMOVE_IN_STORAGE);
+        scheduler.submit(bulk);
+        scheduler.submit(remove);
+        assertEquals(WorkScheduler.Lane.BULK_UPLOAD, scheduler.laneOf(bulk));
+
+        release.countDown();
+        assertTrue(completed.await(1, TimeUnit.SECONDS));
+
+        assertEquals(first, done.get(0));
+        assertEquals(remove, done.get(1));
+        assertEquals(bulk, done.get(2));
+    }
+
+    @Test
+    public void agingPromotesBulkTransfers () throws InterruptedException {
+        CountDownLatch firstStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch completed = new CountDownLatch(3);
+
+        scheduler = new WorkScheduler(1, work -> {
+            if (done.isEmpty()) {
+                firstStarted.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+            done.add(work);
+            completed.countDown();
+        });
+        scheduler.setSmallFileSize(1024);
+        scheduler.setAgingInterval(10);
+
+        Work first = new Work(new GBFile(new File(folder + "first.txt"), folder), Work.WorkKind.REMOVE_IN_STORAGE);
+        scheduler.submit(first);
+        assertTrue(firstStarted.await(1, TimeUnit.SECONDS));
+
+        // The bulk work waits much more than two aging intervals
+        Work bulk = new Work(new GBFile(bigFile, folder), Work.WorkKind.UPLOAD);
+        scheduler.submit(bulk);
+        Thread.sleep(100);
+        Work remove = new Work(new GBFile(new File(folder + "removed.txt"), folder), Work.WorkKind.REMOVE_IN_STORAGE);
+        scheduler.submit(remove);
+
+        release.countDown();
+        assertTrue(completed.await(1, TimeUnit.SECONDS));
+
+        assertEquals(bulk, done.get(1));
+        assertEquals(remove, done.get(2));
+    }
+
+    @Test
+    public void coalesceQueuedWorks () throws InterruptedException {
+        CountDownLatch firstStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch completed = new CountDownLatch(3);
+
+        scheduler = new WorkScheduler(1, work -> {
+            if (done.isEmpty()) {
+                firstStarted.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+            done.add(work);
+            completed.countDown();
+        });
+        scheduler.setCoalescer(new WorkCoalescer(null));
+
+        Work first = new Work(new GBFile(new File(folder + "first.txt"), folder), Work.WorkKind.REMOVE_IN_STORAGE);
+        scheduler.submit(first);
+        assertTrue(firstStarted.await(1, TimeUnit.SECONDS));
+
+        // Two uploads of the same file are one upload
+        Work upload = new Work(new GBFile(bigFile, folder), Work.WorkKind.UPLOAD);
+        scheduler.submit(upload);
+        scheduler.submit(new Work(new GBFile(bigFile, folder), Work.WorkKind.UPLOAD));
+
+        // A file created and deleted before the upload is never uploaded
+        GBFile temp = new GBFile(new File(folder + "temp.txt"), folder);
+        scheduler.submit(new Work(temp, Work.WorkKind.UPLOAD));
+        scheduler.submit(new Work(temp, Work.WorkKind.REMOVE_IN_STORAGE));
+
+        // a -> b -> c is a -> c
+        Work move = new Work(new GBFile(new File(folder + "b.txt"), folder), Work.WorkKind.MOVE_IN_STORAGE);
+        move.setBefore(new GBFile(new File(folder + "a.txt"), folder));
+        scheduler.submit(move);
+        Work secondMove = new Work(new GBFile(new File(folder + "c.txt"), folder), Work.WorkKind.MOVE_IN_STORAGE);
+        secondMove.setBefore(new GBFile(new File(folder + "b.txt"), folder));
+        scheduler.submit(secondMove);
+
+        assertEquals(2, scheduler.size());
+
+        release.countDown();
+        assertTrue(completed.await(1, TimeUnit.SECONDS));
+
+        Work chained = done.get(1);
+        assertEquals(Work.WorkKind.MOVE_IN_STORAGE, chained.getKind());
+        assertEquals(WorkScheduler.pathOf(move.getBefore()), WorkScheduler.pathOf(chained.getBefore()));
+        assertEquals(WorkScheduler.pathOf(secondMove.getFile()), WorkScheduler.pathOf(chained.getFile()));
+        assertEquals(upload, done.get(2));
+    }
+}
@@ -0,0 +1,111 @@
+package it.simonedegiacomi.sync.fs;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class EventBatcherTest {
+
+    /**
+     * Listener that records the events as strings
+     */
+    private static class Recorder implements MyFileSystemWatcher.FileSystemEventListener {
+
+        private final List<String> events = new ArrayList<>();
+
+        private final CountDownLatch latch;
+
+        private Recorder (int expected) {
+            latch = new CountDownLatch(expected);
+        }
+
+        private synchronized void record (String event) {
+            events.add(event);
+            latch.countDown();
+        }
+
+        @Override
+        public void onFileCreated (File newFile) {
+            record("created " + newFile.getName());
+        }
+
+        @Override
+        public void onFileModified (File modifiedFile) {
+            record("modified " + modifiedFile.getName());
+        }
+
+        @Override
+        public void onFileDeleted (File deletedFile) {
+            record("deleted " + deletedFile.getName());
+        }
+
+        @Override
+        public void onFileMoved (File before, File movedFile) {
+            record("moved " + before.getName() + " " + movedFile.getName());
+        }
+    }
+
+    @Test
+    public void mergeEventsOfTheSameFile () throws InterruptedException {
+        Recorder recorder = new Recorder(6);
+        EventBatcher batcher = new EventBatcher(recorder, 500, EventBatcher.DEFAULT_MAX_SIZE);
+
+        batcher.onFileCreated(new File("a"));
+        batcher.onFileModified(new File("a"));
+        batcher.onFileCreated(new File("tmp"));
+        batcher.onFileDeleted(new File("tmp"));
+        batcher.onFileModified(new File("b"));
+        batcher.onFileModified(new File("b"));
+        batcher.onFileDeleted(new File("c"));
+        batcher.onFileCreated(new File("c"));
+
+        // The move is not merged, the events before it are delivered first
+        batcher.onFileMoved(new File("b"), new File("d"));
+        batcher.onFileModified(new File("d"));
+
+        assertTrue(recorder.latch.await(5, TimeUnit.SECONDS));
+        batcher.shutdown();
+        assertEquals(Arrays.asList("created a", "modified b", "deleted c", "created c", "moved b d", "modified d"), recorder.events);
+    }
+
+    @Test
+    public void fileReplacedByFolderIsNotModified () throws InterruptedException {
+        Recorder recorder = new Recorder(2);
+        EventBatcher batcher = new EventBatcher(recorder, 500, EventBatcher.DEFAULT_MAX_SIZE);
+
+        // The file is replaced by a folder, that is then filled
+        File replaced = new File("temp/replaced");
+        batcher.onFileModified(replaced);
+        batcher.onFileDeleted(replaced);
+        batcher.onFileCreated(replaced);
+        batcher.onFileModified(replaced);
+
+        assertTrue(recorder.latch.await(5, TimeUnit.SECONDS));
+        batcher.shutdown();
+        assertEquals(Arrays.asList("deleted replaced", "created replaced"), recorder.events);
+    }
+
+    @Test
+    public void fullBatchIsDeliveredImmediately () throws InterruptedException {
+        Recorder recorder = new Recorder(2);
+        EventBatcher batcher = new EventBatcher(recorder, TimeUnit.HOURS.toMillis(1), 2);
+
+        batcher.onFileCreated(new File("a"));
+        batcher.onFileCreated(new File("b"));
+
+        assertTrue(recorder.latch.await(5, TimeUnit.SECONDS));
+        batcher.shutdown();
+    }
+}
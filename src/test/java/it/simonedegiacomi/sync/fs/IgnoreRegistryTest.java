@@ -0,0 +1,51 @@
+package it.simonedegiacomi.sync.fs;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class IgnoreRegistryTest {
+
+    @Test
+    public void ignoreFolderAndChildren () {
+        IgnoreRegistry registry = new IgnoreRegistry();
+        registry.ignore(new File("/files/photos"));
+
+        assertTrue(registry.shouldIgnore(new File("/files/photos")));
+        assertTrue(registry.shouldIgnore(new File("/files/photos/2016/a.jpg")));
+        assertFalse(registry.shouldIgnore(new File("/files/photos2")));
+        assertFalse(registry.shouldIgnore(new File("/files/music/a.mp3")));
+
+        // The folder that contains the ignored file is modified too
+        assertTrue(registry.shouldIgnore(new File("/files")));
+    }
+
+    @Test
+    public void stopIgnoring () {
+        IgnoreRegistry registry = new IgnoreRegistry();
+        File file = new File("/files/doc.txt");
+        registry.ignore(file);
+        registry.stop(file);
+
+        // A file that doesn't exist has no modified date, so its last events are still ignored
+        assertTrue(registry.shouldIgnore(file));
+        assertFalse(registry.shouldIgnore(new File("/files")));
+    }
+
+    @Test
+    public void ignoreOnlyOnce () {
+        IgnoreRegistry registry = new IgnoreRegistry();
+        File file = new File("/files/doc.txt");
+        registry.once(file);
+
+        assertTrue(registry.shouldIgnore(file));
+        assertFalse(registry.shouldIgnore(file));
+    }
+}
@@ -0,0 +1,215 @@
+package it.simonedegiacomi.sync.fs;
+
+import com.google.common.io.Files;
+import it.simonedegiacomi.storage.utils.MyFileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class InotifyFileSystemWatcherTest {
+
+    private static final String folder = "temp/inotify/";
+
+    private static final String outside = "temp/outside/";
+
+    private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+
+    private CountDownLatch latch;
+
+    private InotifyFileSystemWatcher watcher;
+
+    @Before
+    public void init () throws IOException {
+        assumeTrue(InotifyFileSystemWatcher.isSupported());
+        new File(folder).mkdirs();
+        new File(outside).mkdirs();
+    }
+
+    @After
+    public void end () throws InterruptedException {
+        if (watcher != null)
+            watcher.shutdown();
+        for (String path : Arrays.asList(folder, outside)) {
+            if (new File(path).exists())
+                MyFileUtils.delete(new File(path));
+        }
+    }
+
+    private void startWatching (int expected) throws IOException {
+        latch = new CountDownLatch(expected);
+        watcher = new InotifyFileSystemWatcher(folder);
+        watcher.addListener(new MyFileSystemWatcher.FileSystemEventListener() {
+            @Override
+            public void onFileCreated (File newFile) {
+                record("created " + newFile.getName());
+            }
+
+            @Override
+            public void onFileModified (File modifiedFile) {
+                record("modified " + modifiedFile.getName());
+            }
+
+            @Override
+            public void onFileDeleted (File deletedFile) {
+                record("deleted " + deletedFile.getName());
+            }
+
+            @Override
+            public void onFileMoved (File before, File movedFile) {
+                record("moved " + before.getName() + " " + movedFile.getName());
+            }
+
+            @Override
+            public void onOverflow (File folder) {
+                record("overflow " + folder.getName());
+            }
+        });
+    }
+
+    private void record (String event) {
+        events.add(event);
+        latch.countDown();
+    }
+
+    @Test
+    public void renameIsPairedByCookie () throws IOException, InterruptedException {
+        File before = new File(folder + "before.txt");
+        Files.touch(before);
+        startWatching(1);
+
+        assertTrue(before.renameTo(new File(folder + "after.txt")));
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("moved before.txt after.txt"), events);
+    }
+
+    @Test
+    public void movedOutsideIsDeleted () throws IOException, InterruptedException {
+        File file = new File(folder + "leaving.txt");
+        Files.touch(file);
+        startWatching(1);
+
+        // No IN_MOVED_TO arrives, so the rename is flushed after the wait
+        assertTrue(file.renameTo(new File(outside + "leaving.txt")));
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("deleted leaving.txt"), events);
+    }
+
+    @Test
+    public void overflowScansTheRoot () throws IOException, InterruptedException {
+        startWatching(1);
+
+        // Event with the IN_Q_OVERFLOW mask and no name
+        ByteBuffer overflow = ByteBuffer.allocate(16).order(ByteOrder.nativeOrder());
+        overflow.putInt(-1).putInt(0x00004000).putInt(0).putInt(0);
+        overflow.flip();
+        watcher.handleBatch(overflow);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("overflow inotify"), events);
+    }
+
+    @Test
+    public void shutdownWithoutWatches () throws IOException, InterruptedException {
+        startWatching(0);
+
+        // Deleting the root removes the last watch
+        MyFileUtils.delete(new File(folder));
+        Thread.sleep(100);
+
+        Thread stopper = new Thread(() -> {
+            try {
+                watcher.shutdown();
+            } catch (InterruptedException ex) {
+                // The test fails
+            }
+        });
+        stopper.start();
+        stopper.join(5000);
+        assertFalse(stopper.isAlive());
+        watcher = null;
+    }
+
+    @Test
+    public void foldersCreatedDuringTheRegistration () throws IOException, InterruptedException {
+        for (int i = 0; i < 50; i++) {
+            for (int j = 0; j < 20; j++) {
+                new File(folder + "tree/" + i + "/" + j).mkdirs();
+            }
+        }
+        startWatching(0);
+
+        CountDownLatch files = new CountDownLatch(50);
+        Set<File> created = ConcurrentHashMap.newKeySet();
+        Set<File> overflowed = ConcurrentHashMap.newKeySet();
+        watcher.addListener(new MyFileSystemWatcher.FileSystemEventListener() {
+            @Override
+            public void onFileCreated (File newFile) {
+                created.add(newFile.getAbsoluteFile());
+                if (newFile.getName().equals("file.txt"))
+                    files.countDown();
+            }
+
+            @Override
+            public void onFileModified (File modifiedFile) { }
+
+            @Override
+            public void onFileDeleted (File deletedFile) { }
+
+            @Override
+            public void onFileMoved (File before, File movedFile) { }
+
+            @Override
+            public void onOverflow (File folder) {
+                overflowed.add(folder.getAbsoluteFile());
+            }
+        });
+
+        // Created while the tree is registered
+        List<File> newFolders = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            File newFolder = new File(folder + "tree/" + i + "/new").getAbsoluteFile();
+            assertTrue(newFolder.mkdir());
+            newFolders.add(newFolder);
+        }
+        watcher.awaitRegistration();
+
+        // Each new folder is notified, or is in a folder that will be scanned
+        for (File newFolder : newFolders) {
+            boolean scanned = false;
+            for (File overflow : overflowed) {
+                scanned |= newFolder.toPath().startsWith(overflow.toPath());
+            }
+            assertTrue(newFolder + " lost", created.contains(newFolder) || scanned);
+        }
+
+        // And it is watched
+        for (File newFolder : newFolders) {
+            Files.touch(new File(newFolder, "file.txt"));
+        }
+        assertTrue(files.await(5, TimeUnit.SECONDS));
+    }
+}
@@ -352,6 +352,44 @@ public class MyFileSystemWatcherTest {
         f.mkdir();
     }
 
+    @Test
+    public void watchExistingSubFolders () throws IOException, InterruptedException {
+        File subFolder = new File(folder + "a/b/c/");
+        subFolder.mkdirs();
+        File testFile = new File(subFolder, "prova.txt");
+
+        // The sub folders are registered in background
+        stop();
+        watcher = new JavaFileSystemWatcher(folder);
+        watcher.awaitRegistration();
+
+        watcher.addListener(new MyFileSystemWatcher.FileSystemEventListener() {
+            @Override
+            public void onFileCreated(File newFile) {
+                assertEquals(testFile, newFile);
+                latch.countDown();
+                stop();
+            }
+
+            @Override
+            public void onFileModified(File modifiedFile) {
+
+            }
+
+            @Override
+            public void onFileDeleted(File deletedFile) {
+                fail();
+            }
+
+            @Override
+            public void onFileMoved(File before, File movedFile) {
+                fail();
+            }
+        });
+
+        Files.touch(testFile);
+    }
+
     @After
     public void clear () throws InterruptedException {
         boolean completed = latch.await(8000, TimeUnit.MILLISECONDS);
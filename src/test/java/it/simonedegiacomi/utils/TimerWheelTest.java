@@ -0,0 +1,50 @@
+package it.simonedegiacomi.utils;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created on 18/10/26.
+ * @author Degiacomi Simone
+ */
+public class TimerWheelTest {
+
+    private final TimerWheel wheel = new TimerWheel("TimerWheelTest", 10, TimeUnit.MILLISECONDS, 8);
+
+    @After
+    public void end () {
+        wheel.shutdown();
+    }
+
+    @Test
+    public void taskRunsAfterTheDelay () throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+
+        // The delay is longer than a round of the wheel
+        TimerWheel.Timeout timeout = wheel.schedule(latch::countDown, 200, TimeUnit.MILLISECONDS);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 190);
+        assertTrue(timeout.isExpired());
+        assertFalse(timeout.cancel());
+    }
+
+    @Test
+    public void cancelledTaskDoesNotRun () throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger();
+        TimerWheel.Timeout timeout = wheel.schedule(runs::incrementAndGet, 50, TimeUnit.MILLISECONDS);
+        assertTrue(timeout.cancel());
+
+        Thread.sleep(200);
+        assertEquals(0, runs.get());
+        assertTrue(timeout.isCancelled());
+        assertFalse(timeout.isExpired());
+    }
+}